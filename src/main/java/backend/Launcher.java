@@ -3,6 +3,7 @@ package backend;
 import backend.dm.DataManager;
 import backend.server.Server;
 import backend.tbm.TableManager;
+import backend.tbm.Vacuum;
 import backend.tm.TransactionManager;
 import backend.utils.Panic;
 import backend.vm.VersionManager;
@@ -40,6 +41,9 @@ public class Launcher implements Callable<Integer> {
 	@CommandLine.Option(names = "-mem", description = "Assign the memory size. E.g. -mem NKB/MB/GB.")
 	private String mem;
 	
+	@CommandLine.Option(names = "-vacuumRate", description = "Index entries the vacuum checks per second, 0 for unlimited. Default: ${DEFAULT-VALUE}.")
+	private long vacuumRate = Vacuum.DEFAULT_RATE;
+	
 	@Override
 	public Integer call() {
 		if (create) {
@@ -47,7 +51,7 @@ public class Launcher implements Callable<Integer> {
 		}
 		
 		if (open) {
-			openDB(path, parseMem(mem));
+			openDB(path, parseMem(mem), vacuumRate);
 		}
 		
 		return 0;
@@ -63,11 +67,16 @@ public class Launcher implements Callable<Integer> {
 		dm.close();
 	}
 	
-	private static void openDB(String path, long mem) {
+	private static void openDB(String path, long mem, long vacuumRate) {
+		if (vacuumRate < 0) {
+			Panic.panic(Error.InvalidVacuumRateException);
+		}
+		
 		TransactionManager tm = TransactionManager.open(path);
 		DataManager dm = DataManager.open(path, mem, tm);
 		VersionManager vm = VersionManager.newVersionManager(tm, dm);
 		TableManager tbm = TableManager.open(path, vm, dm);
+		tbm.startVacuum(vacuumRate);
 		
 		new Server(port, tbm).start();
 	}
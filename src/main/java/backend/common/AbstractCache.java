@@ -2,26 +2,84 @@ package backend.common;
 
 import common.Error;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @date 2023/12/1
  * @package backend.common
+ *
+ * 基于ConcurrentHashMap的引用计数缓存
+ * 每个key的状态变更都在compute中完成，由ConcurrentHashMap按桶加锁，不存在全局锁
+ * 写回不在compute中进行：先将entry标记为正在驱逐，在桶锁外写回后再移除，
+ * 期间获取该资源的线程等待写回完成后重新加载
+ * 正在加载的资源以future表示，并发获取同一资源的线程阻塞在future上，而不是轮询等待
+ *
+ * 两种驱逐方式：
+ * 1. 默认：引用计数归零时立即写回并驱逐
+ * 2. resident：引用计数归零后资源仍常驻缓存，缓存满时由CLOCK算法选出未被引用的资源驱逐
  */
 public abstract class AbstractCache<T> {
-	private HashMap<Long, T> cache = new HashMap<>();
-	private HashMap<Long, Integer> references = new HashMap<>();
-	private HashMap<Long, Boolean> getting = new HashMap<>();
 	
-	private int maxResource;
-	private int count = 0;
-	private Lock lock = new ReentrantLock();
+	private static class CacheEntry<T> {
+		final long key;
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		int references = 1;
+		
+		// CLOCK访问位及所在帧，仅resident模式使用
+		volatile boolean referenced = true;
+		int frame = -1;
+		
+		// 非null时资源正在写回，写回完成后entry被移除
+		volatile CompletableFuture<Void> evicting;
+		
+		CacheEntry(long key) {
+			this.key = key;
+		}
+	}
+	
+	private final ConcurrentHashMap<Long, CacheEntry<T>> cache = new ConcurrentHashMap<>();
+	
+	private final int maxResource;
+	private final AtomicInteger count = new AtomicInteger(0);
+	
+	private final boolean resident;
+	private AtomicReferenceArray<CacheEntry<T>> frames;
+	private ConcurrentLinkedQueue<Integer> freeFrames;
+	private Lock clockLock;
+	private int clockHand;
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
 	
 	public AbstractCache(int maxResource) {
+		this(maxResource, false);
+	}
+	
+	/**
+	 * @param resident 为true时，未被引用的资源常驻缓存，由CLOCK算法驱逐，此时maxResource必须大于0
+	 */
+	public AbstractCache(int maxResource, boolean resident) {
 		this.maxResource = maxResource;
+		this.resident = resident && maxResource > 0;
+		
+		if (this.resident) {
+			frames = new AtomicReferenceArray<>(maxResource);
+			freeFrames = new ConcurrentLinkedQueue<>();
+			for (int i = 0; i < maxResource; i++) {
+				freeFrames.offer(i);
+			}
+			clockLock = new ReentrantLock();
+		}
 	}
 	
 	/**
@@ -35,94 +93,346 @@ public abstract class AbstractCache<T> {
 	protected abstract void releaseForCache(T obj);
 	
 	protected T get(long key) throws Exception {
+		if (resident) {
+			return residentGet(key);
+		}
+		
 		while (true) {
-			lock.lock();
-			if (getting.containsKey(key)) {
-				lock.unlock();
+			// 本线程新建的entry，即由本线程负责加载
+			AtomicReference<CacheEntry<T>> created = new AtomicReference<>();
+			boolean[] full = new boolean[1];
+			
+			CacheEntry<T> entry = cache.compute(key, (k, e) -> {
+				if (e != null) {
+					if (e.evicting == null) {
+						e.references++;
+					}
+					return e;
+				}
 				
-				try {
-					Thread.sleep(1);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+				// 若已满，则不创建entry
+				int c = count.incrementAndGet();
+				if (maxResource > 0 && c > maxResource) {
+					count.decrementAndGet();
+					full[0] = true;
+					return null;
+				}
+				
+				created.set(new CacheEntry<>(key));
+				return created.get();
+			});
+			
+			if (full[0]) {
+				throw Error.CacheFullException;
+			}
+			
+			if (created.get() == null) {
+				if (entry.evicting != null) {
+					awaitEviction(entry);
 					continue;
 				}
-				continue;
+				hits.increment();
+				return await(entry);
 			}
 			
-			if (cache.containsKey(key)) {
-				T obj = cache.get(key);
-				references.put(key, references.get(key) + 1);
-				lock.unlock();
-				return obj;
+			misses.increment();
+			return load(entry);
+		}
+	}
+	
+	private T residentGet(long key) throws Exception {
+		while (true) {
+			CacheEntry<T> entry = cache.computeIfPresent(key, (k, e) -> pin(e));
+			if (entry != null) {
+				if (entry.evicting != null) {
+					awaitEviction(entry);
+					continue;
+				}
+				hits.increment();
+				return await(entry);
 			}
 			
-			// 若已满，则抛出异常
-			if (maxResource > 0 && maxResource == count) {
-				lock.unlock();
-				throw Error.CacheFullException;
+			// 先取得空闲帧再创建entry，驱逐不能发生在其他key的compute中
+			int frame = acquireFrame();
+			
+			AtomicReference<CacheEntry<T>> created = new AtomicReference<>();
+			entry = cache.compute(key, (k, e) -> {
+				if (e != null) {
+					return pin(e);
+				}
+				
+				count.incrementAndGet();
+				CacheEntry<T> c = new CacheEntry<>(key);
+				c.frame = frame;
+				created.set(c);
+				return c;
+			});
+			
+			if (created.get() == null) {
+				// 其他线程已抢先加载，或该资源正在写回
+				freeFrames.offer(frame);
+				if (entry.evicting != null) {
+					awaitEviction(entry);
+					continue;
+				}
+				hits.increment();
+				return await(entry);
 			}
 			
-			count++;
-			getting.put(key, true);
-			lock.unlock();
-			break;
+			frames.set(frame, entry);
+			misses.increment();
+			return load(entry);
 		}
-		
-		T obj = null;
+	}
+	
+	/**
+	 * 正在写回的资源不能再被引用
+	 */
+	private CacheEntry<T> pin(CacheEntry<T> e) {
+		if (e.evicting == null) {
+			e.references++;
+			e.referenced = true;
+		}
+		return e;
+	}
+	
+	private T load(CacheEntry<T> entry) throws Exception {
+		T obj;
 		try {
-			obj = getForCache(key);
+			obj = getForCache(entry.key);
 		} catch (Exception e) {
-			lock.lock();
-			count--;
-			getting.remove(key);
-			lock.unlock();
+			// 加载失败，移除entry，并唤醒等待者
+			cache.remove(entry.key, entry);
+			count.decrementAndGet();
+			if (resident) {
+				frames.set(entry.frame, null);
+				freeFrames.offer(entry.frame);
+			}
+			entry.future.completeExceptionally(e);
 			throw e;
 		}
 		
-		lock.lock();
-		cache.put(key, obj);
-		getting.remove(key);
-		references.put(key, 1);
-		lock.unlock();
-		
+		entry.future.complete(obj);
 		return obj;
 	}
 	
-	protected void release(long key) {
-		lock.lock();
-		try {
-			int ref = references.get(key) - 1;
+	/**
+	 * 获取一个空闲帧，若没有空闲帧，则转动时钟指针驱逐一个未被引用的资源
+	 * clockLock只用于选出并标记被驱逐的资源，写回在锁外进行，其他线程的缺失不必等待这次磁盘IO
+	 * 写回失败时资源留在原帧中，重新转动指针选择；转动两圈后仍无法驱逐，说明所有资源均被引用，
+	 * 抛出CacheFullException
+	 */
+	private int acquireFrame() throws Exception {
+		RuntimeException failure = null;
+		for (int attempt = 0; attempt <= maxResource; attempt++) {
+			Integer frame = freeFrames.poll();
+			if (frame != null) {
+				return frame;
+			}
 			
-			if (ref == 0) {
-				T obj = cache.get(key);
-				releaseForCache(obj);
-				references.remove(key);
-				cache.remove(key);
-				count--;
-			} else {
-				references.put(key, ref);
+			int idx = -1;
+			CacheEntry<T> victim = null;
+			clockLock.lock();
+			try {
+				for (int i = 0; i < 2 * maxResource && victim == null; i++) {
+					frame = freeFrames.poll();
+					if (frame != null) {
+						return frame;
+					}
+					
+					idx = clockHand;
+					clockHand = (clockHand + 1) % maxResource;
+					
+					CacheEntry<T> e = frames.get(idx);
+					if (e == null) {
+						continue;
+					}
+					if (e.referenced) {
+						e.referenced = false;
+						continue;
+					}
+					
+					if (markEvicting(e)) {
+						victim = e;
+					}
+				}
+			} finally {
+				clockLock.unlock();
 			}
-		} finally {
-			lock.unlock();
+			
+			if (victim == null) {
+				break;
+			}
+			
+			try {
+				writeBack(victim);
+			} catch (RuntimeException e) {
+				restore(victim);
+				failure = e;
+				continue;
+			}
+			frames.set(idx, null);
+			evictions.increment();
+			return idx;
 		}
+		
+		throw failure != null ? failure : Error.CacheFullException;
 	}
 	
 	/**
-	 * 关闭缓存，写回所有资源
+	 * 将未被引用的entry标记为正在驱逐，之后不能再被引用
 	 */
-	protected void close() {
-		lock.lock();
-		try {
-			Set<Long> keys = cache.keySet();
+	private boolean markEvicting(CacheEntry<T> entry) {
+		boolean[] marked = new boolean[1];
+		cache.computeIfPresent(entry.key, (k, e) -> {
+			if (e != entry || e.references > 0 || !e.future.isDone() || e.evicting != null) {
+				return e;
+			}
 			
-			for (long k : keys) {
-				T obj = cache.get(k);
-				releaseForCache(obj);
-				references.remove(k);
-				cache.remove(k);
+			e.evicting = new CompletableFuture<>();
+			marked[0] = true;
+			return e;
+		});
+		return marked[0];
+	}
+	
+	/**
+	 * 写回已标记为正在驱逐的资源，不持有桶锁，写回成功后才移除entry
+	 * 期间获取该资源的线程等待evicting，之后重新加载，不会读到写回之前的内容
+	 * 写回失败时异常抛给调用者，entry仍为正在驱逐，由调用者决定移除或恢复
+	 */
+	private void writeBack(CacheEntry<T> entry) {
+		releaseForCache(entry.future.join());
+		cache.remove(entry.key, entry);
+		count.decrementAndGet();
+		entry.evicting.complete(null);
+	}
+	
+	/**
+	 * 写回失败的entry恢复为可用，仍留在原帧中，等待写回的线程重新引用它
+	 */
+	private void restore(CacheEntry<T> entry) {
+		CompletableFuture<Void> evicting = entry.evicting;
+		cache.computeIfPresent(entry.key, (k, e) -> {
+			e.evicting = null;
+			return e;
+		});
+		evicting.complete(null);
+	}
+	
+	private void awaitEviction(CacheEntry<T> entry) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				entry.evicting.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException e) {
+				break;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private T await(CacheEntry<T> entry) throws Exception {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return entry.future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception) {
+						throw (Exception) cause;
+					}
+					throw e;
+				}
 			}
 		} finally {
-			lock.unlock();
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
 		}
 	}
+	
+	protected void release(long key) {
+		boolean[] marked = new boolean[1];
+		CacheEntry<T> entry = cache.computeIfPresent(key, (k, e) -> {
+			e.references--;
+			if (e.references > 0 || resident) {
+				return e;
+			}
+			
+			e.evicting = new CompletableFuture<>();
+			marked[0] = true;
+			return e;
+		});
+		
+		if (marked[0]) {
+			try {
+				writeBack(entry);
+			} catch (RuntimeException e) {
+				// 引用计数已归零，失败时同样移除，不留下无人释放的entry
+				cache.remove(entry.key, entry);
+				count.decrementAndGet();
+				entry.evicting.complete(null);
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * 关闭缓存，写回所有资源
+	 */
+	protected void close() {
+		for (Long k : cache.keySet()) {
+			cache.computeIfPresent(k, (key, e) -> {
+				// 正在写回的资源由写回的线程移除
+				if (e.evicting != null) {
+					return e;
+				}
+				if (e.future.isDone() && !e.future.isCompletedExceptionally()) {
+					releaseForCache(e.future.join());
+				}
+				count.decrementAndGet();
+				return null;
+			});
+		}
+	}
+	
+	/**
+	 * 取得已加载且不在写回中的资源，不加载、不增加引用计数，返回后资源随时可能被驱逐
+	 * @return 资源不在缓存中、正在加载或正在写回时返回null
+	 */
+	protected T peek(long key) {
+		CacheEntry<T> e = cache.get(key);
+		if (e == null || e.evicting != null || !e.future.isDone() || e.future.isCompletedExceptionally()) {
+			return null;
+		}
+		return e.future.join();
+	}
+	
+	/**
+	 * key是否正被引用或正在加载，非resident模式下引用计数归零的资源不在缓存中
+	 */
+	protected boolean isCached(long key) {
+		return cache.containsKey(key);
+	}
+	
+	protected long getHitCount() {
+		return hits.sum();
+	}
+	
+	protected long getMissCount() {
+		return misses.sum();
+	}
+	
+	protected long getEvictionCount() {
+		return evictions.sum();
+	}
 }
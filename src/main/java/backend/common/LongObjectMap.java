@@ -0,0 +1,146 @@
+package backend.common;
+
+import java.util.Arrays;
+
+/**
+ * @date 2024/1/16
+ * @package backend.common
+ *
+ * 以long为key的哈希表，开放寻址、线性探测，key不装箱
+ * 删除时向前移动后续元素，不留墓碑
+ * 非线程安全，由使用者加锁
+ */
+public class LongObjectMap<V> {
+	
+	private static final int MIN_CAPACITY = 8;
+	
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	private int mask;
+	
+	public LongObjectMap() {
+		this(MIN_CAPACITY);
+	}
+	
+	public LongObjectMap(int expected) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+	
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+	
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+	
+	private int indexOf(long key) {
+		int i = slot(key);
+		while (values[i] != null) {
+			if (keys[i] == key) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int i = indexOf(key);
+		return i < 0 ? null : (V) values[i];
+	}
+	
+	public boolean containsKey(long key) {
+		return indexOf(key) >= 0;
+	}
+	
+	/**
+	 * @param value 不能为null
+	 * @return 原有的值
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		int i = slot(key);
+		while (values[i] != null) {
+			if (keys[i] == key) {
+				V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+			i = (i + 1) & mask;
+		}
+		
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+		return null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+		
+		V old = (V) values[i];
+		values[i] = null;
+		size--;
+		
+		// 将后续同一探测序列上的元素前移，填补空位
+		int hole = i;
+		int j = (i + 1) & mask;
+		while (values[j] != null) {
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				values[j] = null;
+				hole = j;
+			}
+			j = (j + 1) & mask;
+		}
+		return old;
+	}
+	
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int j = slot(oldKeys[i]);
+				while (values[j] != null) {
+					j = (j + 1) & mask;
+				}
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+}
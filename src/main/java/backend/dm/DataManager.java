@@ -4,8 +4,11 @@ import backend.dm.dataItem.DataItem;
 import backend.dm.logger.Logger;
 import backend.dm.page.PageOne;
 import backend.dm.pageCache.PageCache;
+import backend.dm.pageIndex.FreeSpaceMap;
 import backend.tm.TransactionManager;
 
+import java.util.List;
+
 /**
  * @date 2023/12/5
  * @package backend.dm
@@ -13,28 +16,43 @@ import backend.tm.TransactionManager;
 public interface DataManager {
 	DataItem read(long uid) throws Exception;
 	long insert(long xid, byte[] data) throws Exception;
+	// 批量插入，每个页面只记一条日志，返回的uid与data一一对应
+	long[] insertBatch(long xid, List<byte[]> data) throws Exception;
+	// 回收已标记为非法且不再被引用的DataItem的空间，返回回收的字节数
+	long reclaim(long[] uids);
 	void close();
 	
 	static DataManager create(String path, long mem, TransactionManager tm) {
-		PageCache pc = PageCache.create(path, mem);
 		Logger logger = Logger.create(path);
+		PageCache pc = PageCache.create(path, mem, logger);
+		FreeSpaceMap fsm = FreeSpaceMap.create(path);
 		
-		DataManagerImpl dm = new DataManagerImpl(pc, logger, tm);
+		DataManagerImpl dm = new DataManagerImpl(pc, logger, tm, fsm);
 		dm.initPageOne();
+		dm.startCheckpointer();
 		return dm;
 	}
 	
 	static DataManager open(String path, long mem, TransactionManager tm) {
-		PageCache pc = PageCache.open(path, mem);
 		Logger logger = Logger.open(path);
+		PageCache pc = PageCache.open(path, mem, logger);
+		FreeSpaceMap fsm = FreeSpaceMap.open(path);
+		boolean rebuild = fsm == null;
+		if (rebuild) {
+			fsm = FreeSpaceMap.create(path);
+		}
 		
-		DataManagerImpl dm = new DataManagerImpl(pc, logger, tm);
+		DataManagerImpl dm = new DataManagerImpl(pc, logger, tm, fsm);
 		if (!dm.loadCheckPageOne()) {
 			Recover.recover(tm, logger, pc);
+			// 恢复的结果写回后记录检查点，之后的恢复无需重复这部分工作
+			pc.flushAll();
+			dm.checkpoint();
 		}
-		dm.fillPageIndex();
+		dm.fillPageIndex(rebuild);
 		PageOne.setVcOpen(dm.pageOne);
 		dm.pc.flushPage(dm.pageOne);
+		dm.startCheckpointer();
 		
 		return dm;
 	}
@@ -8,13 +8,26 @@ import backend.dm.page.Page;
 import backend.dm.page.PageOne;
 import backend.dm.page.PageX;
 import backend.dm.pageCache.PageCache;
+import backend.dm.pageIndex.FreeSpaceMap;
 import backend.dm.pageIndex.PageIndex;
 import backend.dm.pageIndex.PageInfo;
 import backend.tm.TransactionManager;
+import backend.tm.TransactionManagerImpl;
 import backend.utils.Panic;
 import backend.utils.Types;
 import common.Error;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * @date 2023/12/5
  * @package backend.dm
@@ -24,22 +37,48 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 	TransactionManager tm;
 	PageCache pc;
 	Logger logger;
+	FreeSpaceMap fsm;
 	PageIndex pageIndex;
 	Page pageOne;
 	
 	private static final int ATTEMPT_TIMES = 5;
 	
-	public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
+	// 同一时刻只有一个线程新建页面
+	private Lock newPageLock = new ReentrantLock();
+	
+	// 检查点间隔（毫秒）
+	private static final long CHECKPOINT_INTERVAL = 30 * 1000;
+	
+	private Thread checkpointer;
+	private volatile boolean closed;
+	
+	// 写过日志的事务 -> 其第一条日志的LSN下界，检查点时清理已结束的事务
+	private Map<Long, Long> activeLsn = new ConcurrentHashMap<>();
+	
+	public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, FreeSpaceMap fsm) {
 		super(0);
 		this.pc = pc;
 		this.logger = logger;
 		this.tm = tm;
-		pageIndex = new PageIndex();
+		this.fsm = fsm;
+		pageIndex = new PageIndex(fsm);
 	}
 	
+	/**
+	 * DataItem已被标记为非法或所在槽位已被回收时返回null
+	 */
 	@Override
 	public DataItem read(long uid) throws Exception {
-		DataItemImpl di = (DataItemImpl) get(uid);
+		DataItemImpl di;
+		try {
+			di = (DataItemImpl) get(uid);
+		} catch (Exception e) {
+			if (e == Error.NoEntryException) {
+				return null;
+			}
+			throw e;
+		}
+		
 		if (!di.isValid()) {
 			di.release();
 			return null;
@@ -54,47 +93,248 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 			throw Error.DataTooLargeException;
 		}
 		
-		PageInfo pageInfo = null;
-		for (int i = 0; i < ATTEMPT_TIMES; i++) {
-			pageInfo = pageIndex.select(data.length);
-			if (pageInfo != null) {
-				break;
-			} else {
+		for (int i = 0; i < ATTEMPT_TIMES; ) {
+			PageInfo pageInfo = pageIndex.select(raw.length);
+			if (pageInfo == null) {
 				// 添加新的一页，并在下次尝试获取
-				int newPageNo = pc.newPage(PageX.initRaw());
-				pageIndex.add(newPageNo, PageX.MAX_FREE_SPACE);
+				newPage(raw.length);
+				i++;
+				continue;
+			}
+			
+			// 插入失败的页面不会再被本次插入选中，不计入尝试次数
+			short slot = insertInto(pageInfo, xid, raw);
+			if (slot >= 0) {
+				return Types.addressToUid(pageInfo.pageNo, slot);
 			}
 		}
-		if (pageInfo == null) {
-			throw Error.DatabaseBusyException;
+		throw Error.DatabaseBusyException;
+	}
+	
+	/**
+	 * 将多个DataItem依次放入页面，每个页面只记一条日志，返回前才等待日志持久化
+	 * 返回的uid与data一一对应
+	 */
+	@Override
+	public long[] insertBatch(long xid, List<byte[]> data) throws Exception {
+		byte[][] raws = new byte[data.size()][];
+		for (int i = 0; i < raws.length; i++) {
+			raws[i] = DataItem.wrapDataItemRaw(data.get(i));
+			if (raws[i].length > PageX.MAX_FREE_SPACE) {
+				throw Error.DataTooLargeException;
+			}
 		}
 		
-		Page page = null;
+		long[] uids = new long[raws.length];
+		int next = 0;
+		int attempts = 0;
+		while (next < raws.length) {
+			PageInfo pageInfo = pageIndex.select(raws[next].length);
+			if (pageInfo == null) {
+				if (attempts++ == ATTEMPT_TIMES) {
+					throw Error.DatabaseBusyException;
+				}
+				newPage(raws[next].length);
+				continue;
+			}
+			
+			int placed = insertBatchInto(pageInfo, xid, raws, next, uids);
+			if (placed > 0) {
+				next += placed;
+				attempts = 0;
+			}
+		}
+		
+		logger.flush();
+		return uids;
+	}
+	
+	/**
+	 * 从raws[from]开始尽可能多地放入页面，遇到放不下的DataItem为止，返回放入的个数
+	 */
+	private int insertBatchInto(PageInfo pageInfo, long xid, byte[][] raws, int from, long[] uids) throws Exception {
+		int pageNo = pageInfo.pageNo;
+		Page page = pc.getPage(pageNo);
 		try {
-			page = pc.getPage(pageInfo.pageNo);
-			byte[] log = Recover.insertLog(xid, page, raw);
-			logger.log(log);
+			List<Short> slots = new ArrayList<>();
 			
-			short offset = PageX.insert(page, raw);
+			page.rLock();
+			try {
+				page.setDirty(true);
+				page.lock();
+				try {
+					while (from + slots.size() < raws.length) {
+						byte[] raw = raws[from + slots.size()];
+						short slot = PageX.insert(page, raw, s -> isCached(Types.addressToUid(pageNo, (short) s)));
+						if (slot < 0) {
+							break;
+						}
+						slots.add(slot);
+					}
+					
+					pageInfo.freeSpace = PageX.getFreeSpace(page);
+					if (slots.isEmpty()) {
+						pageInfo.freeSpace = Math.min(pageInfo.freeSpace, raws[from].length - 1);
+					}
+					pageIndex.update(pageNo, pageInfo.freeSpace);
+				} finally {
+					page.unlock();
+				}
+				
+				if (!slots.isEmpty()) {
+					short[] s = new short[slots.size()];
+					for (int i = 0; i < s.length; i++) {
+						s[i] = slots.get(i);
+						uids[from + i] = Types.addressToUid(pageNo, s[i]);
+					}
+					
+					trackTransaction(xid);
+					long lsn = logger.append(Recover.batchInsertLog(xid, pageNo, s, Arrays.copyOfRange(raws, from, from + s.length)));
+					raiseLSN(page, lsn);
+				}
+			} finally {
+				page.rUnlock();
+			}
+			return slots.size();
+		} finally {
 			page.release();
-			return Types.addressToUid(pageInfo.pageNo, offset);
+		}
+	}
+	
+	/**
+	 * 等待锁的线程可能已由其他线程新建了页面，重新选择仍没有合适的页面时才新建
+	 */
+	private void newPage(int spaceSize) {
+		newPageLock.lock();
+		try {
+			if (pageIndex.select(spaceSize) == null) {
+				int newPageNo = pc.newPage(PageX.initRaw());
+				pageIndex.update(newPageNo, PageX.MAX_FREE_SPACE);
+			}
 		} finally {
-			// 将page重新插入pageIndex
-			if (page != null) {
-				pageIndex.add(pageInfo.pageNo, PageX.getFreeSpace(page));
-			} else {
-				pageIndex.add(pageInfo.pageNo, 0);
+			newPageLock.unlock();
+		}
+	}
+	
+	/**
+	 * 在页面中放置DataItem并记日志，被引用的DataItem不能被整理移动，空间仍可能不足，此时返回-1
+	 * 放置DataItem持有页面的lock，记日志期间只持有共享闩，不阻塞同一页面上DataItem的加载
+	 * 插入失败说明空闲空间的提示已过期（FreeSpaceMap崩溃后未更新），或被引用的DataItem无法移动，
+	 * 此时按本次的大小降低提示，之后的插入或回收会重新修正
+	 */
+	private short insertInto(PageInfo pageInfo, long xid, byte[] raw) throws Exception {
+		int pageNo = pageInfo.pageNo;
+		Page page = pc.getPage(pageNo);
+		try {
+			short slot;
+			
+			// 先标记脏页再记日志，保证检查点之前的日志所对应的页面一定会被检查点写回
+			page.rLock();
+			try {
+				page.setDirty(true);
+				page.lock();
+				try {
+					slot = PageX.insert(page, raw, s -> isCached(Types.addressToUid(pageNo, (short) s)));
+					pageInfo.freeSpace = PageX.getFreeSpace(page);
+					if (slot < 0) {
+						pageInfo.freeSpace = Math.min(pageInfo.freeSpace, raw.length - 1);
+					}
+					pageIndex.update(pageNo, pageInfo.freeSpace);
+				} finally {
+					page.unlock();
+				}
+				
+				if (slot >= 0) {
+					trackTransaction(xid);
+					long lsn = logger.log(Recover.insertLog(xid, pageNo, slot, raw));
+					raiseLSN(page, lsn);
+				}
+			} finally {
+				page.rUnlock();
 			}
+			return slot;
+		} finally {
+			page.release();
 		}
 	}
 	
+	private void raiseLSN(Page page, long lsn) {
+		page.lock();
+		try {
+			PageX.raiseLSN(page, lsn);
+		} finally {
+			page.unlock();
+		}
+	}
+	
+	/**
+	 * 释放uids中已非法且未被引用的DataItem所占的槽位，空间由之后的插入整理复用
+	 * 每个页面的释放记一条freeLog并提升页面LSN，之后复用这些空间的插入重做时空间一定已被释放
+	 * 日志在持有页面lock时写入，保证同一页面上释放与插入的日志顺序与修改顺序一致
+	 */
+	@Override
+	public long reclaim(long[] uids) {
+		Map<Integer, List<Short>> slots = new HashMap<>();
+		for (long uid : uids) {
+			slots.computeIfAbsent(Types.uidToPageNo(uid), k -> new ArrayList<>()).add(Types.uidToSlot(uid));
+		}
+		
+		long freed = 0;
+		for (Map.Entry<Integer, List<Short>> e : slots.entrySet()) {
+			int pageNo = e.getKey();
+			Page page = null;
+			try {
+				page = pc.getPage(pageNo);
+			} catch (Exception ex) {
+				Panic.panic(ex);
+			}
+			
+			int before = PageX.getFreeSpace(page);
+			page.rLock();
+			page.lock();
+			try {
+				byte[] data = page.getData();
+				short[] freedSlots = new short[e.getValue().size()];
+				int n = 0;
+				for (short slot : e.getValue()) {
+					int offset = PageX.getOffset(page, slot);
+					if (offset >= 0 && !DataItem.isDataItemRawValid(data, offset) &&
+								!isCached(Types.addressToUid(pageNo, slot))) {
+						PageX.free(page, slot);
+						freedSlots[n++] = slot;
+					}
+				}
+				if (n > 0) {
+					byte[] log = Recover.freeLog(TransactionManagerImpl.SUPER_XID, pageNo, Arrays.copyOf(freedSlots, n));
+					PageX.raiseLSN(page, logger.append(log));
+				}
+				pageIndex.update(pageNo, PageX.getFreeSpace(page));
+			} finally {
+				page.unlock();
+				page.rUnlock();
+			}
+			freed += PageX.getFreeSpace(page) - before;
+			page.release();
+		}
+		return freed;
+	}
+	
 	@Override
 	protected DataItem getForCache(long uid) throws Exception {
-		short offset = (short) (uid & ((1 << 16) - 1));
-		int pageNo = (int) ((uid >>> 32) & ((1L << 32) - 1));
+		int pageNo = Types.uidToPageNo(uid);
+		short slot = Types.uidToSlot(uid);
 		
 		Page page = pc.getPage(pageNo);
-		return DataItem.parseDataItem(page, offset, this);
+		page.lock();
+		try {
+			if (PageX.getOffset(page, slot) < 0) {
+				page.release();
+				throw Error.NoEntryException;
+			}
+			return DataItem.parseDataItem(page, slot, this);
+		} finally {
+			page.unlock();
+		}
 	}
 	
 	@Override
@@ -104,25 +344,102 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 	
 	@Override
 	public void close() {
+		closed = true;
+		LockSupport.unpark(checkpointer);
+		try {
+			checkpointer.join();
+		} catch (InterruptedException e) {
+			Panic.panic(e);
+		}
+		
 		super.close();
-		logger.close();
 		
 		PageOne.setVcClose(pageOne);
 		pageOne.release();
 		pc.close();
+		fsm.close();
+		logger.close();
+	}
+	
+	/**
+	 * 模糊检查点：不等待脏页写回，只记录脏页表与活跃事务表
+	 * 脏页由后台写线程写回，检查点写入后，重做与撤销起点之前的日志即可回收
+	 */
+	public void checkpoint() {
+		long lsn = logger.lsn();
+		int pageNumber = pc.getPageNumber();
+		Map<Integer, Long> dirtyPages = pc.dirtyPageTable();
+		
+		activeLsn.keySet().removeIf(xid -> !tm.isActive(xid));
+		Map<Long, Long> active = new HashMap<>(activeLsn);
+		
+		logger.log(Recover.checkpointLog(lsn, pageNumber, active, dirtyPages));
+		fsm.flush();
+		
+		long reclaimLsn = lsn;
+		for (long recLsn : dirtyPages.values()) {
+			reclaimLsn = Math.min(reclaimLsn, recLsn);
+		}
+		for (long firstLsn : active.values()) {
+			reclaimLsn = Math.min(reclaimLsn, firstLsn);
+		}
+		logger.recycle(reclaimLsn);
+	}
+	
+	/**
+	 * 须在写日志之前调用，保证记录的LSN不大于事务的第一条日志
+	 */
+	private void trackTransaction(long xid) {
+		if (xid != TransactionManagerImpl.SUPER_XID) {
+			activeLsn.computeIfAbsent(xid, k -> logger.lsn());
+		}
+	}
+	
+	void startCheckpointer() {
+		checkpointer = new Thread(() -> {
+			while (!closed) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(CHECKPOINT_INTERVAL));
+				if (!closed) {
+					checkpoint();
+				}
+			}
+		}, "checkpointer");
+		checkpointer.setDaemon(true);
+		checkpointer.start();
 	}
 	
 	public void logDataItem(long xid, DataItem di) {
 		byte[] log = Recover.updateLog(xid, di);
-		logger.log(log);
+		trackTransaction(xid);
+		raiseLSN(di.page(), logger.log(log));
+	}
+	
+	/**
+	 * 多个DataItem的修改记为一条日志，由DataItem.afterAll调用
+	 */
+	public void logDataItems(long xid, DataItem[] items) {
+		byte[] log = Recover.multiUpdateLog(xid, items);
+		trackTransaction(xid);
+		long lsn = logger.log(log);
+		for (DataItem di : items) {
+			raiseLSN(di.page(), lsn);
+		}
 	}
 	
 	public void releaseDataItem(DataItem di) {
 		super.release(di.getUid());
 	}
 	
-	void fillPageIndex() {
+	/**
+	 * 空闲空间从FreeSpaceMap延迟加载，FreeSpaceMap为新建时读取所有页面重建
+	 */
+	void fillPageIndex(boolean rebuild) {
 		int pageNum = pc.getPageNumber();
+		pageIndex.load(pageNum);
+		if (!rebuild) {
+			return;
+		}
+		
 		for (int i = 2; i <= pageNum; i++) {
 			Page p = null;
 			try {
@@ -131,7 +448,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 				Panic.panic(e);
 			}
 			
-			pageIndex.add(i, PageX.getFreeSpace(p));
+			pageIndex.update(i, PageX.getFreeSpace(p));
 			p.release();
 		}
 	}
@@ -155,6 +472,10 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 			Panic.panic(e);
 		}
 		
+		// 其他格式的页面无法按槽页解析，也不能用来恢复
+		if (!PageOne.checkFormat(pageOne)) {
+			Panic.panic(Error.OldPageFormatException);
+		}
 		return PageOne.checkVc(pageOne);
 	}
 	
@@ -9,9 +9,13 @@ import backend.dm.pageCache.PageCache;
 import backend.tm.TransactionManager;
 import backend.utils.Panic;
 import backend.utils.Parser;
+import backend.utils.Types;
 import com.google.common.primitives.Bytes;
+import common.Error;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @date 2023/12/3
@@ -21,112 +25,208 @@ public class Recover {
 	
 	private static final byte LOG_TYPE_INSERT = 0;
 	private static final byte LOG_TYPE_UPDATE = 1;
+	private static final byte LOG_TYPE_CHECKPOINT = 2;
+	private static final byte LOG_TYPE_BATCH_INSERT = 3;
+	private static final byte LOG_TYPE_FREE = 4;
+	private static final byte LOG_TYPE_MULTI_UPDATE = 5;
 	
 	private static final int REDO = 0;
 	private static final int UNDO = 1;
 	
 	
 	static class LogInfo {
+		long lsn;
 		long xid;
 		int pageNo;
-		short offset;
+		short slot;
 	}
 	
 	/**
 	 * insertLog:
-	 * [logType][xid][pageNumber][offset][data]
+	 * [logType][xid][pageNumber][slot][data]
 	 */
 	static class InsertLogInfo extends LogInfo {
 		byte[] raw;
 	}
 	
+	/**
+	 * batchInsertLog，同一页面中的多条插入:
+	 * [logType][xid][pageNumber][count]([slot][length][data])...
+	 */
+	static class BatchInsertLogInfo extends LogInfo {
+		short[] slots;
+		byte[][] raws;
+	}
+	
+	/**
+	 * freeLog，同一页面中被回收的槽位，由超级事务记录，只会被重做:
+	 * [logType][xid][pageNumber][count]([slot])...
+	 */
+	static class FreeLogInfo extends LogInfo {
+		short[] slots;
+	}
+	
 	/**
 	 * updateLog:
 	 * [logType][xid][uid][oldData][newData]
-	 * uid: [pageNo: 4][padding: 2][offset: 2]
+	 * uid: [pageNo: 4][padding: 2][slot: 2]
 	 */
 	static class UpdateLogInfo extends LogInfo {
 		byte[] oldRaw;
 		byte[] newRaw;
 	}
 	
+	/**
+	 * multiUpdateLog，多个DataItem的修改记在同一条日志中，崩溃后要么全部重做，要么都没有:
+	 * [logType][xid][count]([uid][length][oldData][newData])...
+	 * 解析时按页面拆分，每个页面一项，共用该日志的LSN
+	 */
+	static class MultiUpdateLogInfo extends LogInfo {
+		List<Short> slots = new ArrayList<>();
+		List<byte[]> oldRaws = new ArrayList<>();
+		List<byte[]> newRaws = new ArrayList<>();
+	}
+	
+	/**
+	 * checkpointLog:
+	 * [logType][lsn][pageNumber][activeCount][xid, firstLsn]...[dirtyCount][pageNo, recLsn]...
+	 * lsn为开始检查点时的日志末尾
+	 * firstLsn为活跃事务第一条日志的LSN下界，recLsn为页面变脏时的日志末尾
+	 */
+	static class CheckpointLogInfo {
+		long lsn;
+		int pageNumber;
+		Map<Long, Long> activeTransactions;
+		Map<Integer, Long> dirtyPages;
+		
+		// 重做起点：检查点开始时仍未写回的页面中最早的修改
+		long redoLsn() {
+			long lsn = this.lsn;
+			for (long recLsn : dirtyPages.values()) {
+				lsn = Math.min(lsn, recLsn);
+			}
+			return lsn;
+		}
+		
+		// 撤销起点：还需考虑检查点时活跃事务的第一条日志
+		long undoLsn() {
+			long lsn = redoLsn();
+			for (long firstLsn : activeTransactions.values()) {
+				lsn = Math.min(lsn, firstLsn);
+			}
+			return lsn;
+		}
+	}
+	
+	/**
+	 * 检查点之前的日志可能已被回收，恢复只依赖最后一个检查点之后的信息：
+	 * 重做从检查点时脏页表中最早的recLSN开始，撤销从检查点时活跃事务的第一条日志开始
+	 *
+	 * 日志只读一遍，遇到检查点时丢弃其撤销起点之前的日志，
+	 * 内存中只保留最后一个检查点之后恢复所需的日志
+	 */
 	public static void recover(TransactionManager tm, Logger logger, PageCache pc) {
 		System.out.println("Recovering...");
 		
 		logger.rewind();
 		int maxPageNo = 1;
-		byte[] log;
+		CheckpointLogInfo checkpoint = null;
+		List<LogInfo> logs = new ArrayList<>();
 		
-		while ((log = logger.next()) != null) {
-			int pageNo;
+		while (true) {
+			long lsn = logger.position();
+			byte[] log = logger.next();
+			if (log == null) {
+				break;
+			}
+			
+			if (isCheckpointLog(log)) {
+				checkpoint = parseCheckpointLog(log);
+				long undoLsn = checkpoint.undoLsn();
+				logs.removeIf(info -> info.lsn < undoLsn);
+				continue;
+			}
+			
+			List<LogInfo> infos;
 			if (isInsertLog(log)) {
-				InsertLogInfo logInfo = parseInsertLog(log);
-				pageNo = logInfo.pageNo;
+				infos = List.of(parseInsertLog(log));
+			} else if (isBatchInsertLog(log)) {
+				infos = List.of(parseBatchInsertLog(log));
+			} else if (isFreeLog(log)) {
+				infos = List.of(parseFreeLog(log));
+			} else if (isMultiUpdateLog(log)) {
+				infos = parseMultiUpdateLog(log);
 			} else {
-				UpdateLogInfo logInfo = parseUpdateLog(log);
-				pageNo = logInfo.pageNo;
+				infos = List.of(parseUpdateLog(log));
+			}
+			for (LogInfo info : infos) {
+				info.lsn = lsn;
+				logs.add(info);
+				maxPageNo = Math.max(maxPageNo, info.pageNo);
 			}
-			
-			maxPageNo = Math.max(maxPageNo, pageNo);
+		}
+		
+		long redoLsn = 0;
+		if (checkpoint != null) {
+			// 被回收的日志所涉及的页面都在检查点记录的页数之内
+			maxPageNo = Math.max(maxPageNo, checkpoint.pageNumber);
+			redoLsn = checkpoint.redoLsn();
 		}
 		
 		pc.truncateByBigPageNumber(maxPageNo);
 		System.out.println("Truncate to " + maxPageNo + " pages.");
 		
-		redoTransactions(tm, logger, pc);
+		// 恢复期间事务状态不会变化，缓存起来避免每条日志都读xid文件
+		Map<Long, Boolean> active = new HashMap<>();
+		List<LogInfo> redoLogs = new ArrayList<>();
+		Map<Long, List<LogInfo>> undoLogs = new HashMap<>();
+		
+		for (LogInfo info : logs) {
+			if (active.computeIfAbsent(info.xid, tm::isActive)) {
+				undoLogs.computeIfAbsent(info.xid, k -> new ArrayList<>()).add(info);
+			} else if (info.lsn >= redoLsn) {
+				redoLogs.add(info);
+			}
+		}
+		
+		redoTransactions(pc, redoLogs);
 		System.out.println("Redo Transactions Over.");
 		
-		undoTransactions(tm, logger, pc);
+		undoTransactions(tm, pc, undoLogs);
 		System.out.println("Undo Transactions Over.");
 		
 		System.out.println("Recover Over.");
 	}
 	
-	private static void redoTransactions(TransactionManager tm, Logger logger, PageCache pc) {
-		logger.rewind();
+	/**
+	 * 不同页面的重做互不影响，按页号分组后并行重做，同一页面内保持日志顺序
+	 */
+	private static void redoTransactions(PageCache pc, List<LogInfo> logs) {
+		Map<Integer, List<LogInfo>> pageLogs = new HashMap<>();
+		for (LogInfo info : logs) {
+			pageLogs.computeIfAbsent(info.pageNo, k -> new ArrayList<>()).add(info);
+		}
 		
-		byte[] log;
-		while ((log = logger.next()) != null) {
-			if (isInsertLog(log)) {
-				InsertLogInfo info = parseInsertLog(log);
-				
-				if (!tm.isActive(info.xid)) {
-					doInsertLog(pc, info, REDO);
-				}
-			} else {
-				UpdateLogInfo info = parseUpdateLog(log);
-				
-				if (!tm.isActive(info.xid)) {
-					doUpdateLog(pc, info, REDO);
-				}
-			}
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try {
+			pool.submit(() -> pageLogs.values().parallelStream().forEach(infos -> redoPage(pc, infos))).join();
+		} finally {
+			pool.shutdown();
 		}
 	}
 	
-	private static void undoTransactions(TransactionManager tm, Logger logger, PageCache pc) {
-		Map<Long, List<LogInfo>> logCache = new HashMap<>();
-		logger.rewind();
-		byte[] log;
-		
-		while ((log = logger.next()) != null) {
-			LogInfo info;
-			long xid;
-			
-			if (isInsertLog(log)) {
-				info = parseInsertLog(log);
-			} else {
-				info = parseUpdateLog(log);
-			}
-			xid = info.xid;
-			
-			if (tm.isActive(xid)) {
-				if (!logCache.containsKey(xid)) {
-					logCache.put(xid, new ArrayList<>());
-				}
-				logCache.get(xid).add(info);
+	private static void redoPage(PageCache pc, List<LogInfo> infos) {
+		Page page = getPage(pc, infos.get(0).pageNo);
+		try {
+			for (LogInfo info : infos) {
+				doLog(page, info, REDO);
 			}
+		} finally {
+			page.release();
 		}
-		
+	}
+	
+	private static void undoTransactions(TransactionManager tm, PageCache pc, Map<Long, List<LogInfo>> logCache) {
 		for (Map.Entry<Long, List<LogInfo>> e : logCache.entrySet()) {
 			List<LogInfo> infos = e.getValue();
 			
@@ -134,63 +234,192 @@ public class Recover {
 			for (int i = infos.size() - 1; i >= 0; i--) {
 				LogInfo info = infos.get(i);
 				
-				if (info instanceof InsertLogInfo) {
-					doInsertLog(pc, (InsertLogInfo) info, UNDO);
-				} else {
-					doUpdateLog(pc, (UpdateLogInfo) info, UNDO);
+				Page page = getPage(pc, info.pageNo);
+				try {
+					doLog(page, info, UNDO);
+				} finally {
+					page.release();
 				}
 			}
 			tm.abort(e.getKey());
 		}
 	}
 	
+	/**
+	 * 并行重做的线程数可能超过缓存的页数，缓存已满时等待其他线程释放页面
+	 */
+	private static Page getPage(PageCache pc, int pageNo) {
+		while (true) {
+			try {
+				return pc.getPage(pageNo);
+			} catch (Exception e) {
+				if (e != Error.CacheFullException) {
+					Panic.panic(e);
+				}
+			}
+			Thread.yield();
+		}
+	}
+	
+	/**
+	 * 后台写线程在恢复期间同样运行，修改页面时需持有共享闩
+	 *
+	 * 数据在页内的位置会因整理而变化，日志按槽位记录，重做依赖页面LSN：
+	 * LSN不大于页面LSN的日志已反映在页面中，跳过；撤销总是执行，不修改页面LSN
+	 */
+	private static void doLog(Page page, LogInfo info, int flag) {
+		page.rLock();
+		try {
+			if (flag == REDO) {
+				if (info.lsn <= PageX.getLSN(page)) {
+					return;
+				}
+				PageX.setLSN(page, info.lsn);
+			}
+			
+			if (info instanceof InsertLogInfo) {
+				doInsertLog(page, (InsertLogInfo) info, flag);
+			} else if (info instanceof BatchInsertLogInfo) {
+				doBatchInsertLog(page, (BatchInsertLogInfo) info, flag);
+			} else if (info instanceof FreeLogInfo) {
+				doFreeLog(page, (FreeLogInfo) info, flag);
+			} else if (info instanceof MultiUpdateLogInfo) {
+				doMultiUpdateLog(page, (MultiUpdateLogInfo) info, flag);
+			} else {
+				doUpdateLog(page, (UpdateLogInfo) info, flag);
+			}
+		} finally {
+			page.rUnlock();
+		}
+	}
+	
 	private static boolean isInsertLog(byte[] log) {
 		return log[0] == LOG_TYPE_INSERT;
 	}
 	
+	private static boolean isBatchInsertLog(byte[] log) {
+		return log[0] == LOG_TYPE_BATCH_INSERT;
+	}
+	
+	private static boolean isFreeLog(byte[] log) {
+		return log[0] == LOG_TYPE_FREE;
+	}
+	
+	private static boolean isMultiUpdateLog(byte[] log) {
+		return log[0] == LOG_TYPE_MULTI_UPDATE;
+	}
+	
+	private static boolean isCheckpointLog(byte[] log) {
+		return log[0] == LOG_TYPE_CHECKPOINT;
+	}
+	
 	
-	// [logType: 1][xid: 8][pageNumber: 4][offset: 2][data]
+	// [logType: 1][xid: 8][pageNumber: 4][slot: 2][data]
 	private static final int OF_TYPE = 0;
 	private static final int OF_XID = OF_TYPE + 1;
 	private static final int OF_INSERT_PAGE = OF_XID + 8;
-	private static final int OF_INSERT_OFFSET = OF_INSERT_PAGE + 4;
-	private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
+	private static final int OF_INSERT_SLOT = OF_INSERT_PAGE + 4;
+	private static final int OF_INSERT_RAW = OF_INSERT_SLOT + 2;
 	
-	public static byte[] insertLog(long xid, Page page, byte[] raw) {
+	public static byte[] insertLog(long xid, int pageNo, short slot, byte[] raw) {
 		byte[] logType = {LOG_TYPE_INSERT};
 		byte[] xidRaw = Parser.long2Byte(xid);
-		byte[] pageNo = Parser.int2Byte(page.getPageNumber());
-		byte[] offset = Parser.short2Byte(PageX.getFSO(page));
+		byte[] pageNoRaw = Parser.int2Byte(pageNo);
+		byte[] slotRaw = Parser.short2Byte(slot);
 		
-		return Bytes.concat(logType, xidRaw, pageNo, offset, raw);
+		return Bytes.concat(logType, xidRaw, pageNoRaw, slotRaw, raw);
 	}
 	
 	private static InsertLogInfo parseInsertLog(byte[] log) {
 		InsertLogInfo logInfo = new InsertLogInfo();
 		logInfo.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PAGE));
-		logInfo.pageNo = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PAGE, OF_INSERT_OFFSET));
-		logInfo.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+		logInfo.pageNo = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PAGE, OF_INSERT_SLOT));
+		logInfo.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_SLOT, OF_INSERT_RAW));
 		logInfo.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
 		
 		return logInfo;
 	}
 	
-	private static void doInsertLog(PageCache pc, InsertLogInfo log, int flag) {
-		Page page = null;
+	private static void doInsertLog(Page page, InsertLogInfo log, int flag) {
+		if (flag == UNDO) {
+			DataItem.setDataItemRawInvalid(log.raw);
+		}
+		PageX.recoverInsert(page, log.raw, log.slot);
+	}
+	
+	
+	// [logType: 1][xid: 8][pageNumber: 4][count: 2]([slot: 2][length: 4][data])...
+	private static final int OF_BATCH_COUNT = OF_INSERT_PAGE + 4;
+	private static final int OF_BATCH_ITEMS = OF_BATCH_COUNT + 2;
+	
+	public static byte[] batchInsertLog(long xid, int pageNo, short[] slots, byte[][] raws) {
+		int size = OF_BATCH_ITEMS;
+		for (byte[] raw : raws) {
+			size += 2 + 4 + raw.length;
+		}
 		
-		try {
-			page = pc.getPage(log.pageNo);
-		} catch (Exception e) {
-			Panic.panic(e);
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.put(LOG_TYPE_BATCH_INSERT).putLong(xid).putInt(pageNo).putShort((short) slots.length);
+		for (int i = 0; i < slots.length; i++) {
+			buf.putShort(slots[i]).putInt(raws[i].length).put(raws[i]);
 		}
+		return buf.array();
+	}
+	
+	private static BatchInsertLogInfo parseBatchInsertLog(byte[] log) {
+		ByteBuffer buf = ByteBuffer.wrap(log, OF_XID, log.length - OF_XID);
+		BatchInsertLogInfo logInfo = new BatchInsertLogInfo();
+		logInfo.xid = buf.getLong();
+		logInfo.pageNo = buf.getInt();
 		
-		try {
+		int count = buf.getShort() & 0xFFFF;
+		logInfo.slots = new short[count];
+		logInfo.raws = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			logInfo.slots[i] = buf.getShort();
+			logInfo.raws[i] = new byte[buf.getInt()];
+			buf.get(logInfo.raws[i]);
+		}
+		return logInfo;
+	}
+	
+	private static void doBatchInsertLog(Page page, BatchInsertLogInfo log, int flag) {
+		for (int i = 0; i < log.slots.length; i++) {
 			if (flag == UNDO) {
-				DataItem.setDataItemRawInvalid(log.raw);
+				DataItem.setDataItemRawInvalid(log.raws[i]);
 			}
-			PageX.recoverInsert(page, log.raw, log.offset);
-		} finally {
-			page.release();
+			PageX.recoverInsert(page, log.raws[i], log.slots[i]);
+		}
+	}
+	
+	
+	// [logType: 1][xid: 8][pageNumber: 4][count: 2]([slot: 2])...
+	public static byte[] freeLog(long xid, int pageNo, short[] slots) {
+		ByteBuffer buf = ByteBuffer.allocate(OF_BATCH_ITEMS + slots.length * 2);
+		buf.put(LOG_TYPE_FREE).putLong(xid).putInt(pageNo).putShort((short) slots.length);
+		for (short slot : slots) {
+			buf.putShort(slot);
+		}
+		return buf.array();
+	}
+	
+	private static FreeLogInfo parseFreeLog(byte[] log) {
+		ByteBuffer buf = ByteBuffer.wrap(log, OF_XID, log.length - OF_XID);
+		FreeLogInfo logInfo = new FreeLogInfo();
+		logInfo.xid = buf.getLong();
+		logInfo.pageNo = buf.getInt();
+		
+		logInfo.slots = new short[buf.getShort() & 0xFFFF];
+		for (int i = 0; i < logInfo.slots.length; i++) {
+			logInfo.slots[i] = buf.getShort();
+		}
+		return logInfo;
+	}
+	
+	// 只有被回收的DataItem对所有事务都不可见时才会释放，释放不需要撤销
+	private static void doFreeLog(Page page, FreeLogInfo log, int flag) {
+		if (flag == REDO) {
+			PageX.recoverFree(page, log.slots);
 		}
 	}
 	
@@ -214,8 +443,8 @@ public class Recover {
 		UpdateLogInfo logInfo = new UpdateLogInfo();
 		logInfo.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
 		long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-		logInfo.offset = (short) (uid & ((1 << 16) - 1));
-		logInfo.pageNo = (int) ((uid >>> 32) & ((1L << 32) - 1));
+		logInfo.slot = Types.uidToSlot(uid);
+		logInfo.pageNo = Types.uidToPageNo(uid);
 		
 		int len = (log.length - OF_UPDATE_RAW) / 2;
 		logInfo.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + len);
@@ -224,9 +453,7 @@ public class Recover {
 		return logInfo;
 	}
 	
-	private static void doUpdateLog(PageCache pc, UpdateLogInfo log, int flag) {
-		int pageNo = log.pageNo;
-		short offset = log.offset;
+	private static void doUpdateLog(Page page, UpdateLogInfo log, int flag) {
 		byte[] raw;
 		
 		if (flag == REDO) {
@@ -235,19 +462,119 @@ public class Recover {
 			raw = log.oldRaw;
 		}
 		
-		Page page = null;
-		try {
-			page = pc.getPage(pageNo);
-		} catch (Exception e) {
-			Panic.panic(e);
+		PageX.recoverUpdate(page, raw, log.slot);
+	}
+	
+	
+	// [logType: 1][xid: 8][count: 2]([uid: 8][length: 4][oldData][newData])...
+	private static final int OF_MULTI_COUNT = OF_XID + 8;
+	
+	public static byte[] multiUpdateLog(long xid, DataItem[] items) {
+		int size = OF_MULTI_COUNT + 2;
+		for (DataItem di : items) {
+			size += 8 + 4 + 2 * di.getOldRaw().length;
 		}
 		
-		try {
-			PageX.recoverUpdate(page, raw, offset);
-		} finally {
-			page.release();
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.put(LOG_TYPE_MULTI_UPDATE).putLong(xid).putShort((short) items.length);
+		for (DataItem di : items) {
+			SubArray raw = di.getRaw();
+			buf.putLong(di.getUid()).putInt(di.getOldRaw().length).put(di.getOldRaw());
+			buf.put(raw.raw, raw.start, raw.end - raw.start);
 		}
+		return buf.array();
+	}
+	
+	private static List<LogInfo> parseMultiUpdateLog(byte[] log) {
+		ByteBuffer buf = ByteBuffer.wrap(log, OF_XID, log.length - OF_XID);
+		long xid = buf.getLong();
+		int count = buf.getShort() & 0xFFFF;
+		
+		Map<Integer, MultiUpdateLogInfo> pages = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) {
+			long uid = buf.getLong();
+			byte[] oldRaw = new byte[buf.getInt()];
+			buf.get(oldRaw);
+			byte[] newRaw = new byte[oldRaw.length];
+			buf.get(newRaw);
+			
+			MultiUpdateLogInfo logInfo = pages.computeIfAbsent(Types.uidToPageNo(uid), pageNo -> {
+				MultiUpdateLogInfo info = new MultiUpdateLogInfo();
+				info.xid = xid;
+				info.pageNo = pageNo;
+				return info;
+			});
+			logInfo.slots.add(Types.uidToSlot(uid));
+			logInfo.oldRaws.add(oldRaw);
+			logInfo.newRaws.add(newRaw);
+		}
+		return new ArrayList<>(pages.values());
+	}
+	
+	private static void doMultiUpdateLog(Page page, MultiUpdateLogInfo log, int flag) {
+		if (flag == REDO) {
+			for (int i = 0; i < log.slots.size(); i++) {
+				PageX.recoverUpdate(page, log.newRaws.get(i), log.slots.get(i));
+			}
+		} else {
+			for (int i = log.slots.size() - 1; i >= 0; i--) {
+				PageX.recoverUpdate(page, log.oldRaws.get(i), log.slots.get(i));
+			}
+		}
+	}
+	
+	
+	// [logType: 1][lsn: 8][pageNumber: 4][activeCount: 4][xid: 8, firstLsn: 8]...[dirtyCount: 4][pageNo: 4, recLsn: 8]...
+	private static final int OF_CHECKPOINT_LSN = OF_TYPE + 1;
+	private static final int OF_CHECKPOINT_PAGES = OF_CHECKPOINT_LSN + 8;
+	private static final int OF_CHECKPOINT_ACTIVE = OF_CHECKPOINT_PAGES + 4;
+	
+	public static byte[] checkpointLog(long lsn, int pageNumber, Map<Long, Long> active, Map<Integer, Long> dirty) {
+		ByteBuffer buf = ByteBuffer.allocate(OF_CHECKPOINT_ACTIVE + 4 + active.size() * 16 + 4 + dirty.size() * 12);
+		buf.put(LOG_TYPE_CHECKPOINT).putLong(lsn).putInt(pageNumber);
+		
+		buf.putInt(active.size());
+		for (Map.Entry<Long, Long> e : active.entrySet()) {
+			buf.putLong(e.getKey()).putLong(e.getValue());
+		}
+		
+		buf.putInt(dirty.size());
+		for (Map.Entry<Integer, Long> e : dirty.entrySet()) {
+			buf.putInt(e.getKey()).putLong(e.getValue());
+		}
+		
+		return buf.array();
+	}
+	
+	private static CheckpointLogInfo parseCheckpointLog(byte[] log) {
+		CheckpointLogInfo logInfo = new CheckpointLogInfo();
+		logInfo.lsn = Parser.parseLong(Arrays.copyOfRange(log, OF_CHECKPOINT_LSN, OF_CHECKPOINT_PAGES));
+		logInfo.pageNumber = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKPOINT_PAGES, OF_CHECKPOINT_ACTIVE));
+		
+		int pos = OF_CHECKPOINT_ACTIVE;
+		int activeCount = Parser.parseInt(Arrays.copyOfRange(log, pos, pos + 4));
+		pos += 4;
+		logInfo.activeTransactions = new HashMap<>();
+		for (int i = 0; i < activeCount; i++) {
+			long xid = Parser.parseLong(Arrays.copyOfRange(log, pos, pos + 8));
+			long firstLsn = Parser.parseLong(Arrays.copyOfRange(log, pos + 8, pos + 16));
+			logInfo.activeTransactions.put(xid, firstLsn);
+			pos += 16;
+		}
+		
+		int dirtyCount = Parser.parseInt(Arrays.copyOfRange(log, pos, pos + 4));
+		pos += 4;
+		logInfo.dirtyPages = new HashMap<>();
+		for (int i = 0; i < dirtyCount; i++) {
+			int pageNo = Parser.parseInt(Arrays.copyOfRange(log, pos, pos + 4));
+			long recLsn = Parser.parseLong(Arrays.copyOfRange(log, pos + 4, pos + 12));
+			logInfo.dirtyPages.put(pageNo, recLsn);
+			pos += 12;
+		}
+		
+		return logInfo;
 	}
 	
 	
 }
+	
\ No newline at end of file
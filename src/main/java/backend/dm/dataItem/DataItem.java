@@ -3,6 +3,7 @@ package backend.dm.dataItem;
 import backend.common.SubArray;
 import backend.dm.DataManagerImpl;
 import backend.dm.page.Page;
+import backend.dm.page.PageX;
 import backend.utils.Parser;
 import backend.utils.Types;
 import com.google.common.primitives.Bytes;
@@ -26,15 +27,46 @@ public interface DataItem {
 	void rLock();
 	void rUnlock();
 	
+	/**
+	 * 乐观读：返回当前版本，正在修改时返回-1
+	 * 不加锁读取数据后，用validate检查期间是否有修改，有修改时读到的数据可能不一致
+	 */
+	long tryOptimisticRead();
+	boolean validate(long version);
+	
 	Page page();
 	long getUid();
 	byte[] getOldRaw();
 	SubArray getRaw();
 	
+	/**
+	 * 同时结束多个DataItem的修改，所有修改记在同一条日志中，崩溃后不会只重做其中一部分
+	 * 各DataItem须来自同一个DataManager，且都已调用before
+	 */
+	static void afterAll(long xid, DataItem... items) {
+		DataItemImpl.afterAll(xid, items);
+	}
+	
 	static void setDataItemRawInvalid(byte[] raw) {
 		raw[DataItemImpl.OF_VALID] = 1;
 	}
 	
+	static void setDataItemRawInvalid(SubArray raw) {
+		raw.raw[raw.start + DataItemImpl.OF_VALID] = 1;
+	}
+	
+	static boolean isDataItemRawValid(byte[] raw, int offset) {
+		return raw[offset + DataItemImpl.OF_VALID] == 0;
+	}
+	
+	/**
+	 * 页面raw中offset处DataItem的总长度
+	 */
+	static int getDataItemRawLength(byte[] raw, int offset) {
+		short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA));
+		return size + DataItemImpl.OF_DATA;
+	}
+	
 	/**
 	 * 结构：[valid: 1][dataSize: 2][data]
 	 * valid 0为合法，1为非法
@@ -47,16 +79,16 @@ public interface DataItem {
 	}
 	
 	/**
-	 *
-	 * 解析出页面page在offset处的DataItem
+	 * 解析出页面page中slot槽位的DataItem，调用者保证槽位正在使用
 	 */
-	static DataItem parseDataItem(Page page, short offset, DataManagerImpl dm) {
+	static DataItem parseDataItem(Page page, short slot, DataManagerImpl dm) {
 		byte[] raw = page.getData();
-		short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA));
-		int len = size + DataItemImpl.OF_DATA;
-		long uid = Types.addressToUid(page.getPageNumber(), offset);
+		int offset = PageX.getOffset(page, slot);
+		int len = getDataItemRawLength(raw, offset);
+		long uid = Types.addressToUid(page.getPageNumber(), slot);
 		
-		return new DataItemImpl(new SubArray(raw, offset, offset + len), new byte[len], page, uid, dm);
+		return new DataItemImpl(new SubArray(raw, offset, offset + len), page, uid, dm);
 	}
 	
 }
+	
\ No newline at end of file
@@ -10,6 +10,7 @@ import backend.dm.DataManager;
 import backend.dm.DataManagerImpl;
 import backend.dm.page.Page;
 
+import java.lang.invoke.VarHandle;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -25,16 +26,18 @@ public class DataItemImpl implements DataItem {
 	public static final int OF_DATA = 3;
 	
 	private SubArray raw;
+	// 修改前的数据，第一次修改时才分配，只读的DataItem不需要
 	private byte[] oldRaw;
 	private Lock rLock;
 	private Lock wLock;
+	// 修改计数，before时加1成为奇数，after/unBefore时再加1恢复为偶数，只在持有wLock时修改
+	private volatile long version;
 	private long uid;
 	private Page page;
 	private DataManagerImpl dm;
 	
-	public DataItemImpl(SubArray raw, byte[] oldRaw, Page page, long uid, DataManagerImpl dm) {
+	public DataItemImpl(SubArray raw, Page page, long uid, DataManagerImpl dm) {
 		this.raw = raw;
-		this.oldRaw = oldRaw;
 		this.page = page;
 		this.uid = uid;
 		this.dm = dm;
@@ -52,22 +55,47 @@ public class DataItemImpl implements DataItem {
 		return new SubArray(raw.raw, raw.start + OF_DATA, raw.end);
 	}
 	
+	/**
+	 * 从before到after/unBefore期间持有页面的共享闩，防止页面在记日志之前被写回
+	 */
 	@Override
 	public void before() {
 		wLock.lock();
+		version++;
+		// 之后对数据的修改不能重排到版本变为奇数之前
+		VarHandle.releaseFence();
+		page.rLock();
 		page.setDirty(true);
+		if (oldRaw == null) {
+			oldRaw = new byte[raw.end - raw.start];
+		}
 		System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
 	}
 	
 	@Override
 	public void unBefore() {
 		System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+		version++;
+		page.rUnlock();
 		wLock.unlock();
 	}
 	
 	@Override
 	public void after(long xid) {
 		dm.logDataItem(xid, this);
+		unlockAfterLogged();
+	}
+	
+	static void afterAll(long xid, DataItem[] items) {
+		((DataItemImpl) items[0]).dm.logDataItems(xid, items);
+		for (DataItem di : items) {
+			((DataItemImpl) di).unlockAfterLogged();
+		}
+	}
+	
+	private void unlockAfterLogged() {
+		version++;
+		page.rUnlock();
 		wLock.unlock();
 	}
 	
@@ -96,6 +124,19 @@ public class DataItemImpl implements DataItem {
 		rLock.unlock();
 	}
 	
+	@Override
+	public long tryOptimisticRead() {
+		long v = version;
+		return (v & 1) == 0 ? v : -1;
+	}
+	
+	@Override
+	public boolean validate(long version) {
+		// 之前对数据的读取不能重排到再次读取版本之后
+		VarHandle.acquireFence();
+		return this.version == version;
+	}
+	
 	@Override
 	public Page page() {
 		return page;
@@ -1,81 +1,59 @@
 package backend.dm.logger;
 
 import backend.utils.Panic;
-import backend.utils.Parser;
 import common.Error;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.List;
 
 /**
  * @date 2023/12/3
  * @package backend.dm.logger
  */
 public interface Logger {
-	void log(byte[] data);
+	// 返回日志的LSN，与恢复时读取该日志之前的position()一致
+	long log(byte[] data);
+	// 与log相同，但不等待日志持久化，需要时调用flush
+	long append(byte[] data);
 	void truncate(long x) throws Exception;
 	byte[] next();
 	void rewind();
 	void close();
 	
+	// 将已写入的日志force到磁盘
+	void flush();
+	
+	// 当前日志末尾，即下一条日志的LSN
+	long lsn();
+	
+	// 下一次next()读取的日志的LSN
+	long position();
+	
+	// 回收所有日志都在lsn之前的日志段
+	void recycle(long lsn);
+	
 	static Logger create(String path) {
-		File f = new File(path + LoggerImpl.LOG_SUFFIX);
-		try {
-			if(!f.createNewFile()) {
-				Panic.panic(Error.FileExistsException);
-			}
-		} catch (Exception e) {
-			Panic.panic(e);
-		}
-		if(!f.canRead() || !f.canWrite()) {
-			Panic.panic(Error.FileCannotRWException);
+		if (!LoggerImpl.listSegments(path).isEmpty() || LoggerImpl.hasOldLog(path)) {
+			Panic.panic(Error.FileExistsException);
 		}
 		
-		FileChannel fc = null;
-		RandomAccessFile raf = null;
-		try {
-			raf = new RandomAccessFile(f, "rw");
-			fc = raf.getChannel();
-		} catch (FileNotFoundException e) {
-			Panic.panic(e);
-		}
+		LoggerImpl lg = new LoggerImpl(path);
+		lg.create();
 		
-		ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-		try {
-			fc.position(0);
-			fc.write(buf);
-			fc.force(false);
-		} catch (IOException e) {
-			Panic.panic(e);
-		}
-		
-		return new LoggerImpl(raf, fc, 0);
+		return lg;
 	}
 	
 	static Logger open(String path) {
-		File f = new File(path+LoggerImpl.LOG_SUFFIX);
-		if(!f.exists()) {
-			Panic.panic(Error.FileNotExistsException);
+		// 旧版本的日志记录格式不同，无法迁移，须先用旧版本正常关闭数据库
+		if (LoggerImpl.hasOldLog(path)) {
+			Panic.panic(Error.OldLogFormatException);
 		}
-		if(!f.canRead() || !f.canWrite()) {
-			Panic.panic(Error.FileCannotRWException);
-		}
-		
-		FileChannel fc = null;
-		RandomAccessFile raf = null;
-		try {
-			raf = new RandomAccessFile(f, "rw");
-			fc = raf.getChannel();
-		} catch (FileNotFoundException e) {
-			Panic.panic(e);
+		List<Long> bases = LoggerImpl.listSegments(path);
+		if (bases.isEmpty()) {
+			Panic.panic(Error.FileNotExistsException);
 		}
 		
-		LoggerImpl lg = new LoggerImpl(raf, fc);
-		lg.init();
+		LoggerImpl lg = new LoggerImpl(path);
+		lg.init(bases);
 		
 		return lg;
 	}
@@ -10,201 +10,553 @@ import backend.utils.Parser;
 import com.google.common.primitives.Bytes;
 import common.Error;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 /**
- * 日志文件读写
- * 日志标准格式：
- * [XCheckSum][log1][log2]...[logn]([BadTail])
- * XCheckSum int
+ * 分段日志
+ * 日志由若干段文件组成，文件名为 [path].log.[baseLsn]，baseLsn为该段段头的LSN
+ * LSN为全局偏移，下一个段的baseLsn等于上一个段的baseLsn加上其长度
+ *
+ * 段格式：
+ * [baseLsn][log1][log2]...[logn]([BadTail])
+ * baseLsn 8字节long，用于校验文件名
  *
  * 每条日志格式：
  * [size][checkSum][data]
  * size标识data长度
- * checkSum 4字节int
+ * checkSum 4字节int，为size与data的CRC32C
+ *
+ * 每条日志独立校验，写满的段在切换前已force，只有最后一个段可能存在bad tail，
+ * 因此打开时只需检查最后一个段
+ *
+ * 组提交：
+ * 调用log的线程只把日志追加到内存缓冲区，由单独的刷盘线程把缓冲区中的整批日志
+ * 一次性写入文件并force，调用者只阻塞到自己那条日志持久化为止
  */
 public class LoggerImpl implements Logger {
 	
-	private static final int SEED = 13331;
-	
 	private static final int OF_SIZE = 0;
 	private static final int OF_CHECKSUM = OF_SIZE + 4;
 	private static final int OF_DATA = OF_CHECKSUM + 4;
 	
 	public static final String LOG_SUFFIX = ".log";
 	
-	private RandomAccessFile file;
-	private FileChannel fc;
+	// 段大小上限，单条日志不会跨段
+	static final long SEGMENT_SIZE = 16 << 20;
+	static final int HEADER_SIZE = 8;
+	
+	private static class Segment {
+		long base;
+		File file;
+		RandomAccessFile raf;
+		FileChannel fc;
+		
+		// 段内已写入的字节数，包含段头
+		volatile long length;
+	}
+	
+	private String path;
 	private Lock lock = new ReentrantLock();
 	
+	// 缓冲区非空时唤醒刷盘线程
+	private Condition pending = lock.newCondition();
+	// 一批日志持久化后唤醒等待者
+	private Condition flushed = lock.newCondition();
+	
+	private TreeMap<Long, Segment> segments = new TreeMap<>();
+	// 正在写入的段，只由刷盘线程切换
+	private Segment tail;
+	
 	// 当前日志指针的位置
 	private long position;
 	
-	// 初始化时记录，log操作不会更新
-	private long fileSize;
+	// 等待刷盘的日志
+	private List<byte[]> buffer = new ArrayList<>();
+	// 下一条日志所在段的baseLsn
+	private long tailBase;
+	// 下一条日志的LSN
+	private long end;
+	// 已持久化的日志末尾
+	private long durable;
 	
-	private int xCheckSum;
+	private Thread flusher;
+	private boolean closed;
 	
-	public LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-		file = raf;
-		this.fc = fc;
+	LoggerImpl(String path) {
+		this.path = path;
 	}
 	
-	public LoggerImpl(RandomAccessFile raf, FileChannel fc, int xCheckSum) {
-		this(raf, fc);
-		this.xCheckSum = xCheckSum;
+	static File segmentFile(String path, long base) {
+		return new File(path + LOG_SUFFIX + "." + String.format("%020d", base));
 	}
 	
-	void init() {
-		long size = 0;
+	/**
+	 * 旧版本的日志是单个文件 [path].log
+	 */
+	static boolean hasOldLog(String path) {
+		return new File(path + LOG_SUFFIX).exists();
+	}
+	
+	/**
+	 * 列出path下所有日志段的baseLsn，按升序排列
+	 */
+	static List<Long> listSegments(String path) {
+		File f = new File(path).getAbsoluteFile();
+		String prefix = f.getName() + LOG_SUFFIX + ".";
+		String[] names = f.getParentFile().list();
+		
+		List<Long> bases = new ArrayList<>();
+		if (names == null) {
+			return bases;
+		}
+		
+		for (String name : names) {
+			if (!name.startsWith(prefix)) {
+				continue;
+			}
+			String suffix = name.substring(prefix.length());
+			if (suffix.isEmpty() || !suffix.chars().allMatch(Character::isDigit)) {
+				continue;
+			}
+			bases.add(Long.parseLong(suffix));
+		}
+		bases.sort(null);
+		
+		return bases;
+	}
+	
+	void create() {
+		tail = newSegment(0);
+		tailBase = 0;
+		end = durable = HEADER_SIZE;
+		rewind();
+		startFlusher();
+	}
+	
+	void init(List<Long> bases) {
+		Segment prev = null;
+		for (long base : bases) {
+			Segment seg = openSegment(base);
+			
+			// 段必须首尾相接
+			if (prev != null && prev.base + prev.length != base) {
+				Panic.panic(Error.BadLogFileException);
+			}
+			segments.put(base, seg);
+			prev = seg;
+		}
+		
+		checkAndRemoveTail();
+		rewind();
+		startFlusher();
+	}
+	
+	private Segment openSegment(long base) {
+		File f = segmentFile(path, base);
+		if (!f.canRead() || !f.canWrite()) {
+			Panic.panic(Error.FileCannotRWException);
+		}
+		
+		Segment seg = new Segment();
+		seg.base = base;
+		seg.file = f;
 		try {
-			size = file.length();
+			seg.raf = new RandomAccessFile(f, "rw");
+			seg.fc = seg.raf.getChannel();
+			seg.length = seg.raf.length();
 		} catch (IOException e) {
 			Panic.panic(e);
 		}
 		
-		// 大小连XCheckSum都不够
-		if (size < 4) {
-			Panic.panic(Error.BadLogFileException);
+		return seg;
+	}
+	
+	private Segment newSegment(long base) {
+		File f = segmentFile(path, base);
+		try {
+			if (!f.createNewFile()) {
+				Panic.panic(Error.FileExistsException);
+			}
+		} catch (IOException e) {
+			Panic.panic(e);
+		}
+		
+		Segment seg = openSegment(base);
+		writeHeader(seg);
+		
+		lock.lock();
+		try {
+			segments.put(base, seg);
+		} finally {
+			lock.unlock();
+		}
+		
+		return seg;
+	}
+	
+	private void writeHeader(Segment seg) {
+		try {
+			seg.fc.write(ByteBuffer.wrap(Parser.long2Byte(seg.base)), 0);
+			seg.fc.force(false);
+		} catch (IOException e) {
+			Panic.panic(e);
+		}
+		seg.length = HEADER_SIZE;
+	}
+	
+	private boolean checkHeader(Segment seg) {
+		if (seg.length < HEADER_SIZE) {
+			return false;
 		}
 		
-		ByteBuffer buf = ByteBuffer.allocate(4);
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
 		try {
-			fc.position(0);
-			fc.read(buf);
+			seg.fc.read(buf, 0);
 		} catch (IOException e) {
 			Panic.panic(e);
 		}
 		
-		fileSize = size;
-		xCheckSum = Parser.parseInt(buf.array());
-		checkAndRemoveTail();
+		return Parser.parseLong(buf.array()) == seg.base;
 	}
 	
 	/**
-	 * 检查并移除bad tail
+	 * 检查并移除bad tail，只需扫描最后一个段
 	 */
 	private void checkAndRemoveTail() {
-		rewind();
-		
-		int check = 0;
-		byte[] log;
+		Segment last = segments.lastEntry().getValue();
+		for (Segment seg : segments.headMap(last.base).values()) {
+			if (!checkHeader(seg)) {
+				Panic.panic(Error.BadLogFileException);
+			}
+		}
 		
-		while ((log = internNext()) != null) {
-			check = calCheckSum(check, log);
+		if (!checkHeader(last)) {
+			// 创建段时崩溃，段内不可能有已持久化的日志
+			if (segments.size() == 1) {
+				writeHeader(last);
+			} else {
+				segments.remove(last.base);
+				closeSegment(last);
+				last.file.delete();
+				last = segments.lastEntry().getValue();
+			}
 		}
 		
-		if (check != xCheckSum) {
-			Panic.panic(Error.BadLogFileException);
+		long off = HEADER_SIZE;
+		byte[] log;
+		while ((log = readLog(last, off)) != null) {
+			off += log.length;
 		}
 		
 		try {
-			truncate(position);
-			file.seek(position);
-		} catch (Exception e) {
+			last.fc.truncate(off);
+			last.fc.force(false);
+		} catch (IOException e) {
 			Panic.panic(e);
 		}
+		last.length = off;
 		
-		rewind();
+		tail = last;
+		tailBase = last.base;
+		end = durable = last.base + last.length;
+	}
+	
+	private void startFlusher() {
+		flusher = new Thread(this::flushLoop, "log-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+	
+	/**
+	 * 当前段放不下这条日志时切换到新段，空段总能放下一条日志
+	 */
+	private static boolean needRoll(long base, long pos, int len) {
+		return pos - base > HEADER_SIZE && pos - base + len > SEGMENT_SIZE;
+	}
+	
+	/**
+	 * 刷盘线程：取走缓冲区中的整批日志，写入文件后只force一次
+	 * 写盘期间新到达的日志进入下一批
+	 */
+	private void flushLoop() {
+		while (true) {
+			List<byte[]> batch;
+			
+			lock.lock();
+			try {
+				while (buffer.isEmpty() && !closed) {
+					pending.awaitUninterruptibly();
+				}
+				if (buffer.isEmpty()) {
+					return;
+				}
+				
+				batch = buffer;
+				buffer = new ArrayList<>();
+			} finally {
+				lock.unlock();
+			}
+			
+			// 与log()使用相同的规则切换段，保证双方计算出的LSN一致
+			Segment seg = tail;
+			long pos = seg.base + seg.length;
+			List<byte[]> chunk = new ArrayList<>();
+			
+			for (byte[] log : batch) {
+				if (needRoll(seg.base, pos, log.length)) {
+					// 旧段force后才创建新段，保证只有最后一个段可能存在bad tail
+					write(seg, chunk);
+					chunk.clear();
+					seg = newSegment(pos);
+					tail = seg;
+					pos += HEADER_SIZE;
+				}
+				chunk.add(log);
+				pos += log.length;
+			}
+			write(seg, chunk);
+			
+			lock.lock();
+			try {
+				durable = pos;
+				flushed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
 	}
 	
-	private void updateXCheckSum(byte[] log) {
-		xCheckSum = calCheckSum(xCheckSum, log);
+	private void write(Segment seg, List<byte[]> logs) {
+		if (logs.isEmpty()) {
+			return;
+		}
+		
+		byte[] raw = Bytes.concat(logs.toArray(new byte[0][]));
 		try {
-			fc.position(0);
-			fc.write(ByteBuffer.wrap(Parser.int2Byte(xCheckSum)));
-			fc.force(false);
+			seg.fc.write(ByteBuffer.wrap(raw), seg.length);
+			seg.fc.force(false);
 		} catch (IOException e) {
 			Panic.panic(e);
 		}
+		seg.length += raw.length;
 	}
 	
 	private byte[] wrapLog(byte[] data) {
-		byte[] checkSum = Parser.int2Byte(calCheckSum(0, data));
 		byte[] size = Parser.int2Byte(data.length);
+		byte[] checkSum = Parser.int2Byte(calCheckSum(size, data));
 		return Bytes.concat(size, checkSum, data);
 	}
 	
 	@Override
-	public void log(byte[] data) {
+	public long log(byte[] data) {
+		return append(data, true);
+	}
+	
+	@Override
+	public long append(byte[] data) {
+		return append(data, false);
+	}
+	
+	private long append(byte[] data, boolean durable) {
 		byte[] log = wrapLog(data);
-		ByteBuffer buf = ByteBuffer.wrap(log);
 		
 		lock.lock();
 		try {
-			fc.position(fc.size());
-			fc.write(buf);
-		} catch (IOException e) {
-			Panic.panic(e);
+			long lsn = end;
+			if (needRoll(tailBase, end, log.length)) {
+				tailBase = end;
+				end += HEADER_SIZE;
+			}
+			buffer.add(log);
+			end += log.length;
+			pending.signal();
+			if (durable) {
+				awaitDurable(end);
+			}
+			return lsn;
 		} finally {
 			lock.unlock();
 		}
-		
-		updateXCheckSum(log);
+	}
+	
+	// 需持有lock
+	private void awaitDurable(long lsn) {
+		while (durable < lsn) {
+			flushed.awaitUninterruptibly();
+		}
 	}
 	
+	@Override
+	public void flush() {
+		lock.lock();
+		try {
+			awaitDurable(end);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public long lsn() {
+		lock.lock();
+		try {
+			return end;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public long position() {
+		return position;
+	}
+	
+	/**
+	 * 截断到LSN x，x之后的段被删除
+	 * x落在段头内（或在第一个段之前）时截断到段头之后，段头保留
+	 */
 	@Override
 	public void truncate(long x) throws Exception {
 		lock.lock();
 		try {
-			fc.truncate(x);
+			flush();
+			
+			Map.Entry<Long, Segment> floor = segments.floorEntry(x);
+			Segment seg = floor != null ? floor.getValue() : segments.firstEntry().getValue();
+			x = Math.max(x, seg.base + HEADER_SIZE);
+			seg.fc.truncate(x - seg.base);
+			seg.length = x - seg.base;
+			
+			while (segments.lastKey() != seg.base) {
+				Segment last = segments.pollLastEntry().getValue();
+				closeSegment(last);
+				last.file.delete();
+			}
+			
+			tail = seg;
+			tailBase = seg.base;
+			end = durable = x;
 		} finally {
 			lock.unlock();
 		}
 	}
 	
-	private int calCheckSum(int xCheck, byte[] log) {
-		for (byte b : log) {
-			xCheck = xCheck * SEED + b;
+	/**
+	 * 删除所有日志都在lsn之前的段，正在写入的段不会被删除
+	 */
+	@Override
+	public void recycle(long lsn) {
+		lock.lock();
+		try {
+			while (segments.size() > 1) {
+				Map.Entry<Long, Segment> first = segments.firstEntry();
+				if (segments.higherKey(first.getKey()) > lsn) {
+					break;
+				}
+				
+				segments.pollFirstEntry();
+				closeSegment(first.getValue());
+				first.getValue().file.delete();
+			}
+		} finally {
+			lock.unlock();
 		}
-		
-		return xCheck;
 	}
 	
-	private byte[] internNext() {
-		if (position + OF_DATA >= fileSize) {
+	private int calCheckSum(byte[] size, byte[] data) {
+		CRC32C crc = new CRC32C();
+		crc.update(size);
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+	
+	/**
+	 * 读取段内偏移off处的一条日志，日志不完整或校验失败时返回null
+	 */
+	private byte[] readLog(Segment seg, long off) {
+		if (off + OF_DATA > seg.length) {
 			return null;
 		}
 		
 		ByteBuffer tmp = ByteBuffer.allocate(4);
 		try {
-			fc.position(position);
-			fc.read(tmp);
+			seg.fc.read(tmp, off);
 		} catch (IOException e) {
 			Panic.panic(e);
 		}
 		
 		int size = Parser.parseInt(tmp.array());
-		if (position + OF_DATA + size > fileSize) {
+		if (size <= 0 || off + OF_DATA + size > seg.length) {
 			return null;
 		}
 		
 		ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
 		try {
-			fc.position(position);
-			fc.read(buf);
+			seg.fc.read(buf, off);
 		} catch (IOException e) {
 			Panic.panic(e);
 		}
 		
 		byte[] log = buf.array();
-		int checkSum1 = calCheckSum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-		int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+		CRC32C crc = new CRC32C();
+		crc.update(log, OF_SIZE, 4);
+		crc.update(log, OF_DATA, size);
+		int checkSum = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
 		
-		if (checkSum1 != checkSum2) {
+		if ((int) crc.getValue() != checkSum) {
 			return null;
 		}
 		
-		position += log.length;
 		return log;
 	}
 	
+	private byte[] internNext() {
+		while (true) {
+			Map.Entry<Long, Segment> e = segments.floorEntry(position);
+			if (e == null) {
+				return null;
+			}
+			
+			Segment seg = e.getValue();
+			long off = position - seg.base;
+			// 上一个段读完时指针位于本段段头
+			if (off < HEADER_SIZE) {
+				position = seg.base + HEADER_SIZE;
+				continue;
+			}
+
+			byte[] log = readLog(seg, off);
+			if (log != null) {
+				position += log.length;
+				return log;
+			}
+			
+			Map.Entry<Long, Segment> next = segments.higherEntry(seg.base);
+			if (next == null) {
+				return null;
+			}
+			
+			// 已写满的段中不应出现坏日志
+			if (off != seg.length) {
+				Panic.panic(Error.BadLogFileException);
+			}
+			position = next.getKey() + HEADER_SIZE;
+		}
+	}
+	
 	@Override
 	public byte[] next() {
 		lock.lock();
@@ -221,16 +573,36 @@ public class LoggerImpl implements Logger {
 	
 	@Override
 	public void rewind() {
-		position = 4;
+		position = segments.firstKey() + HEADER_SIZE;
+	}
+	
+	private void closeSegment(Segment seg) {
+		try {
+			seg.fc.close();
+			seg.raf.close();
+		} catch (IOException e) {
+			Panic.panic(e);
+		}
 	}
 	
 	@Override
 	public void close() {
+		lock.lock();
 		try {
-			fc.close();
-			file.close();
-		} catch (IOException e) {
+			closed = true;
+			pending.signal();
+		} finally {
+			lock.unlock();
+		}
+		
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
 			Panic.panic(e);
 		}
+		
+		for (Segment seg : segments.values()) {
+			closeSegment(seg);
+		}
 	}
 }
@@ -7,6 +7,17 @@ package backend.dm.page;
 public interface Page {
 	void lock();
 	void unlock();
+	
+	/**
+	 * 修改闩：修改页面数据的线程持有共享闩，写回线程持有排他闩后复制页面
+	 * 保证写回的页面不处于"已修改但未记日志"的中间状态
+	 */
+	void rLock();
+	void rUnlock();
+	void wLock();
+	boolean tryWLock();
+	void wUnlock();
+	
 	void release();
 	void setDirty(boolean dirty);
 	boolean isDirty();
@@ -1,9 +1,12 @@
 package backend.dm.page;
 
 import backend.dm.pageCache.PageCache;
+import backend.dm.pageCache.PageCacheImpl;
 
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @date 2023/12/2
@@ -11,9 +14,10 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class PageImpl implements Page {
 	private int pageNumber;
-	private boolean dirty;
+	private volatile boolean dirty;
 	private byte[] data;
 	private Lock lock = new ReentrantLock();
+	private ReadWriteLock latch = new ReentrantReadWriteLock();
 	
 	private PageCache pc;
 	
@@ -33,6 +37,31 @@ public class PageImpl implements Page {
 		lock.unlock();
 	}
 	
+	@Override
+	public void rLock() {
+		latch.readLock().lock();
+	}
+	
+	@Override
+	public void rUnlock() {
+		latch.readLock().unlock();
+	}
+	
+	@Override
+	public void wLock() {
+		latch.writeLock().lock();
+	}
+	
+	@Override
+	public boolean tryWLock() {
+		return latch.writeLock().tryLock();
+	}
+	
+	@Override
+	public void wUnlock() {
+		latch.writeLock().unlock();
+	}
+	
 	@Override
 	public void release() {
 		pc.release(this);
@@ -41,6 +70,9 @@ public class PageImpl implements Page {
 	@Override
 	public void setDirty(boolean dirty) {
 		this.dirty = dirty;
+		if (dirty && pc != null) {
+			((PageCacheImpl) pc).markDirty(pageNumber);
+		}
 	}
 	
 	@Override
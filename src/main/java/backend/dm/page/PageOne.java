@@ -6,6 +6,7 @@ package backend.dm.page;
  */
 
 import backend.dm.pageCache.PageCache;
+import backend.utils.Parser;
 import backend.utils.RandomUtil;
 
 import java.util.Arrays;
@@ -14,17 +15,28 @@ import java.util.Arrays;
  * 特殊管理页
  * db启动时在100-107字节处插入一个随机数，db关闭时，将其拷贝到108-115
  * 检验上次数据库是否正常关闭
+ * 116-119字节为数据页的格式版本，创建时写入，打开时拒绝其他版本的文件
  */
 public class PageOne {
 	private static final int OF_VC = 100;
 	private static final int LEN_VC = 8;
+	private static final int OF_FORMAT = OF_VC + 2 * LEN_VC;
+	
+	// 1: 槽页，页头带LSN（旧格式的文件此处为0）
+	public static final int FORMAT_VERSION = 1;
 	
 	public static byte[] initRaw() {
 		byte[] raw = new byte[PageCache.PAGE_SIZE];
 		setVcOpen(raw);
+		System.arraycopy(Parser.int2Byte(FORMAT_VERSION), 0, raw, OF_FORMAT, 4);
 		return raw;
 	}
 	
+	public static boolean checkFormat(Page page) {
+		byte[] raw = page.getData();
+		return Parser.parseInt(Arrays.copyOfRange(raw, OF_FORMAT, OF_FORMAT + 4)) == FORMAT_VERSION;
+	}
+	
 	public static void setVcOpen(Page page) {
 		page.setDirty(true);
 		setVcOpen(page.getData());
@@ -6,69 +6,275 @@ package backend.dm.page;
  */
 
 import backend.dm.pageCache.PageCache;
+import backend.utils.Panic;
 import backend.utils.Parser;
+import common.Error;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
 
 /**
- * 正常页结构
- * [FSO(Free Space Offset)][Data]
- * FSO: 2字节
+ * 正常页结构（槽页）
+ * [LSN: 8][SlotCount: 2][DataStart: 2][Fragmented: 2][Slot0][Slot1]...[空闲空间]...[Data]
+ * Slot: [Offset: 2][Length: 2]，Offset为0表示空闲槽位
+ *
+ * LSN：最后一条作用于本页的日志，恢复时只重做LSN更大的日志
+ * 槽位目录从页头向后增长，数据从页尾向前增长，两者之间为连续的空闲空间
+ * Fragmented：数据区中已释放但尚未整理的字节数
+ *
+ * uid指向(页号, 槽号)，整理数据区只修改槽位中的Offset，uid保持不变
+ * 页内结构（槽位目录、DataStart、整理）的修改需持有页面的lock
  */
 public class PageX {
 	
-	private static final short OF_FREE = 0;
-	private static final short OF_DATA = 2;
-	public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+	private static final short OF_LSN = 0;
+	private static final short OF_SLOT_COUNT = OF_LSN + 8;
+	private static final short OF_DATA_START = OF_SLOT_COUNT + 2;
+	private static final short OF_FRAGMENTED = OF_DATA_START + 2;
+	private static final short OF_SLOTS = OF_FRAGMENTED + 2;
+	
+	private static final int SLOT_SIZE = 4;
+	
+	public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_SLOTS - SLOT_SIZE;
 	
 	public static byte[] initRaw() {
 		byte[] raw = new byte[PageCache.PAGE_SIZE];
-		setFSO(raw, OF_DATA);
+		setShort(raw, OF_DATA_START, PageCache.PAGE_SIZE);
 		return raw;
 	}
 	
-	public static void setFSO(byte[] raw, short ofData) {
-		System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+	private static int getShort(byte[] raw, int offset) {
+		return Parser.parseShort(Arrays.copyOfRange(raw, offset, offset + 2)) & 0xFFFF;
+	}
+	
+	private static void setShort(byte[] raw, int offset, int value) {
+		System.arraycopy(Parser.short2Byte((short) value), 0, raw, offset, 2);
+	}
+	
+	public static long getLSN(Page page) {
+		byte[] raw = page.getData();
+		return Parser.parseLong(Arrays.copyOfRange(raw, OF_LSN, OF_LSN + 8));
+	}
+	
+	public static void setLSN(Page page, long lsn) {
+		System.arraycopy(Parser.long2Byte(lsn), 0, page.getData(), OF_LSN, 8);
+	}
+	
+	/**
+	 * 修改数据的线程持有共享闩并发记日志，LSN只增不减，需持有页面的lock
+	 */
+	public static void raiseLSN(Page page, long lsn) {
+		if (lsn > getLSN(page)) {
+			setLSN(page, lsn);
+		}
+	}
+	
+	private static int getSlotCount(byte[] raw) {
+		return getShort(raw, OF_SLOT_COUNT);
+	}
+	
+	private static int slotPos(int slot) {
+		return OF_SLOTS + slot * SLOT_SIZE;
+	}
+	
+	private static int getSlotOffset(byte[] raw, int slot) {
+		return getShort(raw, slotPos(slot));
+	}
+	
+	private static int getSlotLength(byte[] raw, int slot) {
+		return getShort(raw, slotPos(slot) + 2);
+	}
+	
+	private static void setSlot(byte[] raw, int slot, int offset, int length) {
+		setShort(raw, slotPos(slot), offset);
+		setShort(raw, slotPos(slot) + 2, length);
+	}
+	
+	private static int contiguousFreeSpace(byte[] raw) {
+		return getShort(raw, OF_DATA_START) - slotPos(getSlotCount(raw));
+	}
+	
+	/**
+	 * 槽位中DataItem在页面中的位置，槽位空闲或不存在时返回-1
+	 */
+	public static int getOffset(Page page, short slot) {
+		byte[] raw = page.getData();
+		if (slot < 0 || slot >= getSlotCount(raw)) {
+			return -1;
+		}
+		int offset = getSlotOffset(raw, slot);
+		return offset == 0 ? -1 : offset;
+	}
+	
+	/**
+	 * 所有已使用的槽位
+	 */
+	public static List<Short> usedSlots(Page page) {
+		byte[] raw = page.getData();
+		int count = getSlotCount(raw);
+		List<Short> slots = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			if (getSlotOffset(raw, i) != 0) {
+				slots.add((short) i);
+			}
+		}
+		return slots;
+	}
+	
+	/**
+	 * 整理后可容纳的最大DataItem，按需要新增槽位计算
+	 */
+	public static int getFreeSpace(Page page) {
+		byte[] raw = page.getData();
+		int free = contiguousFreeSpace(raw) + getShort(raw, OF_FRAGMENTED) - SLOT_SIZE;
+		return Math.max(free, 0);
 	}
 	
-	private static short getFSO(byte[] raw) {
-		return Parser.parseShort(Arrays.copyOfRange(raw, OF_FREE, OF_DATA));
+	/**
+	 * 进行数据的插入，优先复用空闲槽位，连续空间不足时先整理数据区
+	 * @param pinned 槽位中的DataItem是否正被引用，被引用的DataItem在整理时不移动
+	 * @return 插入的槽号，空间不足时返回-1
+	 */
+	public static short insert(Page page, byte[] raw, IntPredicate pinned) {
+		byte[] data = page.getData();
+		int count = getSlotCount(data);
+		int slot = 0;
+		while (slot < count && getSlotOffset(data, slot) != 0) {
+			slot++;
+		}
+		
+		int need = raw.length + (slot == count ? SLOT_SIZE : 0);
+		if (contiguousFreeSpace(data) < need) {
+			if (contiguousFreeSpace(data) + getShort(data, OF_FRAGMENTED) < need) {
+				return -1;
+			}
+			compact(page, pinned);
+			if (contiguousFreeSpace(data) < need) {
+				return -1;
+			}
+		}
+		
+		page.setDirty(true);
+		if (slot == count) {
+			setShort(data, OF_SLOT_COUNT, count + 1);
+		}
+		place(data, slot, raw);
+		return (short) slot;
 	}
 	
-	public static short getFSO(Page page) {
-		return getFSO(page.getData());
+	// 在连续空闲空间中放置DataItem，调用者保证空间足够且槽位已存在
+	private static void place(byte[] data, int slot, byte[] raw) {
+		int offset = getShort(data, OF_DATA_START) - raw.length;
+		System.arraycopy(raw, 0, data, offset, raw.length);
+		setShort(data, OF_DATA_START, offset);
+		setSlot(data, slot, offset, raw.length);
 	}
 	
 	/**
-	 * 进行数据的插入
-	 * @param page 待插入的页
-	 * @param raw 插入的数据
-	 * @return 插入位置
+	 * 释放槽位，空间计入Fragmented，末尾的空闲槽位从目录中移除
 	 */
-	public static short insert(Page page, byte[] raw) {
+	public static void free(Page page, short slot) {
+		byte[] data = page.getData();
 		page.setDirty(true);
-		short offset = getFSO(page);
-		System.arraycopy(raw, 0, page.getData(), offset, raw.length);
-		setFSO(page.getData(), (short) (offset + raw.length));
+		setShort(data, OF_FRAGMENTED, getShort(data, OF_FRAGMENTED) + getSlotLength(data, slot));
+		setSlot(data, slot, 0, 0);
 		
-		return offset;
+		int count = getSlotCount(data);
+		while (count > 0 && getSlotOffset(data, count - 1) == 0) {
+			count--;
+		}
+		setShort(data, OF_SLOT_COUNT, count);
 	}
 	
-	public static int getFreeSpace(Page page) {
-		return PageCache.PAGE_SIZE - getFSO(page);
+	/**
+	 * 整理数据区：从页尾开始，将未被引用的DataItem依次向页尾移动，合并其间的空闲空间
+	 * 被引用的DataItem留在原处，其上方未能填满的空间仍计入Fragmented
+	 */
+	public static void compact(Page page, IntPredicate pinned) {
+		byte[] data = page.getData();
+		List<Short> slots = usedSlots(page);
+		slots.sort((a, b) -> getSlotOffset(data, b) - getSlotOffset(data, a));
+		
+		page.setDirty(true);
+		int cursor = PageCache.PAGE_SIZE;
+		int live = 0;
+		for (short slot : slots) {
+			int offset = getSlotOffset(data, slot);
+			int length = getSlotLength(data, slot);
+			live += length;
+			
+			if (pinned.test(slot)) {
+				cursor = offset;
+				continue;
+			}
+			
+			int target = cursor - length;
+			if (target != offset) {
+				System.arraycopy(data, offset, data, target, length);
+				setSlot(data, slot, target, length);
+			}
+			cursor = target;
+		}
+		
+		setShort(data, OF_DATA_START, cursor);
+		setShort(data, OF_FRAGMENTED, PageCache.PAGE_SIZE - cursor - live);
 	}
 	
-	public static void recoverInsert(Page page, byte[] raw, short offset) {
+	/**
+	 * 重做插入：将槽位的内容设置为raw，槽位不存在时扩展目录
+	 * 恢复期间没有被引用的DataItem，整理可以移动所有数据
+	 */
+	public static void recoverInsert(Page page, byte[] raw, short slot) {
+		byte[] data = page.getData();
 		page.setDirty(true);
-		System.arraycopy(raw, 0, page.getData(), offset, raw.length);
 		
-		short rawOffset = getFSO(page);
-		if (rawOffset < offset + raw.length) {
-			setFSO(page.getData(), (short) (offset + rawOffset));
+		int count = getSlotCount(data);
+		if (slot < count && getSlotOffset(data, slot) != 0) {
+			if (getSlotLength(data, slot) == raw.length) {
+				System.arraycopy(raw, 0, data, getSlotOffset(data, slot), raw.length);
+				return;
+			}
+			free(page, slot);
+			count = getSlotCount(data);
+		}
+		
+		int need = raw.length + Math.max(slot + 1 - count, 0) * SLOT_SIZE;
+		if (contiguousFreeSpace(data) < need) {
+			compact(page, s -> false);
+			// 页面与日志不一致，继续放置会覆盖槽位目录
+			if (contiguousFreeSpace(data) < need) {
+				Panic.panic(Error.PageCorruptedException);
+			}
+		}
+		
+		for (int i = count; i <= slot; i++) {
+			setSlot(data, i, 0, 0);
 		}
+		setShort(data, OF_SLOT_COUNT, Math.max(count, slot + 1));
+		place(data, slot, raw);
 	}
 	
-	public static void recoverUpdate(Page page, byte[] raw, short offset) {
+	/**
+	 * 重做槽位的释放，已空闲的槽位跳过
+	 */
+	public static void recoverFree(Page page, short[] slots) {
+		for (short slot : slots) {
+			if (getOffset(page, slot) >= 0) {
+				free(page, slot);
+			}
+		}
+	}
+	
+	/**
+	 * 撤销时DataItem可能尚未写入页面（由同一事务插入且未重做），此时由之后撤销插入时写入
+	 */
+	public static void recoverUpdate(Page page, byte[] raw, short slot) {
+		int offset = getOffset(page, slot);
+		if (offset < 0) {
+			return;
+		}
 		page.setDirty(true);
 		System.arraycopy(raw, 0, page.getData(), offset, raw.length);
 	}
@@ -1,5 +1,6 @@
 package backend.dm.pageCache;
 
+import backend.dm.logger.Logger;
 import backend.dm.page.Page;
 import backend.dm.page.PageImpl;
 import backend.utils.Panic;
@@ -9,6 +10,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.Map;
 
 
 /**
@@ -33,7 +35,30 @@ public interface PageCache {
 	
 	void flushPage(Page page);
 	
-	static PageCacheImpl create(String path, long memory) {
+	/**
+	 * 写回当前所有脏页并force
+	 * @return 是否所有脏页都已写回
+	 */
+	boolean flushAll();
+	
+	/**
+	 * 脏页表，页号 -> recLSN，包括已写回但尚未force的页面
+	 */
+	Map<Integer, Long> dirtyPageTable();
+	
+	long getHitCount();
+	
+	long getMissCount();
+	
+	long getEvictionCount();
+	
+	default double getHitRatio() {
+		long hits = getHitCount();
+		long total = hits + getMissCount();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+	
+	static PageCacheImpl create(String path, long memory, Logger logger) {
 		File file = new File(path + PageCacheImpl.DB_SUFFIX);
 		try {
 			if (!file.createNewFile()) {
@@ -56,10 +81,10 @@ public interface PageCache {
 			Panic.panic(e);
 		}
 		
-		return new PageCacheImpl(raf, fc, (int) memory / PAGE_SIZE);
+		return new PageCacheImpl(raf, fc, (int) (memory / PAGE_SIZE), logger);
 	}
 	
-	static PageCacheImpl open(String path, long memory) {
+	static PageCacheImpl open(String path, long memory, Logger logger) {
 		File file = new File(path + PageCacheImpl.DB_SUFFIX);
 		
 		if (!file.exists()) {
@@ -79,7 +104,7 @@ public interface PageCache {
 			Panic.panic(e);
 		}
 		
-		return new PageCacheImpl(raf, fc, (int) memory / PAGE_SIZE);
+		return new PageCacheImpl(raf, fc, (int) (memory / PAGE_SIZE), logger);
 		
 	}
 }
\ No newline at end of file
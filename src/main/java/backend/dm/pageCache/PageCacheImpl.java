@@ -1,23 +1,41 @@
 package backend.dm.pageCache;
 
 import backend.common.AbstractCache;
+import backend.dm.logger.Logger;
 import backend.dm.page.Page;
 import backend.dm.page.PageImpl;
 import backend.utils.Panic;
 import common.Error;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @date 2023/12/2
  * @package backend.dm.pageCache
+ *
+ * 页面缓存，引用计数（pin）与缓存驻留分离：
+ * 页面释放后仍常驻内存，缓存满时由CLOCK算法选择未被pin的页面写回并驱逐
+ *
+ * 脏页由后台写线程定期写回：按页号排序后分批顺序写入，每批只force一次
+ * 写回前先force日志，保证WAL
+ *
+ * 脏页表记录每个脏页的recLSN，即页面变脏时的日志末尾，供模糊检查点确定重做起点
+ * 页面在写回并force之后才移出脏页表
  */
 public class PageCacheImpl extends AbstractCache<Page>
 							implements PageCache {
@@ -25,15 +43,32 @@ public class PageCacheImpl extends AbstractCache<Page>
 	private static final int MEM_MIN_LIM = 10;
 	public static final String DB_SUFFIX = ".db";
 	
+	// 后台写回间隔（毫秒）
+	private static final long WRITER_INTERVAL = 200;
+	
 	private RandomAccessFile file;
 	private FileChannel fc;
 	private Lock fileLock;
+	private Logger logger;
 	
 	// 页数目
 	private AtomicInteger pageNumbers;
 	
-	public PageCacheImpl(RandomAccessFile file, FileChannel fc, int maxResources) {
-		super(maxResources);
+	// 每批写回的最大页数
+	private int writeBatch;
+	// 页号 -> recLSN
+	private Map<Integer, Long> dirtyPages;
+	// 已取出页面内容、尚未force的页面
+	private Map<Integer, Long> writingPages;
+	// 同一时刻只有一批页面在写回，保证writingPages中的记录不会被覆盖
+	private Lock writerLock;
+	// 当前批次中的页面，驱逐时写回或重新加载这些页面须等待本批写完
+	private Set<Integer> batchPages;
+	private Thread writer;
+	private volatile boolean closed;
+	
+	public PageCacheImpl(RandomAccessFile file, FileChannel fc, int maxResources, Logger logger) {
+		super(maxResources, true);
 		if (maxResources < MEM_MIN_LIM) {
 			Panic.panic(Error.MemTooSmallException);
 		}
@@ -48,7 +83,17 @@ public class PageCacheImpl extends AbstractCache<Page>
 		this.file = file;
 		this.fc = fc;
 		this.fileLock = new ReentrantLock();
-		pageNumbers = new AtomicInteger((int) length / PAGE_SIZE);
+		this.logger = logger;
+		pageNumbers = new AtomicInteger((int) (length / PAGE_SIZE));
+		
+		writeBatch = Math.max(1, maxResources / 4);
+		dirtyPages = new ConcurrentHashMap<>();
+		writingPages = new ConcurrentHashMap<>();
+		writerLock = new ReentrantLock();
+		batchPages = ConcurrentHashMap.newKeySet();
+		writer = new Thread(this::writeBack, "page-writer");
+		writer.setDaemon(true);
+		writer.start();
 	}
 	
 	
@@ -56,26 +101,59 @@ public class PageCacheImpl extends AbstractCache<Page>
 	protected Page getForCache(long key) throws Exception {
 		int pageNo = (int) key;
 		long offset = pageOffset(pageNo);
+		awaitBatch(pageNo);
 		
 		ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
 		
-		fileLock.lock();
 		try {
-			fc.position(offset)
-					.read(buf);
+			fc.read(buf, offset);
 		} catch (IOException e) {
 			Panic.panic(e);
 		}
-		fileLock.unlock();
 		
 		return new PageImpl(pageNo, buf.array(), this);
 	}
 	
+	/**
+	 * 被驱逐的页面此时未被pin，不会处于修改中，直接写回
+	 * 写回后需force才能移出脏页表，后台写线程会尽量让被驱逐的页面是干净的
+	 * 页面在后台写线程的当前批次中时，等该批写完再写，避免较旧的内容覆盖本次写入
+	 */
 	@Override
 	protected void releaseForCache(Page obj) {
 		if (obj.isDirty()) {
-			flush(obj);
+			int pageNo = obj.getPageNumber();
+			startWriting(pageNo);
 			obj.setDirty(false);
+			awaitBatch(pageNo);
+			
+			logger.flush();
+			write(pageNo, obj.getData());
+			force();
+			writingPages.remove(pageNo);
+		}
+	}
+	
+	/**
+	 * 页面在当前批次中时，等待该批写完
+	 * 批次先加入页面再复制内容，调用者须在此之前清除脏标记（驱逐）或页面已不在缓存中（加载）
+	 */
+	private void awaitBatch(int pageNo) {
+		if (batchPages.contains(pageNo)) {
+			writerLock.lock();
+			writerLock.unlock();
+		}
+	}
+	
+	/**
+	 * 将页面从脏页表移入writingPages，需在页面不会被修改时调用
+	 * 先加入再移除，检查点获取脏页表时不会漏掉该页面
+	 */
+	private void startWriting(int pageNo) {
+		Long recLsn = dirtyPages.get(pageNo);
+		if (recLsn != null) {
+			writingPages.put(pageNo, recLsn);
+			dirtyPages.remove(pageNo);
 		}
 	}
 	
@@ -83,16 +161,10 @@ public class PageCacheImpl extends AbstractCache<Page>
 		return (long) (pageNo - 1) * PAGE_SIZE;
 	}
 	
-	private void flush(Page page) {
-		int pageNo = page.getPageNumber();
-		long offset = pageOffset(pageNo);
-		
+	private void write(int pageNo, byte[] data) {
 		fileLock.lock();
 		try {
-			ByteBuffer buf = ByteBuffer.wrap(page.getData());
-			fc.position(offset)
-					.write(buf);
-			fc.force(false);
+			fc.write(ByteBuffer.wrap(data), pageOffset(pageNo));
 		} catch (IOException e) {
 			Panic.panic(e);
 		} finally {
@@ -100,11 +172,123 @@ public class PageCacheImpl extends AbstractCache<Page>
 		}
 	}
 	
+	private void force() {
+		try {
+			fc.force(false);
+		} catch (IOException e) {
+			Panic.panic(e);
+		}
+	}
+	
+	public void markDirty(int pageNo) {
+		dirtyPages.computeIfAbsent(pageNo, k -> logger.lsn());
+	}
+	
+	@Override
+	public Map<Integer, Long> dirtyPageTable() {
+		// 先读脏页表再读writingPages，与startWriting的顺序相反
+		Map<Integer, Long> table = new HashMap<>(dirtyPages);
+		writingPages.forEach((pageNo, recLsn) -> table.merge(pageNo, recLsn, Math::min));
+		return table;
+	}
+	
+	private void writeBack() {
+		while (!closed) {
+			// 不能用interrupt唤醒，否则正在进行的FileChannel读写会关闭通道
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(WRITER_INTERVAL));
+			if (!dirtyPages.isEmpty()) {
+				flushDirtyPages(false);
+			}
+		}
+	}
+	
+	/**
+	 * 按页号顺序分批写回当前所有脏页
+	 * @param wait 为false时跳过正在被修改的页面，为true时等待其修改完成
+	 * @return 是否所有页面都已写回，不等待时跳过的页面留到下一轮
+	 */
+	private boolean flushDirtyPages(boolean wait) {
+		List<Integer> pageNos = new ArrayList<>(dirtyPages.keySet());
+		Collections.sort(pageNos);
+		
+		boolean complete = true;
+		for (int i = 0; i < pageNos.size(); i += writeBatch) {
+			List<Integer> batch = pageNos.subList(i, Math.min(i + writeBatch, pageNos.size()));
+			complete &= writeBatch(batch, wait);
+		}
+		return complete;
+	}
+	
+	/**
+	 * 只写回仍在缓存中的页面，不加载也不pin：不在缓存中的脏页已由驱逐写回
+	 * 页面先加入batchPages，再在排他闩下复制内容，最后统一写回并force一次；
+	 * 期间被驱逐后又被修改、或被重新加载的页面，由awaitBatch等到本批写完，磁盘上的内容不会倒退
+	 */
+	private boolean writeBatch(List<Integer> pageNos, boolean wait) {
+		List<byte[]> images = new ArrayList<>();
+		List<Integer> written = new ArrayList<>();
+		boolean complete = true;
+		
+		writerLock.lock();
+		try {
+			for (int pageNo : pageNos) {
+				Page page = peek(pageNo);
+				if (page == null) {
+					continue;
+				}
+				batchPages.add(pageNo);
+				
+				if (wait) {
+					page.wLock();
+				} else if (!page.tryWLock()) {
+					complete = false;
+					continue;
+				}
+				
+				try {
+					if (!page.isDirty()) {
+						continue;
+					}
+					startWriting(pageNo);
+					page.setDirty(false);
+					images.add(page.getData().clone());
+					written.add(pageNo);
+				} finally {
+					page.wUnlock();
+				}
+			}
+			
+			if (!images.isEmpty()) {
+				logger.flush();
+				for (int i = 0; i < images.size(); i++) {
+					write(written.get(i), images.get(i));
+				}
+				force();
+				for (int pageNo : written) {
+					writingPages.remove(pageNo);
+				}
+			}
+		} finally {
+			batchPages.clear();
+			writerLock.unlock();
+		}
+		
+		return complete;
+	}
+	
+	@Override
+	public boolean flushAll() {
+		boolean complete = flushDirtyPages(true);
+		force();
+		return complete;
+	}
+	
 	@Override
 	public int newPage(byte[] initData) {
 		int pageNo = pageNumbers.incrementAndGet();
-		Page page = new PageImpl(pageNo, initData, null);
-		flush(page);
+		write(pageNo, initData);
+		// 新页面不在脏页表中，必须立即持久化
+		force();
 		return pageNo;
 	}
 	
@@ -115,7 +299,17 @@ public class PageCacheImpl extends AbstractCache<Page>
 	
 	@Override
 	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Panic.panic(e);
+		}
+		
+		flushAll();
 		super.close();
+		force();
 		try {
 			fc.close();
 			file.close();
@@ -150,6 +344,22 @@ public class PageCacheImpl extends AbstractCache<Page>
 	
 	@Override
 	public void flushPage(Page page) {
-		flush(page);
+		write(page.getPageNumber(), page.getData());
+		force();
+	}
+	
+	@Override
+	public long getHitCount() {
+		return super.getHitCount();
+	}
+	
+	@Override
+	public long getMissCount() {
+		return super.getMissCount();
+	}
+	
+	@Override
+	public long getEvictionCount() {
+		return super.getEvictionCount();
 	}
 }
@@ -0,0 +1,159 @@
+package backend.dm.pageIndex;
+
+import backend.utils.Panic;
+import common.Error;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * @date 2024/1/26
+ * @package backend.dm.pageIndex
+ *
+ * 空闲空间映射，持久化在.fsm文件中，每页一个字节
+ * 字节值为 空闲空间 / STEP + 1，0表示未知（该页在上次写回之后才创建）
+ *
+ * 只是提示：修改不记日志，在检查点与关闭时写回，崩溃后可能与页面实际的空闲空间不一致，
+ * 插入时按页面的实际空闲空间修正
+ */
+public class FreeSpaceMap {
+	public static final String FSM_SUFFIX = ".fsm";
+	
+	private static final int STEP = 32;
+	private static final int MAX_VALUE = 255;
+	
+	private RandomAccessFile file;
+	private FileChannel fc;
+	
+	// 页号 -> 字节值
+	private byte[] map;
+	// 尚未写回的区间[dirtyFrom, dirtyTo)
+	private int dirtyFrom = Integer.MAX_VALUE;
+	private int dirtyTo;
+	
+	FreeSpaceMap(RandomAccessFile file, FileChannel fc) {
+		this.file = file;
+		this.fc = fc;
+		
+		long length = 0;
+		try {
+			length = file.length();
+		} catch (IOException e) {
+			Panic.panic(e);
+		}
+		map = new byte[(int) length];
+	}
+	
+	public static FreeSpaceMap create(String path) {
+		File f = new File(path + FSM_SUFFIX);
+		try {
+			if (!f.createNewFile()) {
+				Panic.panic(Error.FileExistsException);
+			}
+		} catch (Exception e) {
+			Panic.panic(e);
+		}
+		return open(f);
+	}
+	
+	/**
+	 * 文件不存在时（由旧版本创建的数据库）返回null
+	 */
+	public static FreeSpaceMap open(String path) {
+		File f = new File(path + FSM_SUFFIX);
+		if (!f.exists()) {
+			return null;
+		}
+		return open(f);
+	}
+	
+	private static FreeSpaceMap open(File f) {
+		if (!f.canRead() || !f.canWrite()) {
+			Panic.panic(Error.FileCannotRWException);
+		}
+		
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "rw");
+		} catch (FileNotFoundException e) {
+			Panic.panic(e);
+		}
+		return new FreeSpaceMap(raf, raf.getChannel());
+	}
+	
+	/**
+	 * 读取整个文件，每页一个字节，只有数据库文件大小的1/PAGE_SIZE
+	 */
+	synchronized void load() {
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(map);
+			while (buf.hasRemaining()) {
+				if (fc.read(buf, buf.position()) < 0) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			Panic.panic(e);
+		}
+	}
+	
+	/**
+	 * @return 页面空闲空间的下界，未知时返回-1
+	 */
+	synchronized int get(int pageNo) {
+		if (pageNo >= map.length || map[pageNo] == 0) {
+			return -1;
+		}
+		return ((map[pageNo] & 0xFF) - 1) * STEP;
+	}
+	
+	synchronized void set(int pageNo, int freeSpace) {
+		if (pageNo >= map.length) {
+			map = Arrays.copyOf(map, Math.max(pageNo + 1, map.length * 2));
+		}
+		
+		byte value = (byte) Math.min(freeSpace / STEP + 1, MAX_VALUE);
+		if (map[pageNo] != value) {
+			map[pageNo] = value;
+			dirtyFrom = Math.min(dirtyFrom, pageNo);
+			dirtyTo = Math.max(dirtyTo, pageNo + 1);
+		}
+	}
+	
+	/**
+	 * 写回修改过的区间，不force：丢失的修改只会使提示过期
+	 */
+	public synchronized void flush() {
+		if (dirtyFrom >= dirtyTo) {
+			return;
+		}
+		
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(map, dirtyFrom, dirtyTo - dirtyFrom);
+			long position = dirtyFrom;
+			while (buf.hasRemaining()) {
+				position += fc.write(buf, position);
+			}
+		} catch (IOException e) {
+			Panic.panic(e);
+		}
+		dirtyFrom = Integer.MAX_VALUE;
+		dirtyTo = 0;
+	}
+	
+	public synchronized void close() {
+		flush();
+		try {
+			fc.force(false);
+			fc.close();
+			file.close();
+		} catch (IOException e) {
+			Panic.panic(e);
+		}
+	}
+}
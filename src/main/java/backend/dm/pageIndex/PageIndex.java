@@ -1,66 +1,175 @@
 package backend.dm.pageIndex;
 
+import backend.dm.page.PageX;
 import backend.dm.pageCache.PageCache;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 
 /**
  * @date 2023/12/5
  * @package backend.dm.pageIndex
+ *
+ * 页面的空闲空间持久化在FreeSpaceMap中，打开数据库时无需读取所有页面
+ * 第一次使用时才从FreeSpaceMap加载，未知的页面按空页处理，插入时再修正
+ *
+ * 每个区间一个无锁队列，页面的空闲空间变化而区间不变时原地修改，
+ * 区间改变时向新区间追加一项，旧项成为过期项，在select遍历到时移除
+ * 没有空闲空间的页面（区间0）不会被选中，不进入队列
+ *
+ * 每个线程优先向自己占用的页面插入，空间不足时再占用一个未被其他线程占用的页面，
+ * 所有页面都已被占用时与其他线程共用，只有所有页面都没有足够空间时才需要新建页面
+ * 占用记录只弱引用线程，线程结束后其占用的页面视为未被占用，可由其他线程接管
  */
 public class PageIndex {
 	// 最大区间序号
 	private static final int INTERVAL_NO = 32;
 	private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVAL_NO;
 	
-	private Lock lock = new ReentrantLock();
-	
 	// 根据空闲空间大小哈希存储页面信息
-	List<PageInfo>[] lists;
+	List<ConcurrentLinkedDeque<PageInfo>> lists;
+	// 页号 -> 页面当前的信息，队列中与之不同的项已过期
+	private Map<Integer, PageInfo> pages = new ConcurrentHashMap<>();
+	// 页号 -> 占用该页面插入的线程
+	private Map<Integer, WeakReference<Thread>> owners = new ConcurrentHashMap<>();
+	// 当前线程在owners中的记录，同一线程总是使用同一个引用，可以按引用比较
+	private ThreadLocal<WeakReference<Thread>> self = ThreadLocal.withInitial(() -> new WeakReference<>(Thread.currentThread()));
+	// 当前线程占用的页面
+	private ThreadLocal<Integer> preferred = new ThreadLocal<>();
+	
+	private FreeSpaceMap fsm;
+	// 加载时的页数
+	private int pageNumber;
+	private volatile boolean loaded = true;
+	
+	public PageIndex(FreeSpaceMap fsm) {
+		this.fsm = fsm;
+		lists = new ArrayList<>(INTERVAL_NO + 1);
+		for (int i = 0; i <= INTERVAL_NO; i++) {
+			lists.add(new ConcurrentLinkedDeque<>());
+		}
+	}
+	
+	/**
+	 * 推迟到第一次使用时，从FreeSpaceMap加载第2页到第pageNumber页
+	 */
+	public synchronized void load(int pageNumber) {
+		this.pageNumber = pageNumber;
+		loaded = false;
+	}
 	
-	@SuppressWarnings("unchecked")
-	public PageIndex() {
-		lists = new List[INTERVAL_NO + 1];
-		for (int i = 0; i < lists.length; i++) {
-			lists[i] = new ArrayList<>();
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		
+		synchronized (this) {
+			if (loaded) {
+				return;
+			}
+			
+			fsm.load();
+			for (int i = 2; i <= pageNumber; i++) {
+				int freeSpace = fsm.get(i);
+				put(i, freeSpace < 0 ? PageX.MAX_FREE_SPACE : freeSpace);
+			}
+			loaded = true;
 		}
 	}
 	
-	public void add(int pageNo, int freeSpace) {
-		lock.lock();
-		try {
-			int number = freeSpace / THRESHOLD;
-			lists[number].add(new PageInfo(pageNo, freeSpace));
-		} finally {
-			lock.unlock();
+	/**
+	 * 添加页面或更新其空闲空间，须在页面的lock下调用，保证同一页面的更新顺序与页面修改的顺序一致
+	 */
+	public void update(int pageNo, int freeSpace) {
+		ensureLoaded();
+		put(pageNo, freeSpace);
+		fsm.set(pageNo, freeSpace);
+	}
+	
+	private void put(int pageNo, int freeSpace) {
+		int number = freeSpace / THRESHOLD;
+		PageInfo old = pages.get(pageNo);
+		if (old != null && old.freeSpace / THRESHOLD == number) {
+			old.freeSpace = freeSpace;
+			return;
+		}
+		
+		PageInfo pi = new PageInfo(pageNo, freeSpace);
+		pages.put(pageNo, pi);
+		if (number > 0) {
+			lists.get(number).addLast(pi);
 		}
 	}
 	
+	/**
+	 * 选择一个空闲空间足够的页面，页面仍留在索引中
+	 * @return 页面信息的副本，没有合适的页面时返回null
+	 */
 	public PageInfo select(int spaceSize) {
-		lock.lock();
+		ensureLoaded();
 		
-		try {
-			int number = spaceSize / THRESHOLD;
-			if (number < INTERVAL_NO) {
-				number++;
+		WeakReference<Thread> current = self.get();
+		Integer pageNo = preferred.get();
+		if (pageNo != null) {
+			PageInfo pi = pages.get(pageNo);
+			if (pi != null && pi.freeSpace >= spaceSize && owners.get(pageNo) == current) {
+				return new PageInfo(pi.pageNo, pi.freeSpace);
 			}
-			
-			while (number <= INTERVAL_NO) {
-				if (lists[number].size() == 0) {
-					number++;
+			owners.remove(pageNo, current);
+			preferred.remove();
+		}
+		
+		// 起始区间中的页面空闲空间不一定足够，逐个检查
+		int number = Math.max(spaceSize / THRESHOLD, 1);
+		
+		PageInfo shared = null;
+		while (number <= INTERVAL_NO) {
+			Iterator<PageInfo> it = lists.get(number).iterator();
+			while (it.hasNext()) {
+				PageInfo pi = it.next();
+				if (pages.get(pi.pageNo) != pi) {
+					it.remove();
 					continue;
 				}
 				
-				return lists[number].remove(0);
+				if (pi.freeSpace < spaceSize) {
+					continue;
+				}
+				
+				if (claim(pi.pageNo, current)) {
+					preferred.set(pi.pageNo);
+					return new PageInfo(pi.pageNo, pi.freeSpace);
+				}
+				if (shared == null) {
+					shared = pi;
+				}
 			}
-			
-			return null;
-		} finally {
-			lock.unlock();
+			number++;
 		}
 		
+		return shared == null ? null : new PageInfo(shared.pageNo, shared.freeSpace);
+	}
+	
+	/**
+	 * 占用页面，原占用的线程已结束（或已被回收）时可以接管
+	 */
+	private boolean claim(int pageNo, WeakReference<Thread> current) {
+		WeakReference<Thread> owner = owners.get(pageNo);
+		if (owner == null) {
+			return owners.putIfAbsent(pageNo, current) == null;
+		}
+		if (owner == current) {
+			return true;
+		}
+		Thread thread = owner.get();
+		if (thread == null || !thread.isAlive()) {
+			return owners.replace(pageNo, owner, current);
+		}
+		return false;
 	}
 }
@@ -7,7 +7,7 @@ package backend.dm.pageIndex;
 public class PageInfo {
 	
 	public int pageNo;
-	public int freeSpace;
+	public volatile int freeSpace;
 	
 	public PageInfo(int pageNo, int freeSpace) {
 		this.pageNo = pageNo;
@@ -5,27 +5,49 @@ import backend.dm.DataManager;
 import backend.dm.dataItem.DataItem;
 import backend.tm.TransactionManagerImpl;
 import backend.utils.Parser;
+import common.Error;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @date 2024/1/16
  * @package backend.im
+ *
+ * 批量构建会替换整棵树，期间持有treeLock的写锁，其他操作持有读锁
  */
-
-// TODO:加入对节点的删除部分，根据当前active事务中的最小xid来确定是否删除节点。
 public class BPlusTree {
 	DataManager dm;
 	long bootUid;
 	DataItem bootDataItem;
 	Lock bootLock;
+	ReadWriteLock treeLock;
+	// 节点的balance，每个节点最多2 * balance个键
+	int balance;
+	
+	// 已从树中摘除、等待释放的叶子
+	private final List<Long> unlinked = new ArrayList<>();
+	private final LongAdder merged = new LongAdder();
+	private final LongAdder redistributed = new LongAdder();
 	
 	public static long create(DataManager dm) throws Exception {
-		byte[] rawRoot = Node.newNilRootRaw();
+		return create(dm, Node.DEFAULT_BALANCE_NUMBER);
+	}
+	
+	/**
+	 * 创建每个节点最多2 * balance个键的树，节点大小随之确定，须能放入一页
+	 */
+	public static long create(DataManager dm, int balance) throws Exception {
+		if (balance < Node.MIN_BALANCE_NUMBER || balance > Node.DEFAULT_BALANCE_NUMBER) {
+			throw Error.InvalidBalanceException;
+		}
+		byte[] rawRoot = Node.newNilRootRaw(balance);
 		long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
 		return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
 	}
@@ -39,10 +61,19 @@ public class BPlusTree {
 		t.dm = dm;
 		t.bootUid = bootUid;
 		t.bootLock = new ReentrantLock();
+		t.treeLock = new ReentrantReadWriteLock();
+		
+		Node root = Node.loadNode(t, t.rootUid());
+		t.balance = root.getBalance();
+		root.release();
 		
 		return t;
 	}
 	
+	public long getBootUid() {
+		return bootUid;
+	}
+	
 	private long rootUid() {
 		bootLock.lock();
 		try {
@@ -53,42 +84,100 @@ public class BPlusTree {
 		}
 	}
 	
+	/**
+	 * 根节点left分裂出right后，以二者为子节点创建新的根
+	 * 若left已不是根（其他线程先分裂了根），不能再创建新根，否则会丢掉其他线程的新根，
+	 * 此时left已有父节点，把right插入left的上一层
+	 */
 	private void updateRootUid(long left, long right, long rightKey) throws Exception {
+		long rootUid;
 		bootLock.lock();
 		try {
-			byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
-			long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
-			bootDataItem.before();
-			SubArray data = bootDataItem.data();
-			System.arraycopy(Parser.long2Byte(newRootUid), 0, data.raw, data.start, 8);
-			bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+			rootUid = rootUid();
+			if (rootUid == left) {
+				byte[] rootRaw = Node.newRootRaw(balance, left, right, rightKey);
+				setRootUid(dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw));
+				return;
+			}
 		} finally {
 			bootLock.unlock();
 		}
+		
+		// 节点所在的层不会改变，根只会在上方增加新层
+		int depth = height(rootUid) - height(left);
+		InsertRes res = insertAtDepth(rootUid, depth - 1, right, rightKey);
+		if (res.newNode != 0) {
+			updateRootUid(rootUid, res.newNode, res.newKey);
+		}
 	}
 	
-	private long searchLeaf(long nodeUid, long key) throws Exception {
-		Node node = Node.loadNode(this, nodeUid);
-		node.release();
+	/**
+	 * 从nodeUid沿最左侧到叶子的层数，叶子为1
+	 */
+	private int height(long nodeUid) throws Exception {
+		int height = 1;
+		while (true) {
+			Node node = Node.loadNode(this, nodeUid);
+			if (node.isLeaf()) {
+				node.release();
+				return height;
+			}
+			nodeUid = searchNext(node, Long.MIN_VALUE);
+			height++;
+		}
+	}
+	
+	/**
+	 * 向nodeUid下方第depth层中key所在的节点插入子节点son
+	 */
+	private InsertRes insertAtDepth(long nodeUid, int depth, long son, long key) throws Exception {
+		if (depth == 0) {
+			return insertAndSplit(nodeUid, son, key);
+		}
 		
-		if (node.isLeaf()) {
-			return nodeUid;
-		} else {
-			long next = searchNext(nodeUid, key);
-			return searchLeaf(next, key);
+		Node node = Node.loadNode(this, nodeUid);
+		long next = searchNext(node, key);
+		InsertRes nextRes = insertAtDepth(next, depth - 1, son, key);
+		if (nextRes.newNode != 0) {
+			return insertAndSplit(nodeUid, nextRes.newNode, nextRes.newKey);
 		}
+		return new InsertRes();
 	}
 	
-	private long searchNext(long nodeUid, long key) throws Exception {
+	// 需持有bootLock
+	private void setRootUid(long newRootUid) {
+		bootDataItem.before();
+		SubArray data = bootDataItem.data();
+		System.arraycopy(Parser.long2Byte(newRootUid), 0, data.raw, data.start, 8);
+		bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+	}
+	
+	/**
+	 * 每层只加载一次节点：加载后是叶子则返回，否则直接在该节点中查找下一层
+	 */
+	private long searchLeaf(long nodeUid, long key) throws Exception {
 		while (true) {
 			Node node = Node.loadNode(this, nodeUid);
+			if (node.isLeaf()) {
+				node.release();
+				return nodeUid;
+			}
+			nodeUid = searchNext(node, key);
+		}
+	}
+	
+	/**
+	 * 在已加载的内部节点中查找key所在的子节点，必要时沿兄弟节点向右查找，node由此方法释放
+	 */
+	private long searchNext(Node node, long key) throws Exception {
+		while (true) {
 			Node.SearchNextRes res = node.searchNext(key);
 			node.release();
 			
 			if (res.uid != 0) {
 				return res.uid;
 			}
-			nodeUid = res.siblingUid;
+			node = Node.loadNode(this, res.siblingUid);
 		}
 	}
 	
@@ -97,26 +186,611 @@ public class BPlusTree {
 	}
 	
 	public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-		long rootUid = rootUid();
-		long leafUid = searchLeaf(rootUid, leftKey);
+		Cursor cursor = cursor(leftKey, rightKey);
 		List<Long> uids = new ArrayList<>();
+		while (cursor.next()) {
+			uids.add(cursor.uid());
+		}
+		return uids;
+	}
+	
+	/**
+	 * 返回[leftKey, rightKey]中各项uid的游标，不预先收集所有项
+	 */
+	public Cursor cursor(long leftKey, long rightKey) {
+		return new Cursor(leftKey, rightKey);
+	}
+	
+	/**
+	 * 按键的顺序逐个给出区间中的uid，每次只读取一个叶子节点中的项
+	 * 读取每个叶子节点时持有treeLock的读锁，两次读取之间不持有任何锁，可以随时停止
+	 * 项只会向右移动，沿兄弟节点读取不会遗漏调用前已存在的项
+	 */
+	public class Cursor {
+		private final long leftKey;
+		private final long rightKey;
+		// 下一个要读取的叶子节点，0表示没有
+		private long leafUid;
+		private boolean started;
+		private long[] uids = new long[0];
+		private int pos = -1;
+		// 上一个有项的叶子中读到的项，用于跳过之后因合并或重新分配移到右侧的项
+		private long[] lastKeys = new long[0];
+		private long[] lastUids = new long[0];
+		
+		private Cursor(long leftKey, long rightKey) {
+			this.leftKey = leftKey;
+			this.rightKey = rightKey;
+		}
+		
+		public boolean next() throws Exception {
+			pos++;
+			while (pos >= uids.length) {
+				if (started && leafUid == 0) {
+					return false;
+				}
+				readLeaf();
+			}
+			return true;
+		}
+		
+		public long uid() {
+			return uids[pos];
+		}
+		
+		private void readLeaf() throws Exception {
+			treeLock.readLock().lock();
+			try {
+				if (!started) {
+					leafUid = searchLeaf(rootUid(), leftKey);
+					started = true;
+				}
+				Node leaf = Node.loadNode(BPlusTree.this, leafUid);
+				Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
+				leaf.release();
+				uids = skipMoved(res.keys, res.uids);
+				if (res.uids.length > 0) {
+					lastKeys = res.keys;
+					lastUids = res.uids;
+				}
+				leafUid = res.siblingUid;
+				pos = 0;
+			} finally {
+				treeLock.readLock().unlock();
+			}
+		}
+		
+		/**
+		 * 不大于上一个叶子最大键的项可能是已给出的项移动而来，在上一个叶子中出现过的跳过
+		 */
+		private long[] skipMoved(long[] keys, long[] uids) {
+			if (lastKeys.length == 0 || keys.length == 0 || keys[0] > lastKeys[lastKeys.length - 1]) {
+				return uids;
+			}
+			
+			long lastKey = lastKeys[lastKeys.length - 1];
+			long[] res = new long[uids.length];
+			int n = 0;
+			for (int i = 0; i < uids.length; i++) {
+				if (keys[i] > lastKey || !returned(keys[i], uids[i])) {
+					res[n++] = uids[i];
+				}
+			}
+			return n == uids.length ? uids : Arrays.copyOf(res, n);
+		}
+		
+		private boolean returned(long key, long uid) {
+			int lo = 0;
+			int hi = lastKeys.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (lastKeys[mid] < key) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			for (int i = lo; i < lastKeys.length && lastKeys[i] == key; i++) {
+				if (lastUids[i] == uid) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * 访问索引中的项
+	 */
+	public interface EntryVisitor {
+		void visit(long key, long uid) throws Exception;
+	}
+	
+	/**
+	 * 按顺序扫描所有叶子，每个叶子先复制出所有项，访问期间不持有节点的锁
+	 * 复制之后项因分裂移到右侧节点时，会被再次访问
+	 * 与Cursor一样，第一个叶子在同一次持有读锁期间找到并读取，不会读到批量构建替换掉的根
+	 */
+	public void scan(EntryVisitor visitor) throws Exception {
+		long leafUid = 0;
+		boolean started = false;
+		while (!started || leafUid != 0) {
+			Node.LeafEntriesRes res;
+			treeLock.readLock().lock();
+			try {
+				if (!started) {
+					leafUid = searchLeaf(rootUid(), Long.MIN_VALUE);
+					started = true;
+				}
+				Node leaf = Node.loadNode(this, leafUid);
+				res = leaf.leafEntries();
+				leaf.release();
+			} finally {
+				treeLock.readLock().unlock();
+			}
+			
+			for (int i = 0; i < res.uids.length; i++) {
+				visitor.visit(res.keys[i], res.uids[i]);
+			}
+			leafUid = res.siblingUid;
+		}
+	}
+	
+	/**
+	 * 判断索引项指向的记录是否应从索引中删除
+	 * test与beforeRemove在treeLock的读锁内调用，afterLeaf在释放读锁之后调用，休眠等耗时操作应放在这里
+	 */
+	public interface RemoveFilter {
+		boolean test(long uid) throws Exception;
 		
+		// 删除一个叶子中判定为真的项之前调用
+		default void beforeRemove(long[] uids) throws Exception {}
+		
+		// 处理完一个叶子之后调用
+		default void afterLeaf() throws Exception {}
+	}
+	
+	/**
+	 * 按顺序扫描所有叶子，删除filter判定为真的项，供清理线程使用
+	 * 每个叶子先复制出所有项，判定期间不持有节点的锁
+	 * 复制之后项因分裂移到右侧节点时，沿兄弟指针找到；复制之后插入的项本次不检查
+	 * 每个叶子单独持有treeLock的读锁，不会长时间阻塞批量构建，第一个叶子同样在找到它的那次持有中读取
+	 * 一个叶子的项全部判定之后再交给beforeRemove并删除
+	 * 相邻的两个叶子有一个过空时调整，见rebalance
+	 * @return 删除的项数
+	 */
+	public int removeIf(RemoveFilter filter) throws Exception {
+		long leafUid = 0;
+		boolean started = false;
+		int removed = 0;
+		// 上一个叶子及其左侧的叶子，上一个叶子中剩余的项数，之前读到的最大键
+		long prevPrevUid = 0;
+		long prevUid = 0;
+		int prevKeys = 0;
+		long lastKey = 0;
+		while (!started || leafUid != 0) {
+			treeLock.readLock().lock();
+			try {
+				if (!started) {
+					leafUid = searchLeaf(rootUid(), Long.MIN_VALUE);
+					started = true;
+				}
+				Node leaf = Node.loadNode(this, leafUid);
+				Node.LeafEntriesRes res = leaf.leafEntries();
+				leaf.release();
+				
+				boolean[] hit = new boolean[res.uids.length];
+				int hits = 0;
+				for (int i = 0; i < res.uids.length; i++) {
+					if (filter.test(res.uids[i])) {
+						hit[i] = true;
+						hits++;
+					}
+				}
+				if (hits > 0) {
+					long[] uids = new long[hits];
+					for (int i = 0, j = 0; i < res.uids.length; i++) {
+						if (hit[i]) {
+							uids[j++] = res.uids[i];
+						}
+					}
+					filter.beforeRemove(uids);
+				}
+				
+				int count = 0;
+				for (int i = 0; i < res.uids.length; i++) {
+					if (hit[i] && remove(leafUid, res.keys[i], res.uids[i])) {
+						count++;
+					}
+				}
+				removed += count;
+				
+				int keys = res.uids.length - count;
+				boolean unlinked = false;
+				if (prevUid != 0 && (keys < balance / 2 || prevKeys < balance / 2)) {
+					long key = res.keys.length > 0 ? res.keys[0] : lastKey;
+					RebalanceRes r = rebalance(prevPrevUid, prevUid, leafUid, key, keys < balance / 2);
+					unlinked = r.unlinked;
+					keys += r.moved;
+				}
+				
+				if (!unlinked) {
+					prevPrevUid = prevUid;
+				}
+				prevUid = leafUid;
+				prevKeys = keys;
+				if (res.keys.length > 0) {
+					lastKey = res.keys[res.keys.length - 1];
+				}
+				leafUid = res.siblingUid;
+			} finally {
+				treeLock.readLock().unlock();
+			}
+			filter.afterLeaf();
+		}
+		return removed;
+	}
+	
+	class RebalanceRes {
+		// 移入leafUid的项数
+		int moved;
+		boolean unlinked;
+	}
+	
+	/**
+	 * 调整相邻的叶子prevUid与leafUid：二者合计不超过balance项时，把prevUid的项全部移入leafUid；
+	 * 否则leafUid过空时从prevUid分得一些项。项只向右移动，不破坏沿兄弟指针查找的前提
+	 * 两种调整都只在两个叶子属于同一父节点时进行，以便修改父节点，key为用于找到父节点的键
+	 * 合并后的空叶子从父节点和左侧叶子prevPrevUid的兄弟指针中摘除，仍指向leafUid，
+	 * 已到达它的查找可以继续；它由takeUnlinked交给调用者，待这些查找结束后释放
+	 * 内部节点不合并，树的高度不会降低
+	 */
+	private RebalanceRes rebalance(long prevPrevUid, long prevUid, long leafUid, long key, boolean underfull) throws Exception {
+		RebalanceRes res = new RebalanceRes();
+		long parentUid = searchParent(key);
+		if (parentUid == 0 || !adjacent(parentUid, prevUid, leafUid)) {
+			return res;
+		}
+		
+		Node prev = Node.loadNode(this, prevUid);
+		Node leaf = Node.loadNode(this, leafUid);
+		try {
+			int moved = prev.mergeInto(leaf, balance);
+			if (moved >= 0) {
+				merged.increment();
+				res.moved = moved;
+				res.unlinked = unlink(parentUid, prevPrevUid, prevUid, leafUid);
+				if (res.unlinked) {
+					synchronized (unlinked) {
+						unlinked.add(prevUid);
+					}
+				}
+				return res;
+			}
+			
+			if (underfull) {
+				Node.MoveTailRes r = prev.moveTailTo(leaf, balance);
+				if (r.moved > 0) {
+					redistributed.increment();
+					res.moved = r.moved;
+					lowerSonKey(parentUid, prevUid, leafUid, r.newKey);
+				}
+			}
+			return res;
+		} finally {
+			leaf.release();
+			prev.release();
+		}
+	}
+	
+	/**
+	 * 查找key所在叶子的父节点，根是叶子时返回0
+	 */
+	private long searchParent(long key) throws Exception {
+		long nodeUid = rootUid();
+		Node node = Node.loadNode(this, nodeUid);
+		boolean leaf = node.isLeaf();
+		node.release();
+		if (leaf) {
+			return 0;
+		}
+		
+		while (true) {
+			node = Node.loadNode(this, nodeUid);
+			Node.SearchNextRes res = node.searchNext(key);
+			node.release();
+			if (res.uid == 0) {
+				nodeUid = res.siblingUid;
+				continue;
+			}
+			
+			Node son = Node.loadNode(this, res.uid);
+			leaf = son.isLeaf();
+			son.release();
+			if (leaf) {
+				return nodeUid;
+			}
+			nodeUid = res.uid;
+		}
+	}
+	
+	/**
+	 * left与right是否为parentUid或其右侧兄弟中相邻的两个子节点
+	 */
+	private boolean adjacent(long parentUid, long left, long right) throws Exception {
+		while (parentUid != 0) {
+			Node parent = Node.loadNode(this, parentUid);
+			Node.SonRes res = parent.adjacentSons(left, right);
+			parent.release();
+			if (res.found) {
+				return res.done;
+			}
+			parentUid = res.siblingUid;
+		}
+		return false;
+	}
+	
+	/**
+	 * 从父节点中删除空叶子leafUid，再把左侧叶子prevUid指向它的兄弟指针改为指向nextUid
+	 * 父节点不能删除它时仍留在树中，之后的查找经过它到达右侧兄弟
+	 */
+	private boolean unlink(long parentUid, long prevUid, long leafUid, long nextUid) throws Exception {
 		while (true) {
+			if (parentUid == 0) {
+				return false;
+			}
+			Node parent = Node.loadNode(this, parentUid);
+			Node.SonRes res = parent.removeSon(leafUid);
+			parent.release();
+			if (res.found) {
+				if (!res.done) {
+					return false;
+				}
+				break;
+			}
+			parentUid = res.siblingUid;
+		}
+		
+		// 最左侧的叶子没有左侧兄弟，新节点只会出现在分裂的节点右侧
+		if (prevUid == 0) {
+			return true;
+		}
+		// 左侧叶子分裂出的新节点在其与leafUid之间，沿兄弟指针找到
+		while (prevUid != 0 && prevUid != leafUid) {
+			Node prev = Node.loadNode(this, prevUid);
+			Node.SonRes res = prev.replaceSibling(leafUid, nextUid);
+			prev.release();
+			if (res.done) {
+				return true;
+			}
+			prevUid = res.siblingUid;
+		}
+		return false;
+	}
+	
+	private void lowerSonKey(long parentUid, long son, long right, long key) throws Exception {
+		while (parentUid != 0) {
+			Node parent = Node.loadNode(this, parentUid);
+			Node.SonRes res = parent.lowerSonKey(son, right, key);
+			parent.release();
+			if (res.found) {
+				return;
+			}
+			parentUid = res.siblingUid;
+		}
+	}
+	
+	/**
+	 * 取出removeIf摘除的叶子，此时可能仍有查找持有其uid，
+	 * 调用者须等到这些查找结束（如开始时活跃的事务都已结束）后再用freeNodes释放
+	 */
+	public long[] takeUnlinked() {
+		synchronized (unlinked) {
+			long[] uids = unlinked.stream().mapToLong(Long::longValue).toArray();
+			unlinked.clear();
+			return uids;
+		}
+	}
+	
+	/**
+	 * 把takeUnlinked取得的节点标记为非法并释放其空间
+	 * @return 释放的字节数
+	 */
+	public static long freeNodes(DataManager dm, long[] uids) throws Exception {
+		for (long uid : uids) {
+			DataItem di = dm.read(uid);
+			if (di == null) {
+				continue;
+			}
+			di.before();
+			DataItem.setDataItemRawInvalid(di.getRaw());
+			di.after(TransactionManagerImpl.SUPER_XID);
+			di.release();
+		}
+		return dm.reclaim(uids);
+	}
+	
+	public long getMergedCount() {
+		return merged.sum();
+	}
+	
+	public long getRedistributedCount() {
+		return redistributed.sum();
+	}
+	
+	private boolean remove(long leafUid, long key, long uid) throws Exception {
+		while (leafUid != 0) {
 			Node leaf = Node.loadNode(this, leafUid);
-			Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
+			Node.LeafRemoveRes res = leaf.leafRemove(key, uid);
 			leaf.release();
-			uids.addAll(res.uidList);
 			
-			if (res.siblingUid == 0) {
-				break;
-			} else {
-				leafUid = res.siblingUid;
+			if (res.removed) {
+				return true;
 			}
+			leafUid = res.siblingUid;
 		}
-		return uids;
+		return false;
 	}
 	
 	public void insert(long key, long uid) throws Exception {
+		treeLock.readLock().lock();
+		try {
+			internInsert(key, uid);
+		} finally {
+			treeLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * 批量构建的输入，按(键, uid)降序依次给出各项
+	 */
+	public interface DescendingEntries {
+		// 移动到下一项，没有更多的项时返回false
+		boolean next() throws Exception;
+		long key();
+		long uid();
+	}
+	
+	/**
+	 * 批量插入按键升序排列的项
+	 */
+	public void bulkInsert(long[] keys, long[] uids) throws Exception {
+		bulkInsert(new DescendingEntries() {
+			int i = keys.length;
+			
+			@Override
+			public boolean next() {
+				return --i >= 0;
+			}
+			
+			@Override
+			public long key() {
+				return keys[i];
+			}
+			
+			@Override
+			public long uid() {
+				return uids[i];
+			}
+		});
+	}
+	
+	/**
+	 * 空树自底向上构建：叶子依次装满，再逐层构建内部节点，最后替换根并释放原来的空根；非空树逐项插入
+	 */
+	public void bulkInsert(DescendingEntries entries) throws Exception {
+		treeLock.writeLock().lock();
+		try {
+			long rootUid = rootUid();
+			Node root = Node.loadNode(this, rootUid);
+			boolean empty = root.isEmptyLeaf();
+			root.release();
+			
+			if (empty) {
+				build(entries, rootUid);
+				return;
+			}
+		} finally {
+			treeLock.writeLock().unlock();
+		}
+		
+		while (entries.next()) {
+			insert(entries.key(), entries.uid());
+		}
+	}
+	
+	/**
+	 * 从右向左构建每一层，右侧节点先插入才能得到兄弟指针
+	 * 每层从右侧开始装满节点，项数不足的节点在最左侧
+	 * 内部节点的第i个键为第i个与第i+1个子节点的分隔键，最右节点的最后一个键为MAX_VALUE
+	 * 持有treeLock的写锁，其他操作都在同一次持有读锁期间从根找到并读取叶子，
+	 * 没有操作停留在原来的根上，替换后即可释放
+	 */
+	private void build(DescendingEntries entries, long oldRootUid) throws Exception {
+		// 当前层的节点，及其子树中最小与最大的键，均从右向左排列
+		List<Long> nodes = new ArrayList<>();
+		List<Long> nodeFirstKeys = new ArrayList<>();
+		List<Long> nodeLastKeys = new ArrayList<>();
+		
+		int bulk = Node.bulkNumber(balance);
+		long[] keys = new long[bulk];
+		long[] sons = new long[bulk];
+		int pos = bulk;
+		long sibling = 0;
+		while (true) {
+			boolean more = entries.next();
+			if (more) {
+				pos--;
+				keys[pos] = entries.key();
+				sons[pos] = entries.uid();
+			}
+			if (pos == 0 || (!more && pos < bulk)) {
+				byte[] raw = Node.newNodeRaw(balance, true, Arrays.copyOfRange(sons, pos, bulk),
+						Arrays.copyOfRange(keys, pos, bulk), sibling);
+				sibling = dm.insert(TransactionManagerImpl.SUPER_XID, raw);
+				nodes.add(sibling);
+				nodeFirstKeys.add(keys[pos]);
+				nodeLastKeys.add(keys[bulk - 1]);
+				pos = bulk;
+			}
+			if (!more) {
+				break;
+			}
+		}
+		
+		if (nodes.isEmpty()) {
+			return;
+		}
+		
+		long[] level = reversed(nodes);
+		long[] firstKeys = reversed(nodeFirstKeys);
+		long[] lastKeys = reversed(nodeLastKeys);
+		while (level.length > 1) {
+			int count = (level.length + bulk - 1) / bulk;
+			long[] upper = new long[count];
+			long[] upperFirstKeys = new long[count];
+			long[] upperLastKeys = new long[count];
+			sibling = 0;
+			
+			for (int i = count - 1; i >= 0; i--) {
+				int to = level.length - (count - 1 - i) * bulk;
+				int from = Math.max(to - bulk, 0);
+				
+				long[] k = new long[to - from];
+				for (int j = from; j < to; j++) {
+					k[j - from] = j + 1 == level.length ? Long.MAX_VALUE : Node.separator(lastKeys[j], firstKeys[j + 1]);
+				}
+				
+				byte[] raw = Node.newNodeRaw(balance, false, Arrays.copyOfRange(level, from, to), k, sibling);
+				sibling = dm.insert(TransactionManagerImpl.SUPER_XID, raw);
+				upper[i] = sibling;
+				upperFirstKeys[i] = firstKeys[from];
+				upperLastKeys[i] = lastKeys[to - 1];
+			}
+			
+			level = upper;
+			firstKeys = upperFirstKeys;
+			lastKeys = upperLastKeys;
+		}
+		
+		bootLock.lock();
+		try {
+			setRootUid(level[0]);
+		} finally {
+			bootLock.unlock();
+		}
+		freeNodes(dm, new long[]{oldRootUid});
+	}
+	
+	private static long[] reversed(List<Long> list) {
+		long[] arr = new long[list.size()];
+		for (int i = 0; i < arr.length; i++) {
+			arr[i] = list.get(arr.length - 1 - i);
+		}
+		return arr;
+	}
+	
+	private void internInsert(long key, long uid) throws Exception {
 		long rootUid = rootUid();
 		InsertRes res = insert(rootUid, uid, key);
 		assert res != null;
@@ -133,13 +807,13 @@ public class BPlusTree {
 	
 	private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
 		Node node = Node.loadNode(this, nodeUid);
-		node.release();
 		
 		InsertRes res;
 		if (node.isLeaf()) {
+			node.release();
 			res = insertAndSplit(nodeUid, uid, key);
 		} else {
-			long next = searchNext(nodeUid, key);
+			long next = searchNext(node, key);
 			InsertRes nextRes = insert(next, uid, key);
 			
 			if (nextRes.newNode != 0) {
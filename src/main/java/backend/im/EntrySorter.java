@@ -0,0 +1,276 @@
+package backend.im;
+
+import backend.utils.Panic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * @date 2024/1/28
+ * @package backend.im
+ *
+ * (键, uid)对的外部归并排序，为批量构建索引按降序给出所有项
+ * 项先在内存中累积，达到runSize时排序后写入临时文件，成为一个顺串
+ * 读取时归并所有顺串与内存中剩余的项，相同的项只给出一次
+ * 所有项都能放在内存中时不写文件
+ *
+ * 顺串文件：[key: 8][uid: 8]...，按降序排列
+ */
+public class EntrySorter implements BPlusTree.DescendingEntries {
+	// 默认内存中最多保存的项数，约16MB
+	public static final int DEFAULT_RUN_SIZE = 1 << 20;
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private final int runSize;
+	private long[] keys;
+	private long[] uids;
+	private int size;
+	List<File> files = new ArrayList<>();
+	
+	// 归并中的顺串，按当前项降序排列
+	private PriorityQueue<Run> heap;
+	private long key;
+	private long uid;
+	private boolean hasCurrent;
+	
+	public EntrySorter() {
+		this(DEFAULT_RUN_SIZE);
+	}
+	
+	public EntrySorter(int runSize) {
+		this.runSize = runSize;
+		keys = new long[Math.min(runSize, 1024)];
+		uids = new long[keys.length];
+	}
+	
+	public void add(long key, long uid) throws IOException {
+		assert heap == null;
+		if (size == keys.length) {
+			if (size == runSize) {
+				spill();
+			} else {
+				int length = Math.min(size * 2, runSize);
+				keys = Arrays.copyOf(keys, length);
+				uids = Arrays.copyOf(uids, length);
+			}
+		}
+		keys[size] = key;
+		uids[size] = uid;
+		size++;
+	}
+	
+	/**
+	 * 排序内存中的项并写入一个顺串文件
+	 */
+	private void spill() throws IOException {
+		sort(0, size - 1);
+		File f = File.createTempFile("index", ".run");
+		files.add(f);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE))) {
+			for (int i = 0; i < size; i++) {
+				out.writeLong(keys[i]);
+				out.writeLong(uids[i]);
+			}
+		}
+		size = 0;
+	}
+	
+	@Override
+	public boolean next() throws Exception {
+		if (heap == null) {
+			startMerge();
+		}
+		
+		while (!heap.isEmpty()) {
+			Run run = heap.poll();
+			long k = run.key;
+			long u = run.uid;
+			if (run.advance()) {
+				heap.add(run);
+			}
+			
+			if (hasCurrent && k == key && u == uid) {
+				continue;
+			}
+			key = k;
+			uid = u;
+			hasCurrent = true;
+			return true;
+		}
+		return false;
+	}
+	
+	private void startMerge() throws IOException {
+		sort(0, size - 1);
+		heap = new PriorityQueue<>((a, b) -> compare(b.key, b.uid, a.key, a.uid));
+		
+		Run memory = new MemoryRun();
+		if (memory.advance()) {
+			heap.add(memory);
+		}
+		for (File f : files) {
+			Run run = new FileRun(f);
+			if (run.advance()) {
+				heap.add(run);
+			}
+		}
+	}
+	
+	@Override
+	public long key() {
+		return key;
+	}
+	
+	@Override
+	public long uid() {
+		return uid;
+	}
+	
+	/**
+	 * 关闭并删除所有顺串文件
+	 */
+	public void close() {
+		if (heap != null) {
+			for (Run run : heap) {
+				run.close();
+			}
+		}
+		for (File f : files) {
+			if (f.exists() && !f.delete()) {
+				Panic.panic(new IOException("Cannot delete " + f));
+			}
+		}
+		files.clear();
+	}
+	
+	private static int compare(long k1, long u1, long k2, long u2) {
+		return k1 != k2 ? Long.compare(k1, k2) : Long.compare(u1, u2);
+	}
+	
+	// 第i项是否应排在第j项之前（降序）
+	private boolean before(int i, int j) {
+		return compare(keys[i], uids[i], keys[j], uids[j]) > 0;
+	}
+	
+	private void swap(int i, int j) {
+		long k = keys[i];
+		keys[i] = keys[j];
+		keys[j] = k;
+		long u = uids[i];
+		uids[i] = uids[j];
+		uids[j] = u;
+	}
+	
+	/**
+	 * 对[lo, hi]快速排序，先递归较短的一侧，栈深度不超过log(n)
+	 */
+	private void sort(int lo, int hi) {
+		while (hi - lo > 16) {
+			int mid = (lo + hi) >>> 1;
+			if (before(mid, lo)) {
+				swap(mid, lo);
+			}
+			if (before(hi, lo)) {
+				swap(hi, lo);
+			}
+			if (before(hi, mid)) {
+				swap(hi, mid);
+			}
+			swap(mid, hi - 1);
+			
+			int pivot = hi - 1;
+			int i = lo;
+			int j = hi - 1;
+			while (true) {
+				while (before(++i, pivot)) ;
+				while (before(pivot, --j)) ;
+				if (i >= j) {
+					break;
+				}
+				swap(i, j);
+			}
+			swap(i, pivot);
+			
+			if (i - lo < hi - i) {
+				sort(lo, i - 1);
+				lo = i + 1;
+			} else {
+				sort(i + 1, hi);
+				hi = i - 1;
+			}
+		}
+		
+		for (int i = lo + 1; i <= hi; i++) {
+			for (int j = i; j > lo && before(j, j - 1); j--) {
+				swap(j, j - 1);
+			}
+		}
+	}
+	
+	private abstract static class Run {
+		long key;
+		long uid;
+		
+		// 读取下一项，没有更多的项时返回false
+		abstract boolean advance() throws IOException;
+		
+		void close() {
+		}
+	}
+	
+	private class MemoryRun extends Run {
+		private int pos;
+		
+		@Override
+		boolean advance() {
+			if (pos == size) {
+				return false;
+			}
+			key = keys[pos];
+			uid = uids[pos];
+			pos++;
+			return true;
+		}
+	}
+	
+	private static class FileRun extends Run {
+		private DataInputStream in;
+		
+		FileRun(File f) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE));
+		}
+		
+		@Override
+		boolean advance() throws IOException {
+			try {
+				key = in.readLong();
+				uid = in.readLong();
+				return true;
+			} catch (EOFException e) {
+				close();
+				return false;
+			}
+		}
+		
+		@Override
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				Panic.panic(e);
+			}
+		}
+	}
+}
@@ -2,12 +2,14 @@ package backend.im;
 
 import backend.common.SubArray;
 import backend.dm.dataItem.DataItem;
+import backend.dm.dataItem.DataItemImpl;
+import backend.dm.page.PageX;
 import backend.tm.TransactionManagerImpl;
-import backend.utils.Parser;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.function.Supplier;
 
 /**
  * @date 2024/1/16
@@ -18,15 +20,29 @@ import java.util.List;
  * [son0][key0][son1][key1]...[sonN][keyN]
  * <p>
  * keyN作为边界设为MAX_VALUE
+ * <p>
+ * 键有序，查找时二分
+ * <p>
+ * 查找只读取节点时不加锁，依靠DataItem的版本检查读取期间没有修改，修改节点时仍加写锁
  */
 public class Node {
+	// 直接读写节点所在页面中的数据，不复制
+	private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+	
 	static final int IS_LEAF_OFFSET = 0;
 	static final int NUM_KEYS_OFFSET = IS_LEAF_OFFSET + 1;
 	static final int SIBLING_OFFSET = NUM_KEYS_OFFSET + 2;
 	static final int NODE_HEADER_SIZE = SIBLING_OFFSET + 8;
 	
-	static final int BALANCE_NUMBER = 32;
-	static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * 2 * BALANCE_NUMBER;
+	// 每个节点最多2 * balance个键，达到时分裂为两个各有balance个键的节点
+	// 节点大小由balance决定，同一棵树的节点大小相同，由节点的大小即可得到balance
+	static final int MIN_BALANCE_NUMBER = 2;
+	// 默认的节点占满一页
+	static final int DEFAULT_BALANCE_NUMBER = (PageX.MAX_FREE_SPACE - DataItemImpl.OF_DATA - NODE_HEADER_SIZE) / ((2 * 8) * 2);
+	
+	// 乐观读失败多少次后改为加读锁
+	static final int OPTIMISTIC_RETRIES = 4;
 	
 	BPlusTree tree;
 	DataItem dataItem;
@@ -43,39 +59,97 @@ public class Node {
 	}
 	
 	static void setRawNumKeys(SubArray raw, int numKeys) {
-		System.arraycopy(Parser.short2Byte((short) numKeys), 0, raw.raw, raw.start + NUM_KEYS_OFFSET, 2);
+		SHORT.set(raw.raw, raw.start + NUM_KEYS_OFFSET, (short) numKeys);
 	}
 	
 	static int getRawNumKeys(SubArray raw) {
-		return Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NUM_KEYS_OFFSET, raw.start + NUM_KEYS_OFFSET + 2));
+		return (short) SHORT.get(raw.raw, raw.start + NUM_KEYS_OFFSET);
 	}
 	
 	static void setRawSibling(SubArray raw, long sibling) {
-		System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start + SIBLING_OFFSET, 8);
+		LONG.set(raw.raw, raw.start + SIBLING_OFFSET, sibling);
 	}
 	
 	static long getRawSibling(SubArray raw) {
-		return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8));
+		return (long) LONG.get(raw.raw, raw.start + SIBLING_OFFSET);
 	}
 	
 	static void setRawKthSon(SubArray raw, long uid, int kth) {
 		int offset = raw.start + NODE_HEADER_SIZE + kth * (2 * 8);
-		System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+		LONG.set(raw.raw, offset, uid);
 	}
 	
 	static long getRawKthSon(SubArray raw, int kth) {
 		int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-		return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+		return (long) LONG.get(raw.raw, offset);
 	}
 	
 	static void setRawKthKey(SubArray raw, long key, int kth) {
 		int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-		System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+		LONG.set(raw.raw, offset, key);
 	}
 	
 	static long getRawKthKey(SubArray raw, int kth) {
 		int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-		return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+		return (long) LONG.get(raw.raw, offset);
+	}
+	
+	/**
+	 * 第一个不小于key的键的位置，没有时返回numKeys
+	 */
+	static int lowerBound(SubArray raw, long key) {
+		int lo = 0;
+		int hi = getRawNumKeys(raw);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (getRawKthKey(raw, mid) < key) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	/**
+	 * 第一个大于key的键的位置，没有时返回numKeys
+	 */
+	static int upperBound(SubArray raw, long key) {
+		int lo = 0;
+		int hi = getRawNumKeys(raw);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (getRawKthKey(raw, mid) <= key) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	static int nodeSize(int balance) {
+		return NODE_HEADER_SIZE + (2 * 8) * 2 * balance;
+	}
+	
+	static int getRawBalance(SubArray raw) {
+		return (raw.end - raw.start - NODE_HEADER_SIZE) / ((2 * 8) * 2);
+	}
+	
+	// 批量构建时每个节点的项数，再插入一项即分裂
+	static int bulkNumber(int balance) {
+		return 2 * balance - 1;
+	}
+	
+	/**
+	 * 查找时小于分隔键的键进入左侧，相同的键跨越两个节点时，分隔键须大于左侧的最大键，
+	 * 查找从左侧开始，再沿兄弟指针找到右侧的部分
+	 */
+	static long separator(long leftLast, long rightFirst) {
+		if (leftLast < rightFirst || leftLast == Long.MAX_VALUE) {
+			return rightFirst;
+		}
+		return leftLast + 1;
 	}
 	
 	static void copyRawFromKth(SubArray from, SubArray to, int kth) {
@@ -85,15 +159,24 @@ public class Node {
 	
 	static void shiftRawKth(SubArray raw, int kth) {
 		int begin = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-		int end = raw.start + NODE_SIZE;
+		int end = raw.end;
 		
 		if (end - begin > 0) {
 			System.arraycopy(raw.raw, begin, raw.raw, begin + 2 * 8, end - begin - 2 * 8);
 		}
 	}
 	
-	static byte[] newRootRaw(long left, long right, long key) {
-		SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+	static void unshiftRawKth(SubArray raw, int kth) {
+		int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
+		int end = raw.end;
+		
+		if (end - begin > 0) {
+			System.arraycopy(raw.raw, begin, raw.raw, begin - 2 * 8, end - begin);
+		}
+	}
+	
+	static byte[] newRootRaw(int balance, long left, long right, long key) {
+		SubArray raw = newRaw(balance);
 		
 		setRawIsLeaf(raw, false);
 		setRawNumKeys(raw, 2);
@@ -106,8 +189,8 @@ public class Node {
 		return raw.raw;
 	}
 	
-	static byte[] newNilRootRaw() {
-		SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+	static byte[] newNilRootRaw(int balance) {
+		SubArray raw = newRaw(balance);
 		
 		setRawIsLeaf(raw, true);
 		setRawNumKeys(raw, 0);
@@ -116,6 +199,28 @@ public class Node {
 		return raw.raw;
 	}
 	
+	/**
+	 * 由sons与keys构建节点，供批量构建使用
+	 */
+	static byte[] newNodeRaw(int balance, boolean isLeaf, long[] sons, long[] keys, long sibling) {
+		SubArray raw = newRaw(balance);
+		
+		setRawIsLeaf(raw, isLeaf);
+		setRawNumKeys(raw, sons.length);
+		setRawSibling(raw, sibling);
+		for (int i = 0; i < sons.length; i++) {
+			setRawKthSon(raw, sons[i], i);
+			setRawKthKey(raw, keys[i], i);
+		}
+		
+		return raw.raw;
+	}
+	
+	private static SubArray newRaw(int balance) {
+		int size = nodeSize(balance);
+		return new SubArray(new byte[size], 0, size);
+	}
+	
 	static Node loadNode(BPlusTree btree, long uid) throws Exception {
 		DataItem di = btree.dm.read(uid);
 		
@@ -133,10 +238,55 @@ public class Node {
 		dataItem.release();
 	}
 	
+	/**
+	 * 节点是否为叶子在创建后不再改变，不需要加锁
+	 */
 	public boolean isLeaf() {
+		return getRawIsLeaf(raw);
+	}
+	
+	public int getBalance() {
+		return getRawBalance(raw);
+	}
+	
+	/**
+	 * 没有任何项的叶子，即空树的根
+	 */
+	public boolean isEmptyLeaf() {
+		dataItem.rLock();
+		try {
+			return getRawIsLeaf(raw) && getRawNumKeys(raw) == 0;
+		} finally {
+			dataItem.rUnlock();
+		}
+	}
+	
+	/**
+	 * 先不加锁读取节点，读取前后版本相同时结果有效，否则重试，多次失败后加读锁读取
+	 * 读到修改中途的数据时可能越界，版本检查失败后丢弃该异常
+	 */
+	private <T> T optimisticRead(Supplier<T> reader) {
+		for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+			long version = dataItem.tryOptimisticRead();
+			if (version < 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+			try {
+				T res = reader.get();
+				if (dataItem.validate(version)) {
+					return res;
+				}
+			} catch (RuntimeException e) {
+				if (dataItem.validate(version)) {
+					throw e;
+				}
+			}
+		}
+		
 		dataItem.rLock();
 		try {
-			return getRawIsLeaf(raw);
+			return reader.get();
 		} finally {
 			dataItem.rUnlock();
 		}
@@ -148,69 +298,286 @@ public class Node {
 	}
 	
 	public SearchNextRes searchNext(long key) {
-		dataItem.rLock();
-		
-		try {
+		return optimisticRead(() -> {
 			SearchNextRes res = new SearchNextRes();
+			int kth = upperBound(raw, key);
+			
+			if (kth < getRawNumKeys(raw)) {
+				res.siblingUid = 0;
+				res.uid = getRawKthSon(raw, kth);
+				return res;
+			}
+			
+			res.siblingUid = getRawSibling(raw);
+			res.uid = 0;
+			return res;
+		});
+	}
+	
+	class LeafSearchRangeRes {
+		long[] keys;
+		long[] uids;
+		long siblingUid;
+	}
+	
+	public LeafSearchRangeRes leafSearchRange(long left, long right) {
+		return optimisticRead(() -> {
 			int numKeys = getRawNumKeys(raw);
+			int from = lowerBound(raw, left);
+			int to = Math.max(from, upperBound(raw, right));
 			
+			long[] keys = new long[to - from];
+			long[] uids = new long[to - from];
+			for (int k = from; k < to; k++) {
+				keys[k - from] = getRawKthKey(raw, k);
+				uids[k - from] = getRawKthSon(raw, k);
+			}
+			
+			LeafSearchRangeRes res = new LeafSearchRangeRes();
+			res.siblingUid = to == numKeys ? getRawSibling(raw) : 0;
+			res.keys = keys;
+			res.uids = uids;
+			return res;
+		});
+	}
+	
+	class LeafEntriesRes {
+		long[] keys;
+		long[] uids;
+		long siblingUid;
+	}
+	
+	/**
+	 * 复制出叶子中的所有项
+	 */
+	public LeafEntriesRes leafEntries() {
+		return optimisticRead(() -> {
+			int numKeys = getRawNumKeys(raw);
+			LeafEntriesRes res = new LeafEntriesRes();
+			res.keys = new long[numKeys];
+			res.uids = new long[numKeys];
 			for (int i = 0; i < numKeys; i++) {
-				long k = getRawKthKey(raw, i);
+				res.keys[i] = getRawKthKey(raw, i);
+				res.uids[i] = getRawKthSon(raw, i);
+			}
+			res.siblingUid = getRawSibling(raw);
+			return res;
+		});
+	}
+	
+	class LeafRemoveRes {
+		boolean removed;
+		long siblingUid;
+	}
+	
+	/**
+	 * 从叶子中删除(key, uid)，不合并节点
+	 * 未找到且key不小于本节点的所有键时，该项可能已因分裂移到兄弟节点，返回兄弟节点
+	 */
+	public LeafRemoveRes leafRemove(long key, long uid) {
+		LeafRemoveRes res = new LeafRemoveRes();
+		
+		dataItem.before();
+		try {
+			int numKeys = getRawNumKeys(raw);
+			for (int kth = lowerBound(raw, key); kth < numKeys; kth++) {
+				long k = getRawKthKey(raw, kth);
+				if (k > key) {
+					return res;
+				}
 				
-				if (key < k) {
-					res.siblingUid = 0;
-					res.uid = getRawKthSon(raw, i);
+				if (k == key && getRawKthSon(raw, kth) == uid) {
+					unshiftRawKth(raw, kth);
+					setRawNumKeys(raw, numKeys - 1);
+					res.removed = true;
 					return res;
 				}
 			}
 			
 			res.siblingUid = getRawSibling(raw);
-			res.uid = 0;
 			return res;
 		} finally {
-			dataItem.rUnlock();
+			if (res.removed) {
+				dataItem.after(TransactionManagerImpl.SUPER_XID);
+			} else {
+				dataItem.unBefore();
+			}
 		}
 	}
 	
-	class LeafSearchRangeRes {
-		List<Long> uidList;
+	/**
+	 * 把本叶子的所有项移到右侧兄弟right的开头，本节点成为只剩兄弟指针的空叶子
+	 * 项只向右移动，沿兄弟指针的查找不会遗漏；两个节点的修改记在同一条日志中，
+	 * 崩溃后不会出现项已移入right而本节点未清空的状态
+	 * @return 移动的项数，right已不是兄弟节点或合并后超过limit项时不合并，返回-1
+	 */
+	public int mergeInto(Node right, int limit) {
+		dataItem.before();
+		right.dataItem.before();
+		int numKeys = getRawNumKeys(raw);
+		int rightKeys = getRawNumKeys(right.raw);
+		if (getRawSibling(raw) != right.uid || numKeys + rightKeys > limit) {
+			right.dataItem.unBefore();
+			dataItem.unBefore();
+			return -1;
+		}
+		
+		moveEntries(raw, numKeys, 0, right.raw, rightKeys);
+		setRawNumKeys(raw, 0);
+		DataItem.afterAll(TransactionManagerImpl.SUPER_XID, right.dataItem, dataItem);
+		return numKeys;
+	}
+	
+	class MoveTailRes {
+		int moved;
+		// 移动后本节点与right之间的分隔键
+		long newKey;
+	}
+	
+	/**
+	 * 把本叶子最后的项移到右侧兄弟right的开头，使两个节点的项数接近，用于right过空时重新分配
+	 * 本节点的项数不多于minKeys时不移动，两个节点的修改与mergeInto一样记在同一条日志中
+	 */
+	public MoveTailRes moveTailTo(Node right, int minKeys) {
+		MoveTailRes res = new MoveTailRes();
+		dataItem.before();
+		right.dataItem.before();
+		int numKeys = getRawNumKeys(raw);
+		int rightKeys = getRawNumKeys(right.raw);
+		int count = (numKeys - rightKeys) / 2;
+		if (getRawSibling(raw) != right.uid || numKeys <= minKeys || count <= 0) {
+			right.dataItem.unBefore();
+			dataItem.unBefore();
+			return res;
+		}
+		
+		res.moved = count;
+		res.newKey = separator(getRawKthKey(raw, numKeys - count - 1), getRawKthKey(raw, numKeys - count));
+		moveEntries(raw, numKeys, numKeys - count, right.raw, rightKeys);
+		setRawNumKeys(raw, numKeys - count);
+		DataItem.afterAll(TransactionManagerImpl.SUPER_XID, right.dataItem, dataItem);
+		return res;
+	}
+	
+	/**
+	 * 把from中[kth, numKeys)的项插入到to已有的toKeys项之前
+	 */
+	private static void moveEntries(SubArray from, int numKeys, int kth, SubArray to, int toKeys) {
+		int count = numKeys - kth;
+		int begin = to.start + NODE_HEADER_SIZE;
+		System.arraycopy(to.raw, begin, to.raw, begin + count * (2 * 8), toKeys * (2 * 8));
+		System.arraycopy(from.raw, from.start + NODE_HEADER_SIZE + kth * (2 * 8), to.raw, begin, count * (2 * 8));
+		setRawNumKeys(to, toKeys + count);
+	}
+	
+	class SonRes {
+		boolean found;
+		boolean done;
 		long siblingUid;
 	}
 	
-	public LeafSearchRangeRes leafSearchRange(long left, long right) {
-		dataItem.rLock();
+	/**
+	 * 内部节点中left与right是否为相邻的两个子节点，不在本节点时返回兄弟节点
+	 */
+	public SonRes adjacentSons(long left, long right) {
+		return optimisticRead(() -> {
+			SonRes res = new SonRes();
+			int numKeys = getRawNumKeys(raw);
+			for (int i = 0; i < numKeys; i++) {
+				if (getRawKthSon(raw, i) == left) {
+					res.found = true;
+					res.done = i + 1 < numKeys && getRawKthSon(raw, i + 1) == right;
+					return res;
+				}
+			}
+			res.siblingUid = getRawSibling(raw);
+			return res;
+		});
+	}
+	
+	/**
+	 * 从内部节点中删除子节点son及其键，之后son的键区间由右侧的子节点负责
+	 * son是本节点最后一个子节点时，需有兄弟节点接管其区间，唯一的子节点不删除
+	 */
+	public SonRes removeSon(long son) {
+		SonRes res = new SonRes();
+		dataItem.before();
 		try {
 			int numKeys = getRawNumKeys(raw);
-			int k = 0;
-			
-			while (k < numKeys) {
-				if (getRawKthKey(raw, k) >= left) {
-					break;
+			long sibling = getRawSibling(raw);
+			for (int i = 0; i < numKeys; i++) {
+				if (getRawKthSon(raw, i) == son) {
+					res.found = true;
+					if (numKeys > 1 && (i + 1 < numKeys || sibling != 0)) {
+						unshiftRawKth(raw, i);
+						setRawNumKeys(raw, numKeys - 1);
+						res.done = true;
+					}
+					return res;
 				}
-				k++;
 			}
-			
-			List<Long> uids = new ArrayList<>();
-			while (k < numKeys) {
-				long son = getRawKthSon(raw, k);
-				if (getRawKthKey(raw, k) <= right) {
-					uids.add(son);
-					k++;
-				} else {
-					break;
+			res.siblingUid = sibling;
+			return res;
+		} finally {
+			if (res.done) {
+				dataItem.after(TransactionManagerImpl.SUPER_XID);
+			} else {
+				dataItem.unBefore();
+			}
+		}
+	}
+	
+	/**
+	 * 把内部节点中子节点son的键改为更小的key，son之后须为right，key须大于前一个键
+	 */
+	public SonRes lowerSonKey(long son, long right, long key) {
+		SonRes res = new SonRes();
+		dataItem.before();
+		try {
+			int numKeys = getRawNumKeys(raw);
+			for (int i = 0; i + 1 < numKeys; i++) {
+				if (getRawKthSon(raw, i) == son) {
+					res.found = true;
+					if (getRawKthSon(raw, i + 1) == right && key < getRawKthKey(raw, i) &&
+							(i == 0 || getRawKthKey(raw, i - 1) < key)) {
+						setRawKthKey(raw, key, i);
+						res.done = true;
+					}
+					return res;
 				}
 			}
-			
-			long siblingUid = 0;
-			if (k == numKeys) {
-				siblingUid = getRawSibling(raw);
+			res.siblingUid = getRawSibling(raw);
+			return res;
+		} finally {
+			if (res.done) {
+				dataItem.after(TransactionManagerImpl.SUPER_XID);
+			} else {
+				dataItem.unBefore();
+			}
+		}
+	}
+	
+	/**
+	 * 兄弟指针为from时改为to，否则返回兄弟节点供继续向右查找
+	 */
+	public SonRes replaceSibling(long from, long to) {
+		SonRes res = new SonRes();
+		dataItem.before();
+		try {
+			long sibling = getRawSibling(raw);
+			if (sibling == from) {
+				setRawSibling(raw, to);
+				res.done = true;
+			} else {
+				res.siblingUid = sibling;
 			}
-			LeafSearchRangeRes res = new LeafSearchRangeRes();
-			res.siblingUid = siblingUid;
-			res.uidList = uids;
 			return res;
 		} finally {
-			dataItem.rUnlock();
+			if (res.done) {
+				dataItem.after(TransactionManagerImpl.SUPER_XID);
+			} else {
+				dataItem.unBefore();
+			}
 		}
 	}
 	
@@ -221,7 +588,7 @@ public class Node {
 	}
 	
 	private boolean needSplit() {
-		return 2 * BALANCE_NUMBER == getRawNumKeys(raw);
+		return 2 * getRawBalance(raw) == getRawNumKeys(raw);
 	}
 	
 	public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
@@ -261,16 +628,7 @@ public class Node {
 	
 	private boolean insert(long uid, long key) {
 		int numKeys = getRawNumKeys(raw);
-		int kth = 0;
-		
-		while (kth < numKeys) {
-			long k = getRawKthKey(raw, kth);
-			if (k < key) {
-				kth++;
-			} else {
-				break;
-			}
-		}
+		int kth = lowerBound(raw, key);
 		
 		if (kth == numKeys && getRawSibling(raw) != 0) {
 			return false;
@@ -299,19 +657,22 @@ public class Node {
 	}
 	
 	private SplitRes split() throws Exception {
-		SubArray node = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+		int balance = getRawBalance(raw);
+		SubArray node = newRaw(balance);
 		setRawIsLeaf(node, getRawIsLeaf(raw));
-		setRawNumKeys(node, BALANCE_NUMBER);
+		setRawNumKeys(node, balance);
 		setRawSibling(node, getRawSibling(raw));
-		copyRawFromKth(raw, node, BALANCE_NUMBER);
+		copyRawFromKth(raw, node, balance);
 		
 		long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, node.raw);
-		setRawNumKeys(raw, BALANCE_NUMBER);
+		setRawNumKeys(raw, balance);
 		setRawSibling(raw, son);
 		
+		// 叶子按实际的键计算分隔键；内部节点左侧最后一个键即为左侧所有子树的上界
+		long leftLast = getRawKthKey(raw, balance - 1);
 		SplitRes res = new SplitRes();
 		res.newSon = son;
-		res.newKey = getRawKthKey(node, 0);
+		res.newKey = getRawIsLeaf(raw) ? separator(leftLast, getRawKthKey(node, 0)) : leftLast;
 		return res;
 	}
 	
@@ -23,7 +23,7 @@ public class Parser {
 				case "begin" -> parseBegin(tokenizer);
 				case "commit" -> parseCommit(tokenizer);
 				case "abort" -> parseAbort(tokenizer);
-				case "create" -> parseCreate(tokenizer);
+				case "create" -> "index".equals(tokenizer.peek()) ? parseCreateIndex(tokenizer) : parseCreate(tokenizer);
 				case "drop" -> parseDrop(tokenizer);
 				case "select" -> parseSelect(tokenizer);
 				case "insert" -> parseInsert(tokenizer);
@@ -102,8 +102,8 @@ public class Parser {
 		
 		where.singleExp1 = parseSingleExp(tokenizer);
 		String logicOp = tokenizer.peek();
-		if("".equals(logicOp)) {
-			where.logicOp = logicOp;
+		if("".equals(logicOp) || "limit".equals(logicOp)) {
+			where.logicOp = "";
 			return where;
 		}
 		if(!isLogicOp(logicOp)) {
@@ -114,7 +114,8 @@ public class Parser {
 		
 		where.singleExp2 = parseSingleExp(tokenizer);
 		
-		if(!"".equals(tokenizer.peek())) {
+		String next = tokenizer.peek();
+		if(!"".equals(next) && !"limit".equals(next)) {
 			throw Error.InvalidCommandException;
 		}
 		return where;
@@ -191,22 +192,68 @@ public class Parser {
 		if(!"values".equals(tokenizer.peek())) {
 			throw Error.InvalidCommandException;
 		}
+		tokenizer.pop();
+		
+		// 多行：values (v1, v2), (v3, v4)
+		if("(".equals(tokenizer.peek())) {
+			List<String[]> rows = new ArrayList<>();
+			while(true) {
+				rows.add(parseRow(tokenizer));
+				
+				String next = tokenizer.peek();
+				if("".equals(next)) {
+					break;
+				}
+				if(!",".equals(next)) {
+					throw Error.InvalidCommandException;
+				}
+				tokenizer.pop();
+			}
+			insert.values = rows.toArray(new String[0][]);
+			return insert;
+		}
 		
 		List<String> values = new ArrayList<>();
 		while(true) {
-			tokenizer.pop();
 			String value = tokenizer.peek();
 			if("".equals(value)) {
 				break;
 			} else {
 				values.add(value);
 			}
+			tokenizer.pop();
 		}
-		insert.values = values.toArray(new String[0]);
+		insert.values = new String[][]{values.toArray(new String[0])};
 		
 		return insert;
 	}
 	
+	private static String[] parseRow(Tokenizer tokenizer) throws Exception {
+		if(!"(".equals(tokenizer.peek())) {
+			throw Error.InvalidCommandException;
+		}
+		
+		List<String> values = new ArrayList<>();
+		while(true) {
+			tokenizer.pop();
+			String value = tokenizer.peek();
+			if("".equals(value) || ",".equals(value) || ")".equals(value)) {
+				throw Error.InvalidCommandException;
+			}
+			values.add(value);
+			tokenizer.pop();
+			
+			String next = tokenizer.peek();
+			if(")".equals(next)) {
+				tokenizer.pop();
+				return values.toArray(new String[0]);
+			}
+			if(!",".equals(next)) {
+				throw Error.InvalidCommandException;
+			}
+		}
+	}
+	
 	private static Select parseSelect(Tokenizer tokenizer) throws Exception {
 		Select read = new Select();
 		
@@ -244,16 +291,38 @@ public class Parser {
 		read.tableName = tableName;
 		tokenizer.pop();
 		
+		read.limit = -1;
 		String tmp = tokenizer.peek();
 		if("".equals(tmp)) {
 			read.where = null;
 			return read;
 		}
 		
-		read.where = parseWhere(tokenizer);
+		if(!"limit".equals(tmp)) {
+			read.where = parseWhere(tokenizer);
+		}
+		if("limit".equals(tokenizer.peek())) {
+			tokenizer.pop();
+			read.limit = parseLimit(tokenizer.peek());
+			tokenizer.pop();
+			if(!"".equals(tokenizer.peek())) {
+				throw Error.InvalidCommandException;
+			}
+		}
 		return read;
 	}
 	
+	private static int parseLimit(String token) throws Exception {
+		try {
+			int limit = Integer.parseInt(token);
+			if (limit >= 0) {
+				return limit;
+			}
+		} catch (NumberFormatException e) {
+		}
+		throw Error.InvalidCommandException;
+	}
+	
 	
 	private static Drop parseDrop(Tokenizer tokenizer) throws Exception {
 		if(!"table".equals(tokenizer.peek())) {
@@ -281,6 +350,45 @@ public class Parser {
 						"string".equals(tp));
 	}
 	
+	/**
+	 * create index on tableName (fieldName)
+	 */
+	private static CreateIndex parseCreateIndex(Tokenizer tokenizer) throws Exception {
+		tokenizer.pop();
+		if(!"on".equals(tokenizer.peek())) {
+			throw Error.InvalidCommandException;
+		}
+		tokenizer.pop();
+		
+		CreateIndex create = new CreateIndex();
+		create.tableName = tokenizer.peek();
+		if(!isName(create.tableName)) {
+			throw Error.InvalidCommandException;
+		}
+		tokenizer.pop();
+		
+		if(!"(".equals(tokenizer.peek())) {
+			throw Error.InvalidCommandException;
+		}
+		tokenizer.pop();
+		
+		create.fieldName = tokenizer.peek();
+		if(!isName(create.fieldName)) {
+			throw Error.InvalidCommandException;
+		}
+		tokenizer.pop();
+		
+		if(!")".equals(tokenizer.peek())) {
+			throw Error.InvalidCommandException;
+		}
+		tokenizer.pop();
+		
+		if(!"".equals(tokenizer.peek())) {
+			throw Error.InvalidCommandException;
+		}
+		return create;
+	}
+	
 	private static Create parseCreate(Tokenizer tokenizer) throws Exception {
 		if(!"table".equals(tokenizer.peek())) {
 			throw Error.InvalidCommandException;
@@ -138,7 +138,7 @@ public class Tokenizer {
 				break;
 			}
 			
-			builder.append(b);
+			builder.append(new String(new byte[]{b}));
 			popByte();
 		}
 		return builder.toString();
@@ -2,5 +2,6 @@ package backend.parser.statement;
 
 public class Insert {
     public String tableName;
-    public String[] values;
+    // 每行的值
+    public String[][] values;
 }
@@ -4,4 +4,6 @@ public class Select {
     public String tableName;
     public String[] fields;
     public Where where;
+    // 最多返回的行数，-1表示不限制
+    public int limit;
 }
@@ -67,6 +67,8 @@ public class Executor {
 				res = tbm.show(xid);
 			} else if (stat instanceof Create) {
 				res = tbm.create(xid, (Create) stat);
+			} else if (stat instanceof CreateIndex) {
+				res = tbm.createIndex(xid, (CreateIndex) stat);
 			} else if (stat instanceof Select) {
 				res = tbm.read(xid, (Select) stat);
 			} else if (stat instanceof Insert) {
@@ -8,6 +8,7 @@ package backend.tbm;
 import backend.dm.DataManager;
 import backend.im.BPlusTree;
 import backend.parser.statement.SingleExpression;
+import backend.parser.statement.Where;
 import backend.tm.TransactionManagerImpl;
 import backend.utils.Panic;
 import backend.utils.ParseStringRes;
@@ -15,23 +16,35 @@ import backend.utils.Parser;
 import com.google.common.primitives.Bytes;
 import common.Error;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 /**
- * [FieldName][TypeName][IndexUid]
+ * [FieldName][TypeName][IndexUid][StringKey]
  * 若field无索引，IndexUid为0
+ * StringKey为字符串在索引中的键的编码，旧版本创建的字段没有这一字节，使用哈希
  *
  * 字符串存储方式: [StringLength: 4][StringData]
  */
 public class Field {
+	// 字符串的哈希作为键，只能用于等值查找
+	private static final byte STRING_KEY_HASH = 0;
+	// 字符串的前8个字节作为键，保持字典序，可以范围查找
+	private static final byte STRING_KEY_ORDERED = 1;
+	
 	long uid;
 	private Table tb;
 	String fieldName;
 	String fieldType;
-	private long index; // 对应的索引B+树的bootUid
+	private volatile long index; // 对应的索引B+树的bootUid
 	private BPlusTree tree;
+	// 正在构建索引时为构建中的树，以及构建期间插入、尚未补入树中的项
+	private BPlusTree building;
+	private List<long[]> pending;
+	private byte stringKey = STRING_KEY_ORDERED;
 	
 	public static Field loadField(Table tb, long uid) {
 		byte[] raw = null;
@@ -68,6 +81,8 @@ public class Field {
 		pos += res.next;
 		
 		this.index = Parser.parseLong(Arrays.copyOfRange(raw, pos, pos + 8));
+		pos += 8;
+		stringKey = pos < raw.length ? raw[pos] : STRING_KEY_HASH;
 		if (index != 0) {
 			try {
 				tree = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
@@ -100,27 +115,159 @@ public class Field {
 		return f;
 	}
 	
+	/**
+	 * 开始为已有记录的字段构建索引，此后插入的项暂存，在构建完成时补入
+	 */
+	synchronized void beginIndex() throws Exception {
+		DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+		building = BPlusTree.load(BPlusTree.create(dm), dm);
+		pending = new ArrayList<>();
+	}
+	
+	/**
+	 * 由扫描到的项自底向上构建索引，补入构建期间插入的项，再将索引的bootUid写入字段
+	 * 扫描与暂存可能包含同一项，补入前先在树中查找
+	 */
+	void finishIndex(BPlusTree.DescendingEntries entries) throws Exception {
+		building.bulkInsert(entries);
+		
+		while (true) {
+			List<long[]> items;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					tree = building;
+					index = building.getBootUid();
+					building = null;
+					pending = null;
+					break;
+				}
+				items = pending;
+				pending = new ArrayList<>();
+			}
+			
+			for (long[] item : items) {
+				if (!building.search(item[0]).contains(item[1])) {
+					building.insert(item[0], item[1]);
+				}
+			}
+		}
+		
+		int offset = Parser.string2Byte(fieldName).length + Parser.string2Byte(fieldType).length;
+		((TableManagerImpl)tb.tbm).vm.overwrite(uid, offset, Parser.long2Byte(index));
+	}
+	
+	/**
+	 * 构建失败，丢弃构建中的树
+	 */
+	synchronized void cancelIndex() {
+		if (building != null) {
+			building.close();
+		}
+		building = null;
+		pending = null;
+	}
+	
+	synchronized boolean isBuilding() {
+		return pending != null;
+	}
+	
+	// 构建索引期间暂存插入的项，返回是否已暂存
+	private synchronized boolean defer(long key, long uid) {
+		if (pending == null) {
+			return false;
+		}
+		pending.add(new long[]{key, uid});
+		return true;
+	}
+	
 	private void persistSelf(long xid) throws Exception {
 		byte[] nameRaw = Parser.string2Byte(fieldName);
 		byte[] typeRaw = Parser.string2Byte(fieldType);
 		byte[] indexRaw = Parser.long2Byte(index);
+		byte[] stringKeyRaw = new byte[]{stringKey};
 		
-		this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+		this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw, stringKeyRaw));
 	}
 	
 	public boolean isIndexed() {
 		return index != 0;
 	}
 	
-	public void insert(Object key, long uid) throws Exception {
+	public void insert(long xid, Object key, long uid) throws Exception {
 		long uKey = value2Uid(key);
+		if (defer(uKey, uid)) {
+			return;
+		}
+		((TableManagerImpl)tb.tbm).vm.lockInsert(xid, index, uKey);
 		tree.insert(uKey, uid);
 	}
 	
+	/**
+	 * 批量插入keys[i] -> uids[i]，按键排序后插入，空索引自底向上构建
+	 */
+	public void insertBatch(long xid, Object[] keys, long[] uids) throws Exception {
+		long[] uKeys = new long[keys.length];
+		Integer[] order = new Integer[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			uKeys[i] = value2Uid(keys[i]);
+			order[i] = i;
+		}
+		if (isBuilding()) {
+			for (int i = 0; i < keys.length; i++) {
+				insert(xid, keys[i], uids[i]);
+			}
+			return;
+		}
+		Arrays.sort(order, (a, b) -> uKeys[a] != uKeys[b] ? Long.compare(uKeys[a], uKeys[b]) : Long.compare(uids[a], uids[b]));
+		
+		long[] sortedKeys = new long[keys.length];
+		long[] sortedUids = new long[keys.length];
+		for (int i = 0; i < order.length; i++) {
+			sortedKeys[i] = uKeys[order[i]];
+			sortedUids[i] = uids[order[i]];
+			if (i == 0 || sortedKeys[i] != sortedKeys[i - 1]) {
+				((TableManagerImpl)tb.tbm).vm.lockInsert(xid, index, sortedKeys[i]);
+			}
+		}
+		tree.bulkInsert(sortedKeys, sortedUids);
+	}
+	
 	public List<Long> search(long left, long right) throws Exception {
 		return tree.searchRange(left, right);
 	}
 	
+	public BPlusTree.Cursor cursor(long left, long right) {
+		return tree.cursor(left, right);
+	}
+	
+	/**
+	 * 按键的顺序访问索引中的所有项
+	 */
+	public void scan(BPlusTree.EntryVisitor visitor) throws Exception {
+		tree.scan(visitor);
+	}
+	
+	/**
+	 * 从索引中删除filter判定为真的项，返回删除的项数
+	 */
+	public int vacuum(BPlusTree.RemoveFilter filter) throws Exception {
+		return tree.removeIf(filter);
+	}
+	
+	/**
+	 * 取出清理时合并后摘除的索引节点，见BPlusTree.takeUnlinked
+	 */
+	public long[] takeUnlinkedNodes() {
+		return tree.takeUnlinked();
+	}
+	
+	/**
+	 * 锁住索引上的[left, right]，之后search得到的区间在事务结束前不会插入新的键
+	 */
+	public void lockRange(long xid, long left, long right, int mode) throws Exception {
+		((TableManagerImpl)tb.tbm).vm.lockRange(xid, index, left, right, mode);
+	}
+	
 	public Object string2Value(String str) {
 		return switch (fieldType) {
 			case "int32" -> Integer.parseInt(str);
@@ -133,13 +280,58 @@ public class Field {
 	public long value2Uid(Object key) {
 		long uid = 0;
 		switch (fieldType) {
-			case "string" -> uid = Parser.str2Uid((String) key);
+			case "string" -> uid = stringKey == STRING_KEY_ORDERED ? orderedKey((String) key) : Parser.str2Uid((String) key);
 			case "int32" -> uid = (int) key;
 			case "int64" -> uid = (long) key;
 		}
 		return uid;
 	}
 	
+	/**
+	 * 前8个字节（不足时补0）按无符号大端序组成的数右移一位，结果非负
+	 * 字典序较小的字符串的键不大于较大的字符串的键，前缀相同的字符串键相同
+	 */
+	private static long orderedKey(String str) {
+		byte[] raw = str.getBytes(StandardCharsets.UTF_8);
+		long key = 0;
+		for (int i = 0; i < 8; i++) {
+			key = (key << 8) | (i < raw.length ? raw[i] & 0xFF : 0);
+		}
+		return key >>> 1;
+	}
+	
+	/**
+	 * 键不能区分所有的值，索引查找的结果需要按条件重新检查
+	 */
+	public boolean isLossyKey() {
+		return "string".equals(fieldType);
+	}
+	
+	/**
+	 * 值v是否满足条件，条件中的两个表达式都作用于本字段，与calExp一致
+	 */
+	public boolean matches(Object v, Where where) {
+		return switch (where.logicOp) {
+			case "and" -> matches(v, where.singleExp1) && matches(v, where.singleExp2);
+			case "or" -> matches(v, where.singleExp1) || matches(v, where.singleExp2);
+			default -> matches(v, where.singleExp1);
+		};
+	}
+	
+	private boolean matches(Object v, SingleExpression exp) {
+		Object other = string2Value(exp.value);
+		int cmp = switch (fieldType) {
+			case "int32" -> Integer.compare((int) v, (int) other);
+			case "int64" -> Long.compare((long) v, (long) other);
+			default -> Arrays.compareUnsigned(((String) v).getBytes(StandardCharsets.UTF_8), ((String) other).getBytes(StandardCharsets.UTF_8));
+		};
+		return switch (exp.compareOp) {
+			case "<" -> cmp < 0;
+			case ">" -> cmp > 0;
+			default -> cmp == 0;
+		};
+	}
+	
 	public byte[] value2Raw(Object v) {
 		return switch (fieldType) {
 			case "int32" -> Parser.int2Byte((int) v);
@@ -196,12 +388,14 @@ public class Field {
 	public FieldCalRes calExp(SingleExpression exp) throws Exception {
 		Object v = null;
 		FieldCalRes res = new FieldCalRes();
+		// 有序的字符串键不严格保序，边界上的键可能对应满足条件的值，区间包含边界
+		boolean inclusive = "string".equals(fieldType) && stringKey == STRING_KEY_ORDERED;
 		switch (exp.compareOp) {
 			case "<" -> {
 				res.left = 0;
 				v = string2Value(exp.value);
 				res.right = value2Uid(v);
-				if (res.right > 0) {
+				if (res.right > 0 && !inclusive) {
 					res.right--;
 				}
 			}
@@ -213,7 +407,7 @@ public class Field {
 			case ">" -> {
 				res.right = Long.MAX_VALUE;
 				v = string2Value(exp.value);
-				res.left = value2Uid(v) + 1;
+				res.left = inclusive ? value2Uid(v) : value2Uid(v) + 1;
 			}
 		}
 		return res;
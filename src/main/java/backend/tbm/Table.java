@@ -5,15 +5,21 @@ package backend.tbm;
  * @package backend.tbm
  */
 
+import backend.im.BPlusTree;
+import backend.im.EntrySorter;
 import backend.parser.statement.*;
 import backend.tm.TransactionManagerImpl;
 import backend.utils.Panic;
 import backend.utils.ParseStringRes;
 import backend.utils.Parser;
+import backend.vm.LockTable;
 import com.google.common.primitives.Bytes;
 import common.Error;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * [TableName][NextTable]
@@ -28,6 +34,10 @@ public class Table {
 	long nextUid;
 	List<Field> fields = new ArrayList<>();
 	
+	// 写入记录的语句所在的周期，开始构建索引时切换周期，等待旧周期的语句全部结束
+	private volatile int epoch;
+	private final LongAdder[] writers = {new LongAdder(), new LongAdder()};
+	
 	public static Table loadTable(TableManager tbm, long uid) {
 		byte[] raw = null;
 		try {
@@ -94,39 +104,22 @@ public class Table {
 		return this;
 	}
 	
-	private List<Long> parseWhere(Where where) throws Exception {
-		long l1 = 0, r1 = 0, l2 = 0, r2 = 0;
-		boolean single = false;
-		Field field = null;
+	/**
+	 * 删除与更新时先对条件覆盖的索引区间加排他锁再查找，
+	 * 可重复读下，其他事务在本事务结束前无法向该区间插入新的键，整个区间只需加锁一次
+	 * 普通读取依靠快照即不会看到幻行，不加区间锁，以免阻塞插入
+	 */
+	private List<Long> parseWhere(long xid, Where where, boolean forUpdate) throws Exception {
+		CalWhereRes res = resolveWhere(where);
+		Field field = res.field;
+		long l1 = res.l1, r1 = res.r1, l2 = res.l2, r2 = res.r2;
+		boolean single = res.single;
 		
-		if (where == null) {
-			single = true;
-			l1 = 0;
-			r1 = Long.MAX_VALUE;
-			
-			for (Field f : fields) {
-				if (f.isIndexed()) {
-					field = f;
-					break;
-				}
+		if (forUpdate) {
+			field.lockRange(xid, l1, r1, LockTable.EXCLUSIVE);
+			if (!single) {
+				field.lockRange(xid, l2, r2, LockTable.EXCLUSIVE);
 			}
-			assert field != null : Error.FieldNotFoundException;
-		} else {
-			for (Field f : fields) {
-				if (f.fieldName.equals(where.singleExp1.field)) {
-					assert f.isIndexed() : Error.FieldNotIndexedException;
-					field = f;
-					break;
-				}
-			}
-			
-			assert field != null : Error.FieldNotFoundException;
-			CalWhereRes res = calWhere(field, where);
-			l1 = res.l1;
-			l2 = res.l2;
-			r1 = res.r1;
-			r2 = res.r2;
-			single = res.single;
 		}
 		
 		List<Long> uids = field.search(l1, r1);
@@ -137,11 +130,33 @@ public class Table {
 		return uids;
 	}
 	
+	/**
+	 * 条件所用索引的键不能区分所有值时（字符串），需要对读到的记录重新检查条件，否则返回null
+	 */
+	private Field recheckField(Where where) {
+		if (where == null) {
+			return null;
+		}
+		for (Field f : fields) {
+			if (f.fieldName.equals(where.singleExp1.field)) {
+				return f.isLossyKey() ? f : null;
+			}
+		}
+		return null;
+	}
+	
 	public int delete(long xid, Delete delete) throws Exception {
-		List<Long> uids = parseWhere(delete.where);
+		List<Long> uids = parseWhere(xid, delete.where, true);
+		Field recheck = recheckField(delete.where);
 		int count = 0;
 		
 		for (long uid : uids) {
+			if (recheck != null) {
+				byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
+				if (raw == null || !recheck.matches(parseEntry(raw).get(recheck.fieldName), delete.where)) {
+					continue;
+				}
+			}
 			if (((TableManagerImpl) tbm).vm.delete(xid, uid)) {
 				count++;
 			}
@@ -151,7 +166,7 @@ public class Table {
 	}
 	
 	public int update(long xid, Update update) throws Exception {
-		List<Long> uids = parseWhere(update.where);
+		List<Long> uids = parseWhere(xid, update.where, true);
 		Field field = null;
 		
 		for (Field f : fields) {
@@ -165,63 +180,198 @@ public class Table {
 		Object value = field.string2Value(update.value);
 		int count = 0;
 		
-		for (Long uid : uids) {
-			byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-			if (raw == null) {
-				continue;
-			}
-			
-			((TableManagerImpl)tbm).vm.delete(xid, uid);
-			Map<String, Object> entry = parseEntry(raw);
-			entry.put(field.fieldName, value);
-			raw = entry2Raw(entry);
-			long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-			count++;
-			
-			for (Field f : fields) {
-				if (f.isIndexed()) {
-					field.insert(entry.get(field.fieldName), uuid);
+		int e = enterWrite();
+		try {
+			Field recheck = recheckField(update.where);
+			for (Long uid : uids) {
+				byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+				if (raw == null) {
+					continue;
+				}
+				
+				Map<String, Object> entry = parseEntry(raw);
+				if (recheck != null && !recheck.matches(entry.get(recheck.fieldName), update.where)) {
+					continue;
+				}
+				
+				((TableManagerImpl)tbm).vm.delete(xid, uid);
+				entry.put(field.fieldName, value);
+				raw = entry2Raw(entry);
+				long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+				count++;
+				
+				for (Field f : fields) {
+					if (f.isIndexed() || f.isBuilding()) {
+						f.insert(xid, entry.get(f.fieldName), uuid);
+					}
 				}
 			}
+		} finally {
+			exitWrite(e);
 		}
 		
 		return count;
 	}
 	
+	/**
+	 * 沿索引游标逐个读取记录，不预先收集所有uid，达到limit时停止
+	 */
 	public String read(long xid, Select read) throws Exception {
-		List<Long> uids = parseWhere(read.where);
+		CalWhereRes res = resolveWhere(read.where);
+		long[][] ranges = res.single
+				? new long[][] {{res.l1, res.r1}}
+				: new long[][] {{res.l1, res.r1}, {res.l2, res.r2}};
+		Field recheck = recheckField(read.where);
 		StringBuilder sb = new StringBuilder();
-		for (Long uid : uids) {
-			byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-			if(raw == null) {
-				continue;
-			}
-			
-			Map<String, Object> tmp = parseEntry(raw);
-			Map<String, Object> entry;
-			
-			if ("*".equals(read.fields[0])) {
-				entry = tmp;
-			} else {
-				entry = new HashMap<>();
-				for (String field : read.fields) {
-					entry.put(field, tmp.get(field));
+		int count = 0;
+		
+		for (long[] range : ranges) {
+			BPlusTree.Cursor cursor = res.field.cursor(range[0], range[1]);
+			while (count != read.limit && cursor.next()) {
+				byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, cursor.uid());
+				if(raw == null) {
+					continue;
+				}
+				
+				Map<String, Object> tmp = parseEntry(raw);
+				if (recheck != null && !recheck.matches(tmp.get(recheck.fieldName), read.where)) {
+					continue;
 				}
+				Map<String, Object> entry;
+				
+				if ("*".equals(read.fields[0])) {
+					entry = tmp;
+				} else {
+					entry = new HashMap<>();
+					for (String field : read.fields) {
+						entry.put(field, tmp.get(field));
+					}
+				}
+				
+				sb.append(printEntry(entry)).append("\n");
+				count++;
 			}
-			
-			sb.append(printEntry(entry)).append("\n");
 		}
 		return sb.toString();
 	}
 	
 	public void insert(long xid, Insert insert) throws Exception {
-		Map<String, Object> entry = string2Entry(insert.values);
-		byte[] raw = entry2Raw(entry);
-		long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+		int e = enterWrite();
+		try {
+			if (insert.values.length > 1) {
+				insertBatch(xid, insert.values);
+				return;
+			}
+			
+			Map<String, Object> entry = string2Entry(insert.values[0]);
+			byte[] raw = entry2Raw(entry);
+			long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+			for (Field field : fields) {
+				if(field.isIndexed() || field.isBuilding()) {
+					field.insert(xid, entry.get(field.fieldName), uid);
+				}
+			}
+		} finally {
+			exitWrite(e);
+		}
+	}
+	
+	/**
+	 * 多行插入：记录批量写入页面，每个索引的键排序后批量插入
+	 */
+	private void insertBatch(long xid, String[][] rows) throws Exception {
+		List<Map<String, Object>> entries = new ArrayList<>(rows.length);
+		List<byte[]> raws = new ArrayList<>(rows.length);
+		for (String[] values : rows) {
+			Map<String, Object> entry = string2Entry(values);
+			entries.add(entry);
+			raws.add(entry2Raw(entry));
+		}
+		
+		long[] uids = ((TableManagerImpl)tbm).vm.insertBatch(xid, raws);
 		for (Field field : fields) {
-			if(field.isIndexed()) {
-				field.insert(entry.get(field.fieldName), uid);
+			if (field.isIndexed() || field.isBuilding()) {
+				Object[] keys = new Object[rows.length];
+				for (int i = 0; i < keys.length; i++) {
+					keys[i] = entries.get(i).get(field.fieldName);
+				}
+				field.insertBatch(xid, keys, uids);
+			}
+		}
+	}
+	
+	/**
+	 * 为已有记录的字段建立索引：
+	 * 1. 字段进入构建状态，此后开始的写入语句将索引项暂存在字段中
+	 * 2. 等待之前开始的写入语句结束，它们的记录都已进入其他索引
+	 * 3. 扫描表上已有的一个索引，读出每个版本（不论是否可见）的键，外部排序后自底向上构建
+	 * 4. 补入暂存的项，持久化索引
+	 * 记录只能通过索引找到，表上须已有索引
+	 */
+	public void createIndex(String fieldName) throws Exception {
+		Field field = null;
+		Field source = null;
+		for (Field f : fields) {
+			if (f.fieldName.equals(fieldName)) {
+				field = f;
+			} else if (source == null && f.isIndexed()) {
+				source = f;
+			}
+		}
+		if (field == null) {
+			throw Error.FieldNotFoundException;
+		}
+		if (field.isIndexed() || field.isBuilding()) {
+			throw Error.FieldAlreadyIndexedException;
+		}
+		if (source == null) {
+			throw Error.TableNoIndexException;
+		}
+		
+		field.beginIndex();
+		EntrySorter sorter = new EntrySorter();
+		try {
+			awaitWriters();
+			
+			Field target = field;
+			source.scan((key, uid) -> {
+				byte[] raw = ((TableManagerImpl)tbm).vm.readVersion(uid);
+				if (raw != null) {
+					sorter.add(target.value2Uid(parseEntry(raw).get(target.fieldName)), uid);
+				}
+			});
+			field.finishIndex(sorter);
+		} catch (Exception e) {
+			field.cancelIndex();
+			throw e;
+		} finally {
+			sorter.close();
+		}
+	}
+	
+	private int enterWrite() {
+		while (true) {
+			int e = epoch;
+			writers[e].increment();
+			if (epoch == e) {
+				return e;
 			}
+			writers[e].decrement();
+		}
+	}
+	
+	private void exitWrite(int e) {
+		writers[e].decrement();
+	}
+	
+	/**
+	 * 切换周期，等待在旧周期开始的写入语句结束，调用者之间须互斥
+	 */
+	private void awaitWriters() {
+		int old = epoch;
+		epoch = 1 - old;
+		while (writers[old].sum() != 0) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
 		}
 	}
 	
@@ -238,11 +388,47 @@ public class Table {
 	}
 	
 	class CalWhereRes {
+		Field field;
 		long l1, r1;
 		long l2, r2;
 		boolean single;
 	}
 	
+	/**
+	 * 确定条件所用的索引及其键区间，没有条件时扫描第一个有索引的字段
+	 */
+	private CalWhereRes resolveWhere(Where where) throws Exception {
+		if (where == null) {
+			CalWhereRes res = new CalWhereRes();
+			res.single = true;
+			res.l1 = 0;
+			res.r1 = Long.MAX_VALUE;
+			
+			for (Field f : fields) {
+				if (f.isIndexed()) {
+					res.field = f;
+					break;
+				}
+			}
+			assert res.field != null : Error.FieldNotFoundException;
+			return res;
+		}
+		
+		Field field = null;
+		for (Field f : fields) {
+			if (f.fieldName.equals(where.singleExp1.field)) {
+				assert f.isIndexed() : Error.FieldNotIndexedException;
+				field = f;
+				break;
+			}
+		}
+		
+		assert field != null : Error.FieldNotFoundException;
+		CalWhereRes res = calWhere(field, where);
+		res.field = field;
+		return res;
+	}
+	
 	private CalWhereRes calWhere(Field field, Where where) throws Exception {
 		CalWhereRes res = new CalWhereRes();
 		switch (where.logicOp) {
@@ -16,6 +16,8 @@ public interface TableManager {
 	
 	byte[] show(long xid);
 	byte[] create(long xid, Create create) throws Exception;
+	// 为已有表的字段建立索引，立即生效，不随事务回滚
+	byte[] createIndex(long xid, CreateIndex create) throws Exception;
 	
 	byte[] insert(long xid, Insert insert) throws Exception;
 	byte[] read(long xid, Select select) throws Exception;
@@ -23,6 +25,12 @@ public interface TableManager {
 	byte[] delete(long xid, Delete delete) throws Exception;
 	byte[] drop(long xid, Drop drop) throws Exception;
 	
+	Vacuum vacuum();
+	// 启动后台清理线程，rate为每秒最多检查的索引项数，0表示不限速
+	void startVacuum(long rate);
+	// 停止后台线程，需在关闭DM之前调用
+	void close();
+	
 	static TableManager create(String path, VersionManager vm, DataManager dm) {
 			Booter booter = Booter.create(path);
 			booter.update(Parser.long2Byte(0));
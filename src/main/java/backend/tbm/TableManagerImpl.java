@@ -24,6 +24,7 @@ public class TableManagerImpl implements TableManager {
 	private Map<String, Table> tableCache;
 	private Map<Long, List<Table>> xidTableCache;
 	private Lock lock;
+	private Vacuum vacuum;
 	
 	public TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
 		this.vm = vm;
@@ -32,6 +33,7 @@ public class TableManagerImpl implements TableManager {
 		this.tableCache = new HashMap<>();
 		this.xidTableCache = new HashMap<>();
 		lock = new ReentrantLock();
+		vacuum = new Vacuum(this, booter.path);
 		loadTable();
 	}
 	
@@ -44,6 +46,30 @@ public class TableManagerImpl implements TableManager {
 		}
 	}
 	
+	List<Table> tables() {
+		lock.lock();
+		try {
+			return new ArrayList<>(tableCache.values());
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public Vacuum vacuum() {
+		return vacuum;
+	}
+	
+	@Override
+	public void startVacuum(long rate) {
+		vacuum.start(rate);
+	}
+	
+	@Override
+	public void close() {
+		vacuum.close();
+	}
+	
 	private long firstTableUid() {
 		byte[] raw = booter.load();
 		return Parser.parseLong(raw);
@@ -84,7 +110,7 @@ public class TableManagerImpl implements TableManager {
 			for (Table tb : tableCache.values()) {
 				builder.append(tb.toString()).append("\n");
 			}
-			
+
 //			List<Table> list = xidTableCache.get(xid);
 //			if (list == null) {
 //				return "\n".getBytes();
@@ -120,6 +146,24 @@ public class TableManagerImpl implements TableManager {
 		}
 	}
 	
+	/**
+	 * 构建期间暂停清理：清理会使扫描到的版本失效并重用其空间，而构建中的索引不会被清理
+	 */
+	@Override
+	public byte[] createIndex(long xid, CreateIndex create) throws Exception {
+		lock.lock();
+		Table table = tableCache.get(create.tableName);
+		lock.unlock();
+		
+		if (table == null) {
+			throw Error.TableNotFoundException;
+		}
+		synchronized (vacuum) {
+			table.createIndex(create.fieldName);
+		}
+		return ("create index " + create.fieldName).getBytes();
+	}
+	
 	@Override
 	public byte[] insert(long xid, Insert insert) throws Exception {
 		lock.lock();
@@ -148,7 +192,7 @@ public class TableManagerImpl implements TableManager {
 		lock.lock();
 		Table table = tableCache.get(update.tableName);
 		lock.unlock();
-
+		
 		assert table != null : Error.TableNotFoundException;
 		int count = table.update(xid, update);
 		return ("update " + count).getBytes();
@@ -0,0 +1,386 @@
+package backend.tbm;
+
+import backend.im.BPlusTree;
+import backend.utils.Panic;
+import backend.utils.Parser;
+import common.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @date 2024/1/22
+ * @package backend.tbm
+ *
+ * 清理线程，回收对所有事务都不可见的旧版本
+ * DELETE与UPDATE只设置旧版本的XMAX，旧版本及其索引项需要在这里回收
+ *
+ * 每轮清理：
+ * 1. 从VM取得所有活跃事务快照中最小的XID
+ * 2. 扫描每张表每个索引的叶子，已失效的版本（插入事务已回滚，或删除事务在该XID之前已提交）
+ *    标记为非法，并从该索引中删除
+ * 3. 之前失效的版本，待失效时仍活跃的事务全部结束后，才将空间还给DM，
+ *    这些事务可能仍持有其uid，空间被重用后会读到其他记录
+ * 4. 删除项后过空的叶子与兄弟合并，合并后摘除的节点同样等这些事务结束后再释放，
+ *    它们的查找可能仍停留在该节点上
+ *
+ * 等待回收的uid记在.vac文件中，重启后不会泄漏：
+ * 版本的uid在从索引中删除之前追加，摘除的节点在处理完该叶子后追加，回收之前先把它们从文件中去掉
+ * 打开时文件中的项并入第一轮，这一轮会删除仍指向它们的索引项，结束后按同样的条件回收
+ *
+ * 按每秒检查的索引项数限速，休眠在两个叶子之间进行，不持有索引的锁
+ * 没有索引的表无法扫描到记录，不做清理
+ * 后台线程每轮结束后输出一行本轮的统计
+ */
+public class Vacuum {
+	
+	// 两轮清理之间的间隔（毫秒）
+	private static final long INTERVAL = 60 * 1000;
+	
+	// 默认每秒最多检查的索引项数
+	public static final long DEFAULT_RATE = 20000;
+	
+	public static final String VACUUM_SUFFIX = ".vac";
+	public static final String VACUUM_TMP_SUFFIX = ".vac_tmp";
+	
+	// .vac文件中每项为[Kind][Uid]
+	private static final byte KIND_VERSION = 0;
+	private static final byte KIND_NODE = 1;
+	private static final int ITEM_SIZE = 1 + 8;
+	
+	private static class PendingReclaim {
+		// 失效时最大的活跃XID，所有活跃事务的快照都晚于它之后才能回收
+		long newestXid;
+		long[] uids;
+		// 从索引中摘除的节点
+		long[] nodes;
+	}
+	
+	private TableManagerImpl tbm;
+	private String path;
+	private FileChannel fc;
+	// 每秒最多检查的索引项数，0表示不限速
+	private volatile long rate = DEFAULT_RATE;
+	
+	private Thread worker;
+	private volatile boolean closed;
+	
+	private List<PendingReclaim> pending = new ArrayList<>();
+	// 打开时从.vac文件读出、尚未并入一轮清理的项
+	private List<Long> recoveredUids = new ArrayList<>();
+	private List<Long> recoveredNodes = new ArrayList<>();
+	
+	// 本轮的开始时间及已检查的索引项数，用于限速
+	private long passStart;
+	private long passScanned;
+	
+	private final LongAdder passes = new LongAdder();
+	private final LongAdder scanned = new LongAdder();
+	private final LongAdder deadVersions = new LongAdder();
+	private final LongAdder removedEntries = new LongAdder();
+	private final LongAdder reclaimedBytes = new LongAdder();
+	private final LongAdder freedNodes = new LongAdder();
+	
+	Vacuum(TableManagerImpl tbm, String path) {
+		this.tbm = tbm;
+		this.path = path;
+		new File(path + VACUUM_TMP_SUFFIX).delete();
+		try {
+			fc = new RandomAccessFile(path + VACUUM_SUFFIX, "rw").getChannel();
+			load();
+		} catch (IOException e) {
+			Panic.panic(e);
+		}
+	}
+	
+	/**
+	 * 读出上次未回收的项，截掉崩溃时没有写完的一项
+	 */
+	private void load() throws IOException {
+		long size = fc.size() / ITEM_SIZE * ITEM_SIZE;
+		ByteBuffer buf = ByteBuffer.allocate((int) size);
+		fc.position(0);
+		while (buf.hasRemaining()) {
+			if (fc.read(buf) < 0) {
+				break;
+			}
+		}
+		
+		byte[] raw = buf.array();
+		for (int pos = 0; pos < size; pos += ITEM_SIZE) {
+			long uid = Parser.parseLong(Arrays.copyOfRange(raw, pos + 1, pos + ITEM_SIZE));
+			if (raw[pos] == KIND_NODE) {
+				recoveredNodes.add(uid);
+			} else {
+				recoveredUids.add(uid);
+			}
+		}
+		fc.truncate(size);
+		fc.position(size);
+	}
+	
+	/**
+	 * 启动后台清理线程，rate同时作用于之后手动进行的清理
+	 */
+	void start(long rate) {
+		this.rate = rate;
+		worker = new Thread(() -> {
+			while (!closed) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(INTERVAL));
+				if (closed) {
+					break;
+				}
+				
+				try {
+					long[] before = counters();
+					long start = System.nanoTime();
+					vacuum();
+					report(before, System.nanoTime() - start);
+				} catch (Exception e) {
+					if (e != Error.VacuumClosedException) {
+						Panic.panic(e);
+					}
+				}
+			}
+		}, "vacuum");
+		worker.setDaemon(true);
+		worker.start();
+	}
+	
+	/**
+	 * 停止清理线程，正在进行的一轮在检查下一个索引项时退出
+	 */
+	void close() {
+		closed = true;
+		if (worker != null) {
+			LockSupport.unpark(worker);
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Panic.panic(e);
+			}
+		}
+		
+		synchronized (this) {
+			try {
+				fc.close();
+			} catch (IOException e) {
+				Panic.panic(e);
+			}
+		}
+	}
+	
+	/**
+	 * 进行一轮清理
+	 */
+	public synchronized void vacuum() throws Exception {
+		if (closed) {
+			throw Error.VacuumClosedException;
+		}
+		
+		long oldestXid = tbm.vm.oldestActiveXid();
+		reclaim(oldestXid);
+		
+		passStart = System.nanoTime();
+		passScanned = 0;
+		
+		Set<Long> dead = new HashSet<>(recoveredUids);
+		List<Long> nodes = new ArrayList<>(recoveredNodes);
+		recoveredUids.clear();
+		recoveredNodes.clear();
+		try {
+			for (Table table : tbm.tables()) {
+				for (Field field : table.fields) {
+					if (!field.isIndexed()) {
+						continue;
+					}
+					
+					int removed = field.vacuum(new BPlusTree.RemoveFilter() {
+						// 本叶子中新判定为失效、尚未写入.vac的版本
+						List<Long> found = new ArrayList<>();
+						
+						@Override
+						public boolean test(long uid) throws Exception {
+							if (closed) {
+								throw Error.VacuumClosedException;
+							}
+							
+							scanned.increment();
+							passScanned++;
+							if (dead.contains(uid)) {
+								return true;
+							}
+							if (tbm.vm.vacuum(uid, oldestXid)) {
+								dead.add(uid);
+								found.add(uid);
+								deadVersions.increment();
+								return true;
+							}
+							return false;
+						}
+						
+						@Override
+						public void beforeRemove(long[] uids) throws Exception {
+							append(KIND_VERSION, found.stream().mapToLong(Long::longValue).toArray());
+							found.clear();
+						}
+						
+						@Override
+						public void afterLeaf() throws Exception {
+							long[] unlinked = field.takeUnlinkedNodes();
+							append(KIND_NODE, unlinked);
+							for (long uid : unlinked) {
+								nodes.add(uid);
+							}
+							throttle();
+						}
+					});
+					removedEntries.add(removed);
+				}
+			}
+		} finally {
+			// 中途退出时已写入.vac的项同样留待回收，文件重写时不会丢掉它们
+			if (!dead.isEmpty() || !nodes.isEmpty()) {
+				PendingReclaim p = new PendingReclaim();
+				p.newestXid = tbm.vm.newestActiveXid();
+				p.uids = dead.stream().mapToLong(Long::longValue).toArray();
+				p.nodes = nodes.stream().mapToLong(Long::longValue).toArray();
+				pending.add(p);
+			}
+		}
+		passes.increment();
+	}
+	
+	/**
+	 * 失效时活跃的事务的XID均不大于newestXid，最老快照晚于它说明这些事务都已结束
+	 * 先把要回收的项从.vac文件中去掉再回收，崩溃时最多泄漏这一批，不会把已重用的空间再释放一次
+	 */
+	private void reclaim(long oldestXid) throws Exception {
+		List<PendingReclaim> ready = new ArrayList<>();
+		Iterator<PendingReclaim> it = pending.iterator();
+		while (it.hasNext()) {
+			PendingReclaim p = it.next();
+			if (p.newestXid < oldestXid) {
+				ready.add(p);
+				it.remove();
+			}
+		}
+		if (ready.isEmpty()) {
+			return;
+		}
+		
+		rewrite();
+		for (PendingReclaim p : ready) {
+			reclaimedBytes.add(tbm.dm.reclaim(p.uids));
+			reclaimedBytes.add(BPlusTree.freeNodes(tbm.dm, p.nodes));
+			freedNodes.add(p.nodes.length);
+		}
+	}
+	
+	/**
+	 * 向.vac文件追加一批uid并force，需在它们从索引中删除或摘除的日志之前（节点为之后尽快）调用
+	 */
+	private void append(byte kind, long[] uids) throws IOException {
+		if (uids.length > 0) {
+			write(fc, kind, uids);
+			fc.force(false);
+		}
+	}
+	
+	private static void write(FileChannel out, byte kind, long[] uids) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(uids.length * ITEM_SIZE);
+		for (long uid : uids) {
+			buf.put(kind).put(Parser.long2Byte(uid));
+		}
+		buf.flip();
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+	}
+	
+	/**
+	 * 用仍在等待的项替换.vac文件，先写临时文件再改名
+	 */
+	private void rewrite() throws IOException {
+		File tmp = new File(path + VACUUM_TMP_SUFFIX);
+		try (FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+			out.truncate(0);
+			for (PendingReclaim p : pending) {
+				write(out, KIND_VERSION, p.uids);
+				write(out, KIND_NODE, p.nodes);
+			}
+			out.force(false);
+		}
+		
+		fc.close();
+		Files.move(tmp.toPath(), new File(path + VACUUM_SUFFIX).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		fc = new RandomAccessFile(path + VACUUM_SUFFIX, "rw").getChannel();
+		fc.position(fc.size());
+	}
+	
+	/**
+	 * 检查过快时休眠，使本轮的平均速度不超过rate
+	 */
+	private void throttle() {
+		if (rate <= 0) {
+			return;
+		}
+		
+		long expected = passScanned * TimeUnit.SECONDS.toNanos(1) / rate;
+		long elapsed = System.nanoTime() - passStart;
+		if (expected > elapsed) {
+			LockSupport.parkNanos(expected - elapsed);
+		}
+	}
+	
+	private long[] counters() {
+		return new long[]{scanned.sum(), deadVersions.sum(), removedEntries.sum(), freedNodes.sum(), reclaimedBytes.sum()};
+	}
+	
+	private void report(long[] before, long nanos) {
+		long[] after = counters();
+		System.out.println(String.format(
+			"Vacuum pass %d: scanned %d, dead versions %d, removed entries %d, freed nodes %d, reclaimed %d bytes, %d ms",
+			getPassCount(), after[0] - before[0], after[1] - before[1], after[2] - before[2],
+			after[3] - before[3], after[4] - before[4], TimeUnit.NANOSECONDS.toMillis(nanos)));
+	}
+	
+	public long getPassCount() {
+		return passes.sum();
+	}
+	
+	public long getScannedCount() {
+		return scanned.sum();
+	}
+	
+	public long getDeadVersionCount() {
+		return deadVersions.sum();
+	}
+	
+	public long getRemovedEntryCount() {
+		return removedEntries.sum();
+	}
+	
+	public long getReclaimedBytes() {
+		return reclaimedBytes.sum();
+	}
+	
+	public long getFreedNodeCount() {
+		return freedNodes.sum();
+	}
+}
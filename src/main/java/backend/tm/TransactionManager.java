@@ -57,7 +57,7 @@ public interface TransactionManager {
 			Panic.panic(e);
 		}
 		
-		return new TransactionManagerImpl(raf, fc);
+		return new TransactionManagerImpl(raf, fc, path);
 	}
 	
 	static TransactionManagerImpl open(String path) {
@@ -81,7 +81,7 @@ public interface TransactionManager {
 			Panic.panic(e);
 		}
 		
-		return new TransactionManagerImpl(raf, fc);
+		return new TransactionManagerImpl(raf, fc, path);
 	}
 }
 
@@ -5,16 +5,33 @@ import backend.utils.Panic;
 import backend.utils.Parser;
 import common.Error;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @date 2023/11/29
  * @package tm
+ *
+ * XID文件按块映射到内存，事务状态的读写直接作用于映射区，读取无锁
+ * 映射区按int对齐读写，每个int包含4个事务的状态字节
+ *
+ * 文件头记录已预留的最大XID，begin只需原子自增，用完一批预留才写回文件头
+ * 重启后从预留上界之后继续分配，保证XID不会被重复使用
+ *
+ * .lwm文件记录低水位：不大于低水位的XID都不处于COMMITTING状态，打开时只需检查其后的XID
  */
 public class TransactionManagerImpl implements TransactionManager {
 	
@@ -24,31 +41,55 @@ public class TransactionManagerImpl implements TransactionManager {
 	// 每个事务的占用长度
 	private static final int XID_FIELD_SIZE = 1;
 	
-	// 三种状态
+	// 四种状态，COMMITTING表示提交状态已写入但尚未force，对其他事务仍不可见
 	private static final byte FIELD_TRAN_ACTIVE = 0;
 	private static final byte FIELD_TRAN_COMMITTED = 1;
 	private static final byte FIELD_TRAN_ABORTED = 2;
+	private static final byte FIELD_TRAN_COMMITTING = 3;
 	
 	// 超级事务，永远为committed状态
 	public static final long SUPER_XID = 0;
 	
 	// XID文件后缀
 	static final String XID_SUFFIX = ".xid";
+	// 低水位文件后缀
+	static final String LWM_SUFFIX = ".lwm";
+	
+	// 每个映射块容纳的事务数
+	private static final int CHUNK_SHIFT = 20;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	
+	// 每次预留的XID数
+	private static final long XID_BATCH = 1 << 12;
+	
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
 	
 	private RandomAccessFile file;
 	private FileChannel fc;
-	private long xidCounter;
-	private Lock counterLock;
+	private AtomicLong xidCounter;
+	
+	// 已预留的最大XID，与文件头一致
+	private volatile long reserved;
+	private Lock reserveLock;
+	
+	private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+	
+	// 组force：已完成的写入次数，已force的写入次数，以及有未force写入的块
+	private AtomicLong writeSeq = new AtomicLong();
+	private long syncedSeq;
+	private Lock syncLock = new ReentrantLock();
+	private Set<Integer> dirtyChunks = ConcurrentHashMap.newKeySet();
 	
-	public TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
+	public TransactionManagerImpl(RandomAccessFile raf, FileChannel fc, String path) {
 		this.file = raf;
 		this.fc = fc;
-		counterLock = new ReentrantLock();
+		reserveLock = new ReentrantLock();
 		checkXIDCounter();
+		finishCommitting(new File(path + LWM_SUFFIX));
 	}
 	
 	/**
-	 * 检查文件头8字节数字是否与文件实际长度相同
+	 * 检查文件头8字节数字是否与文件实际长度相符
 	 */
 	private void checkXIDCounter() {
 		long fileLen = 0;
@@ -65,58 +106,184 @@ public class TransactionManagerImpl implements TransactionManager {
 		
 		ByteBuffer buf = ByteBuffer.allocate(XID_HEADER_LENGTH);
 		try {
-			fc.position(0);
-			fc.read(buf);
+			fc.read(buf, 0);
 		} catch (IOException e) {
 			Panic.panic(e);
 		}
 		
-		xidCounter = Parser.parseLong(buf.array());
-		long end = getXidPosition(xidCounter + 1);
+		reserved = Parser.parseLong(buf.array());
+		long end = getXidPosition(reserved + 1);
 		
-		if (end != fileLen) {
+		// 文件按块增长，长度可以超出预留的范围
+		if (end > fileLen) {
 			Panic.panic(Error.BadXIDFileException);
 		}
+		
+		xidCounter = new AtomicLong(reserved);
+		ensureCapacity(reserved);
 	}
 	
-	private long getXidPosition(long xid) {
-		return XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
+	/**
+	 * 上次关闭前已force的COMMITTING状态说明提交已持久化，转为COMMITTED
+	 * 打开之后的XID都大于当前的预留上界，处理完并force后，预留上界即成为新的低水位，
+	 * 因此COMMITTING只可能出现在上一次打开之后开始的事务中
+	 * 低水位文件不存在（由旧版本创建的数据库）或与XID文件不符时从头检查
+	 */
+	private void finishCommitting(File lwmFile) {
+		long from = readLowWater(lwmFile);
+		if (from > reserved) {
+			from = 0;
+		}
+		
+		for (long xid = from + 1; xid <= reserved; xid++) {
+			if (getStatus(xid) == FIELD_TRAN_COMMITTING) {
+				setStatus(xid, FIELD_TRAN_COMMITTED);
+			}
+		}
+		sync();
+		writeLowWater(lwmFile, reserved);
 	}
 	
-	// 检测XID事务是否处于status
-	private boolean checkXID(long xid, byte status) {
-		ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
+	private static long readLowWater(File f) {
+		if (!f.exists()) {
+			return 0;
+		}
 		
-		try {
-			fc.position(getXidPosition(xid));
-			fc.read(buf);
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+			if (raf.length() < 8) {
+				return 0;
+			}
+			return raf.readLong();
+		} catch (IOException e) {
+			Panic.panic(e);
+		}
+		return 0;
+	}
+	
+	private static void writeLowWater(File f, long lwm) {
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.getChannel().write(ByteBuffer.wrap(Parser.long2Byte(lwm)), 0);
+			raf.getChannel().force(false);
 		} catch (IOException e) {
 			Panic.panic(e);
 		}
+	}
+	
+	private long getXidPosition(long xid) {
+		return XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
+	}
+	
+	/**
+	 * 映射足够的块以容纳到xid为止的事务，需持有reserveLock或在构造时调用
+	 */
+	private void ensureCapacity(long xid) {
+		int needed = (int) ((xid - 1) >>> CHUNK_SHIFT) + 1;
+		MappedByteBuffer[] old = chunks;
+		if (needed <= old.length) {
+			return;
+		}
 		
-		return buf.array()[0] == status;
+		MappedByteBuffer[] grown = Arrays.copyOf(old, needed);
+		for (int i = old.length; i < needed; i++) {
+			try {
+				grown[i] = fc.map(FileChannel.MapMode.READ_WRITE, getXidPosition((long) i * CHUNK_SIZE + 1), CHUNK_SIZE);
+			} catch (IOException e) {
+				Panic.panic(e);
+			}
+		}
+		chunks = grown;
 	}
 	
-	@Override
-	public long begin() {
-		counterLock.lock();
+	private int shiftOf(int offset) {
+		return (3 - (offset & 3)) * Byte.SIZE;
+	}
+	
+	private byte getStatus(long xid) {
+		MappedByteBuffer[] cs = chunks;
+		int chunk = (int) ((xid - 1) >>> CHUNK_SHIFT);
+		if (chunk >= cs.length) {
+			return FIELD_TRAN_ACTIVE;
+		}
 		
-		long xid = xidCounter + 1;
-		updateXID(xid, FIELD_TRAN_ACTIVE);
-		incrXIDCounter();
+		int offset = (int) ((xid - 1) & (CHUNK_SIZE - 1));
+		int word = (int) INT.getAcquire(cs[chunk], offset & ~3);
+		return (byte) (word >>> shiftOf(offset));
+	}
+	
+	private void setStatus(long xid, byte status) {
+		int chunk = (int) ((xid - 1) >>> CHUNK_SHIFT);
+		MappedByteBuffer buf = chunks[chunk];
+		int offset = (int) ((xid - 1) & (CHUNK_SIZE - 1));
+		int shift = shiftOf(offset);
+		
+		while (true) {
+			int word = (int) INT.getAcquire(buf, offset & ~3);
+			int updated = (word & ~(0xFF << shift)) | ((status & 0xFF) << shift);
+			if (INT.weakCompareAndSetRelease(buf, offset & ~3, word, updated)) {
+				break;
+			}
+		}
 		
-		counterLock.unlock();
+		dirtyChunks.add(chunk);
+		writeSeq.incrementAndGet();
+	}
+	
+	// 检测XID事务是否处于status
+	private boolean checkXID(long xid, byte status) {
+		return getStatus(xid) == status;
+	}
+	
+	@Override
+	public long begin() {
+		long xid = xidCounter.incrementAndGet();
+		if (xid > reserved) {
+			reserve(xid);
+		}
 		return xid;
 	}
 	
+	/**
+	 * 预留一批XID，写回文件头并force后才能使用
+	 */
+	private void reserve(long xid) {
+		reserveLock.lock();
+		try {
+			if (xid <= reserved) {
+				return;
+			}
+			
+			long bound = reserved;
+			while (bound < xid) {
+				bound += XID_BATCH;
+			}
+			ensureCapacity(bound);
+			
+			fc.write(ByteBuffer.wrap(Parser.long2Byte(bound)), 0);
+			fc.force(false);
+			reserved = bound;
+		} catch (IOException e) {
+			Panic.panic(e);
+		} finally {
+			reserveLock.unlock();
+		}
+	}
+	
+	/**
+	 * 先写入COMMITTING并force，再改为COMMITTED，提交持久化之后才对其他事务可见
+	 */
 	@Override
 	public void commit(long xid) {
-		updateXID(xid, FIELD_TRAN_COMMITTED);
+		setStatus(xid, FIELD_TRAN_COMMITTING);
+		sync();
+		setStatus(xid, FIELD_TRAN_COMMITTED);
 	}
 	
+	/**
+	 * 回滚状态无需force，丢失后事务在恢复时仍会被当作活跃事务回滚
+	 */
 	@Override
 	public void abort(long xid) {
-		updateXID(xid, FIELD_TRAN_ABORTED);
+		setStatus(xid, FIELD_TRAN_ABORTED);
 	}
 	
 	@Override
@@ -125,7 +292,8 @@ public class TransactionManagerImpl implements TransactionManager {
 			return false;
 		}
 		
-		return checkXID(xid, FIELD_TRAN_ACTIVE);
+		byte status = getStatus(xid);
+		return status == FIELD_TRAN_ACTIVE || status == FIELD_TRAN_COMMITTING;
 	}
 	
 	@Override
@@ -139,7 +307,7 @@ public class TransactionManagerImpl implements TransactionManager {
 	
 	@Override
 	public boolean isAborted(long xid) {
-		if (xid == FIELD_TRAN_ABORTED) {
+		if (xid == SUPER_XID) {
 			return false;
 		}
 		
@@ -148,43 +316,38 @@ public class TransactionManagerImpl implements TransactionManager {
 	
 	@Override
 	public void close() {
-		try {
-			fc.close();
-			file.close();
-		} catch (IOException e) {
-			Panic.panic(e);
+		for (MappedByteBuffer buf : chunks) {
+			buf.force();
 		}
-	}
-	
-	// 更新xid事务状态
-	private void updateXID(long xid, byte status) {
-		long offset = getXidPosition(xid);
-		byte[] tmp = new byte[XID_FIELD_SIZE];
-		tmp[0] = status;
 		
 		try {
-			fc.position(offset);
-			fc.write(ByteBuffer.wrap(tmp));
+			fc.close();
+			file.close();
 		} catch (IOException e) {
 			Panic.panic(e);
 		}
 	}
 	
-	// XID加1，并更新到文件中
-	private void incrXIDCounter() {
-		xidCounter++;
-		
-		try {
-			fc.position(0);
-			fc.write(ByteBuffer.wrap(Parser.long2Byte(xidCounter)));
-		} catch (IOException e) {
-			Panic.panic(e);
-		}
+	/**
+	 * 组force：等待锁期间其他线程完成的force若已覆盖本线程的写入，则直接返回
+	 */
+	private void sync() {
+		long seq = writeSeq.get();
 		
+		syncLock.lock();
 		try {
-			fc.force(false);
-		} catch (IOException e) {
-			Panic.panic(e);
+			if (syncedSeq >= seq) {
+				return;
+			}
+			
+			long target = writeSeq.get();
+			for (Integer chunk : dirtyChunks) {
+				dirtyChunks.remove(chunk);
+				chunks[chunk].force();
+			}
+			syncedSeq = target;
+		} finally {
+			syncLock.unlock();
 		}
 	}
 }
@@ -5,8 +5,19 @@ package backend.utils;
  * @package backend.utils
  */
 public class Types {
-	public static long addressToUid(int pageNo, short offset) {
+	/**
+	 * uid: [pageNo: 4][padding: 2][slot: 2]
+	 */
+	public static long addressToUid(int pageNo, short slot) {
 		
-		return (long) pageNo << 32 | offset;
+		return (long) pageNo << 32 | (slot & 0xFFFF);
+	}
+	
+	public static int uidToPageNo(long uid) {
+		return (int) ((uid >>> 32) & ((1L << 32) - 1));
+	}
+	
+	public static short uidToSlot(long uid) {
+		return (short) (uid & ((1 << 16) - 1));
 	}
 }
@@ -2,6 +2,7 @@ package backend.vm;
 
 import backend.common.SubArray;
 import backend.dm.dataItem.DataItem;
+import backend.tm.TransactionManagerImpl;
 import backend.utils.Parser;
 import com.google.common.primitives.Bytes;
 
@@ -69,6 +70,31 @@ public class Entry {
 		}
 	}
 	
+	/**
+	 * 原地修改数据，以SUPER_XID记日志，不随事务回滚
+	 */
+	public void overwrite(int offset, byte[] data) {
+		dataItem.before();
+		try {
+			SubArray arr = dataItem.data();
+			System.arraycopy(data, 0, arr.raw, arr.start + OF_DATA + offset, data.length);
+		} finally {
+			dataItem.after(TransactionManagerImpl.SUPER_XID);
+		}
+	}
+	
+	/**
+	 * 将版本所在的DataItem标记为非法，此后无法再读到该版本
+	 */
+	public void invalidate() {
+		dataItem.before();
+		try {
+			DataItem.setDataItemRawInvalid(dataItem.getRaw());
+		} finally {
+			dataItem.after(TransactionManagerImpl.SUPER_XID);
+		}
+	}
+	
 	public void remove() {
 		dataItem.release();
 	}
@@ -1,184 +1,593 @@
 package backend.vm;
 
+import backend.common.LongObjectMap;
 import common.Error;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @date 2024/1/15
  * @package backend.vm
+ *
+ * 行锁表，按uid分成若干分区，每个分区有独立的锁，不同分区的加锁与释放互不阻塞
+ *
+ * 每个资源有共享（SHARED）和排他（EXCLUSIVE）两种锁模式，等待者按FIFO顺序排队：
+ * 已有等待者时，新的请求即使与持有者兼容也要排队，避免排他请求被饿死
+ * 持有共享锁的事务升级为排他锁时排在队首
+ * 释放锁时由释放者将锁直接交给队首的等待者，再unpark对应线程
+ *
+ * 等待图的边保存在事务自身（Owner.waiting）和资源自身（Resource.holders）中，
+ * 死锁检测只需从新等待者出发沿等待边搜索，不需要遍历所有事务，也不需要其他分区的锁
+ * 等待者先发布自己的等待边再检测，检测之间互斥，发现死锁时在检测锁内撤回自己的等待边：
+ * 两个同时形成环的等待者中，后检测的一方一定能看到先检测的一方的边，
+ * 而先检测的一方若已被选为牺牲者，其边已撤回，因此恰好一方抛出DeadlockException
+ *
+ * 索引上的键区间锁与行锁共用分区和等待图，按索引的bootUid分区：
+ * 共享与排他区间锁锁住[left, right]内的所有键，插入时在新键上加插入意向锁，
+ * 插入意向锁之间互相兼容，与其他事务覆盖该键的共享或排他区间锁互斥，并保持到事务结束，
+ * 因此区间锁被授予之后，其他事务无法在区间内插入新的键，之前插入的键也都已提交或回滚
+ * 等待区间锁的事务在任意区间锁释放时被唤醒后重新检查，不保证FIFO
+ *
+ * 指定超时时间时不做死锁检测，等待超时即放弃，适合并发极高、死锁检测本身成为瓶颈的场景
  */
 public class LockTable {
-	private Map<Long, List<Long>> x2u; // 每个事务所占据的资源
-	private Map<Long, Long> u2x; // 每个资源被哪个事务占据
-	private Map<Long, List<Long>> wait; // 等待该资源uid的事务xid列表
-	private Map<Long, Lock> waitLock; // 正在等待资源的事务的锁
-	private Map<Long, Long> waitU; // 事务正在等待的资源
-	private Lock lock;
 	
-	public LockTable() {
-		x2u = new HashMap<>();
-		u2x = new HashMap<>();
-		wait = new HashMap<>();
-		waitLock = new HashMap<>();
-		waitU = new HashMap<>();
-		lock = new ReentrantLock();
+	public static final int SHARED = 0;
+	public static final int EXCLUSIVE = 1;
+	// 插入意向，只用于区间锁
+	public static final int INSERT = 2;
+	
+	private static final int STRIPES = 64;
+	
+	// 死锁检测最多访问的事务数，超过时按死锁处理
+	private static final int MAX_WAIT_DEPTH = 1 << 16;
+	
+	private static final Owner[] NO_HOLDERS = new Owner[0];
+	
+	/**
+	 * 事务的加锁状态，随Transaction创建
+	 */
+	static class Owner {
+		final long xid;
+		// 正在等待的资源及请求的模式
+		volatile Resource waiting;
+		int waitingMode;
+		// 等待所在的线程，锁被授予时由授予者置granted并unpark
+		volatile Thread thread;
+		volatile boolean granted;
+		// 等待区间锁时与之冲突的事务
+		volatile Owner[] blockedBy;
+		// 持有的资源与区间锁，只由事务自身的线程修改
+		long[] held = new long[4];
+		int heldCount;
+		List<RangeLock> heldRanges = new ArrayList<>();
+		
+		Owner(long xid) {
+			this.xid = xid;
+		}
+		
+		private void hold(long uid) {
+			if (heldCount == held.length) {
+				held = Arrays.copyOf(held, heldCount * 2);
+			}
+			held[heldCount++] = uid;
+		}
 	}
 	
-	private boolean isInList(Map<Long, List<Long>> listMap, long k, long elem) {
-		List<Long> l = listMap.get(k);
+	static class Resource {
+		final long uid;
+		int mode;
+		// 持有者，修改时整体替换，死锁检测可以不加锁读取
+		volatile Owner[] holders = NO_HOLDERS;
+		final ArrayDeque<Owner> waiters = new ArrayDeque<>();
+		
+		Resource(long uid) {
+			this.uid = uid;
+		}
 		
-		if (l == null) {
+		boolean isHeldBy(Owner owner) {
+			for (Owner o : holders) {
+				if (o == owner) {
+					return true;
+				}
+			}
 			return false;
 		}
 		
-		for (Long e : l) {
-			if (e == elem) {
+		/**
+		 * 除owner之外的持有者是否都与mode兼容
+		 */
+		boolean isCompatible(Owner owner, int mode) {
+			Owner[] hs = holders;
+			if (hs.length == 0 || (hs.length == 1 && hs[0] == owner)) {
 				return true;
 			}
+			return mode == SHARED && this.mode == SHARED;
 		}
-		return false;
-	}
-	
-	private void putIntoList(Map<Long, List<Long>> listMap, long k, long elem) {
-		if (!listMap.containsKey(k)) {
-			listMap.put(k, new ArrayList<>());
+		
+		void grant(Owner owner, int mode) {
+			Owner[] hs = holders;
+			if (isHeldBy(owner)) {
+				// 升级，此时owner是唯一的持有者
+				this.mode = Math.max(this.mode, mode);
+				return;
+			}
+			
+			if (hs.length == 0) {
+				this.mode = mode;
+			}
+			Owner[] grown = Arrays.copyOf(hs, hs.length + 1);
+			grown[hs.length] = owner;
+			holders = grown;
+		}
+		
+		void release(Owner owner) {
+			Owner[] hs = holders;
+			for (int i = 0; i < hs.length; i++) {
+				if (hs[i] == owner) {
+					Owner[] shrunk = new Owner[hs.length - 1];
+					System.arraycopy(hs, 0, shrunk, 0, i);
+					System.arraycopy(hs, i + 1, shrunk, i, hs.length - i - 1);
+					holders = shrunk;
+					return;
+				}
+			}
 		}
-		listMap.get(k).add(0, elem);
 	}
 	
-	private void removeFromList(Map<Long, List<Long>> listMap, long k, long elem) {
-		List<Long> l = listMap.get(k);
+	static class RangeLock {
+		final Owner owner;
+		final long index;
+		final long left;
+		final long right;
+		final int mode;
+		
+		RangeLock(Owner owner, long index, long left, long right, int mode) {
+			this.owner = owner;
+			this.index = index;
+			this.left = left;
+			this.right = right;
+			this.mode = mode;
+		}
 		
-		if (l == null) {
-			return;
+		boolean covers(long left, long right) {
+			return this.left <= left && right <= this.right;
 		}
 		
-		l.remove(elem);
-		if (l.size() == 0) {
-			listMap.remove(k);
+		boolean overlaps(long left, long right) {
+			return this.left <= right && left <= this.right;
 		}
 	}
 	
-	private Map<Long, Integer> xidStamp;
-	private int stamp;
-	
-	private boolean hasDeadlock() {
-		xidStamp = new HashMap<>();
-		stamp = 1;
+	/**
+	 * 一个索引上的所有区间锁
+	 */
+	static class RangeSet {
+		final long index;
+		// 共享与排他区间锁
+		final List<RangeLock> ranges = new ArrayList<>();
+		// 插入意向锁，按键排序
+		final TreeMap<Long, List<RangeLock>> inserts = new TreeMap<>();
+		final List<Owner> waiters = new ArrayList<>();
 		
-		for (long xid : x2u.keySet()) {
-			Integer s = xidStamp.get(xid);
-			if (s != null && s > 0) {
-				continue;
+		RangeSet(long index) {
+			this.index = index;
+		}
+		
+		boolean isEmpty() {
+			return ranges.isEmpty() && inserts.isEmpty() && waiters.isEmpty();
+		}
+		
+		/**
+		 * owner是否已持有足以覆盖该请求的区间锁
+		 * 共享区间锁不能代替插入意向锁：其他事务的共享区间锁可能也覆盖该键
+		 */
+		boolean isHeldBy(Owner owner, long left, long right, int mode) {
+			for (RangeLock rl : ranges) {
+				if (rl.owner == owner && rl.covers(left, right) && (rl.mode == EXCLUSIVE || mode == SHARED)) {
+					return true;
+				}
 			}
 			
-			stamp++;
-			if (dfs(xid)) {
-				return true;
+			if (mode == INSERT) {
+				List<RangeLock> l = inserts.get(left);
+				if (l != null) {
+					for (RangeLock rl : l) {
+						if (rl.owner == owner) {
+							return true;
+						}
+					}
+				}
 			}
+			return false;
 		}
-		return false;
-	}
-	
-	private boolean dfs(long xid) {
-		Integer s = xidStamp.get(xid);
-		if (s != null) {
-			if (s == stamp) {
-				return true;
-			} else if (s < stamp) {
-				return false;
+		
+		/**
+		 * 其他事务持有的、与该请求冲突的区间锁的持有者
+		 */
+		Owner[] conflicts(Owner owner, long left, long right, int mode) {
+			Set<Owner> blockers = Collections.newSetFromMap(new IdentityHashMap<>());
+			for (RangeLock rl : ranges) {
+				if (rl.owner != owner && rl.overlaps(left, right) && !(rl.mode == SHARED && mode == SHARED)) {
+					blockers.add(rl.owner);
+				}
+			}
+			
+			if (mode != INSERT) {
+				for (List<RangeLock> l : inserts.subMap(left, true, right, true).values()) {
+					for (RangeLock rl : l) {
+						if (rl.owner != owner) {
+							blockers.add(rl.owner);
+						}
+					}
+				}
 			}
+			return blockers.toArray(NO_HOLDERS);
 		}
-		xidStamp.put(xid, stamp);
 		
-		Long uid = waitU.get(xid);
-		if (uid == null) {
-			return false;
+		void add(RangeLock rl) {
+			if (rl.mode == INSERT) {
+				inserts.computeIfAbsent(rl.left, k -> new ArrayList<>(1)).add(rl);
+			} else {
+				ranges.add(rl);
+			}
+		}
+		
+		void remove(RangeLock rl) {
+			if (rl.mode != INSERT) {
+				ranges.remove(rl);
+				return;
+			}
+			
+			List<RangeLock> l = inserts.get(rl.left);
+			l.remove(rl);
+			if (l.isEmpty()) {
+				inserts.remove(rl.left);
+			}
+		}
+	}
+	
+	static class Stripe {
+		final Lock lock = new ReentrantLock();
+		final LongObjectMap<Resource> resources = new LongObjectMap<>();
+		final LongObjectMap<RangeSet> ranges = new LongObjectMap<>();
+	}
+	
+	private final Stripe[] stripes;
+	// 大于0时为超时模式
+	private final long timeoutNanos;
+	// 只有需要等待的请求才做死锁检测，检测之间互斥
+	private final Lock detectLock = new ReentrantLock();
+	
+	public LockTable() {
+		this(0);
+	}
+	
+	/**
+	 * @param timeoutMillis 大于0时使用超时模式，不做死锁检测
+	 */
+	public LockTable(long timeoutMillis) {
+		stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
 		}
-		Long x = u2x.get(uid);
-		assert x != null;
-		return dfs(x);
+		timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+	
+	Stripe stripeOf(long uid) {
+		long h = uid * 0x9E3779B97F4A7C15L;
+		return stripes[(int) (h >>> 58) & (STRIPES - 1)];
 	}
 	
-	public Lock add(long xid, long uid) throws Exception {
-		lock.lock();
+	/**
+	 * 以mode获取uid上的锁，需要等待时阻塞直到获得
+	 * 会产生死锁时抛出DeadlockException，超时模式下等待超时抛出LockTimeoutException
+	 */
+	public void add(Owner owner, long uid, int mode) throws Exception {
+		Stripe s = stripeOf(uid);
+		Resource r;
+		boolean holding;
 		
+		s.lock.lock();
 		try {
-			if (isInList(x2u, xid, uid)) {
-				return null;
+			r = s.resources.get(uid);
+			if (r == null) {
+				r = new Resource(uid);
+				s.resources.put(uid, r);
+			}
+			
+			holding = r.isHeldBy(owner);
+			if (holding && (mode == SHARED || r.mode == EXCLUSIVE)) {
+				return;
 			}
 			
-			if (!u2x.containsKey(uid)) {
-				u2x.put(uid, xid);
-				putIntoList(x2u, xid, uid);
-				return null;
+			// 升级请求不受队列影响，否则会与队列中等待本事务释放的请求互相等待
+			if (r.isCompatible(owner, mode) && (holding || r.waiters.isEmpty())) {
+				r.grant(owner, mode);
+				if (!holding) {
+					owner.hold(uid);
+				}
+				return;
 			}
 			
-			waitU.put(xid, uid);
-			putIntoList(wait, uid, xid);
+			owner.waitingMode = mode;
+			owner.granted = false;
+			owner.thread = Thread.currentThread();
+			owner.waiting = r;
+			if (holding) {
+				r.waiters.addFirst(owner);
+			} else {
+				r.waiters.addLast(owner);
+			}
 			
-			if (hasDeadlock()) {
-				waitU.remove(xid);
-				removeFromList(wait, uid, xid);
+			if (timeoutNanos == 0 && checkDeadlock(owner)) {
+				cancelWait(s, r, owner);
 				throw Error.DeadlockException;
 			}
-			
-			Lock l = new ReentrantLock();
-			waitLock.put(xid, l);
-			l.lock();
-			return l;
 		} finally {
-			lock.unlock();
+			s.lock.unlock();
+		}
+		
+		if (!awaitGrant(owner)) {
+			s.lock.lock();
+			try {
+				// 超时与授予同时发生时以授予为准
+				if (!owner.granted) {
+					cancelWait(s, r, owner);
+					throw Error.LockTimeoutException;
+				}
+			} finally {
+				s.lock.unlock();
+			}
+		}
+		
+		owner.thread = null;
+		if (!holding) {
+			owner.hold(uid);
 		}
 	}
 	
-	public void remove(long xid) {
-		lock.lock();
+	/**
+	 * 以mode获取索引index上[left, right]的区间锁，mode为INSERT时left与right相等
+	 * 需要等待时阻塞直到获得，失败时的异常与add相同
+	 */
+	public void addRange(Owner owner, long index, long left, long right, int mode) throws Exception {
+		Stripe s = stripeOf(index);
+		long deadline = System.nanoTime() + timeoutNanos;
+		boolean interrupted = false;
+		
+		s.lock.lock();
 		try {
-			List<Long> l = x2u.get(xid);
-			if (l != null) {
-				while (!l.isEmpty()) {
-					selectNewXID(l.remove(0));
+			RangeSet set = s.ranges.get(index);
+			if (set == null) {
+				set = new RangeSet(index);
+				s.ranges.put(index, set);
+			}
+			
+			if (set.isHeldBy(owner, left, right, mode)) {
+				return;
+			}
+			
+			while (true) {
+				Owner[] blockers = set.conflicts(owner, left, right, mode);
+				if (blockers.length == 0) {
+					break;
+				}
+				
+				owner.blockedBy = blockers;
+				if (timeoutNanos == 0 && checkDeadlock(owner)) {
+					releaseRangeSet(s, set);
+					throw Error.DeadlockException;
+				}
+				
+				long nanos = deadline - System.nanoTime();
+				if (timeoutNanos != 0 && nanos <= 0) {
+					owner.blockedBy = null;
+					releaseRangeSet(s, set);
+					throw Error.LockTimeoutException;
+				}
+				
+				// 在分区锁外等待，释放者持有分区锁unpark，不会漏掉唤醒
+				owner.thread = Thread.currentThread();
+				set.waiters.add(owner);
+				s.lock.unlock();
+				try {
+					if (timeoutNanos == 0) {
+						LockSupport.park(this);
+					} else {
+						LockSupport.parkNanos(this, nanos);
+					}
+					if (Thread.interrupted()) {
+						interrupted = true;
+					}
+				} finally {
+					s.lock.lock();
+					set.waiters.remove(owner);
+					owner.thread = null;
+					owner.blockedBy = null;
 				}
 			}
 			
-			waitU.remove(xid);
-			x2u.remove(xid);
-			waitLock.remove(xid);
+			RangeLock rl = new RangeLock(owner, index, left, right, mode);
+			set.add(rl);
+			owner.heldRanges.add(rl);
 		} finally {
-			lock.unlock();
+			s.lock.unlock();
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
 		}
 	}
 	
-	private void selectNewXID(long uid) {
-		u2x.remove(uid);
-		List<Long> l = wait.get(uid);
+	/**
+	 * 区间锁被释放或等待者放弃后，唤醒其余等待者重新检查，需持有分区锁
+	 */
+	private void releaseRangeSet(Stripe s, RangeSet set) {
+		for (Owner w : set.waiters) {
+			LockSupport.unpark(w.thread);
+		}
+		if (set.isEmpty()) {
+			s.ranges.remove(set.index);
+		}
+	}
+	
+	/**
+	 * 等待锁被授予，超时返回false
+	 */
+	private boolean awaitGrant(Owner owner) {
+		long deadline = System.nanoTime() + timeoutNanos;
+		boolean interrupted = false;
+		
+		while (!owner.granted) {
+			if (timeoutNanos == 0) {
+				LockSupport.park(this);
+			} else {
+				long nanos = deadline - System.nanoTime();
+				if (nanos <= 0) {
+					break;
+				}
+				LockSupport.parkNanos(this, nanos);
+			}
+			
+			// 等待中被中断时继续等待，返回前恢复中断状态
+			if (Thread.interrupted()) {
+				interrupted = true;
+			}
+		}
 		
-		if (l == null) {
-			return;
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return owner.granted;
+	}
+	
+	/**
+	 * 放弃等待，排在其后的请求可能因此可以获得锁，需持有分区锁
+	 */
+	private void cancelWait(Stripe s, Resource r, Owner owner) {
+		r.waiters.remove(owner);
+		owner.waiting = null;
+		owner.thread = null;
+		grantWaiters(s, r);
+	}
+	
+	/**
+	 * 在检测锁内检测死锁，存在死锁时撤回owner的等待边，之后的检测不会再经过owner
+	 */
+	private boolean checkDeadlock(Owner owner) {
+		detectLock.lock();
+		try {
+			if (!hasDeadlock(owner)) {
+				return false;
+			}
+			owner.waiting = null;
+			owner.blockedBy = null;
+			return true;
+		} finally {
+			detectLock.unlock();
 		}
+	}
+	
+	/**
+	 * 从owner出发沿等待边搜索，回到owner说明存在死锁
+	 * 排在队列中的请求最终也是在等待持有者，只需沿持有者的边搜索
+	 * 等待区间锁的事务的边为检查时与之冲突的事务
+	 */
+	private boolean hasDeadlock(Owner owner) {
+		Set<Owner> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		ArrayDeque<Owner> stack = new ArrayDeque<>();
+		stack.push(owner);
 		
-		while (!l.isEmpty()) {
-			long xid = l.remove(0);
+		while (!stack.isEmpty()) {
+			Owner w = stack.pop();
+			Resource r = w.waiting;
+			Owner[] blockers = r != null ? r.holders : w.blockedBy;
+			if (blockers == null) {
+				continue;
+			}
 			
-			if (waitLock.containsKey(xid)) {
-				u2x.put(uid, xid);
-				putIntoList(x2u, xid, uid);
-				Lock lock = waitLock.remove(xid);
-				waitU.remove(xid);
-				lock.unlock();
+			for (Owner o : blockers) {
+				// 升级时自身也是持有者，不构成等待
+				if (o == w) {
+					continue;
+				}
+				if (o == owner) {
+					return true;
+				}
+				if (visited.add(o)) {
+					if (visited.size() > MAX_WAIT_DEPTH) {
+						return true;
+					}
+					stack.push(o);
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * 释放事务持有的所有锁，并将每个资源交给排在队首的等待者，唤醒等待区间锁的事务
+	 */
+	public void remove(Owner owner) {
+		for (int i = 0; i < owner.heldCount; i++) {
+			long uid = owner.held[i];
+			Stripe s = stripeOf(uid);
+			s.lock.lock();
+			try {
+				Resource r = s.resources.get(uid);
+				r.release(owner);
+				grantWaiters(s, r);
+			} finally {
+				s.lock.unlock();
+			}
+		}
+		owner.heldCount = 0;
+		
+		for (RangeLock rl : owner.heldRanges) {
+			Stripe s = stripeOf(rl.index);
+			s.lock.lock();
+			try {
+				RangeSet set = s.ranges.get(rl.index);
+				set.remove(rl);
+				releaseRangeSet(s, set);
+			} finally {
+				s.lock.unlock();
+			}
+		}
+		owner.heldRanges.clear();
+	}
+	
+	/**
+	 * 按FIFO顺序授予所有可以获得锁的等待者，直到遇到不兼容的请求，需持有分区锁
+	 */
+	private void grantWaiters(Stripe s, Resource r) {
+		while (!r.waiters.isEmpty()) {
+			Owner next = r.waiters.peekFirst();
+			if (!r.isCompatible(next, next.waitingMode)) {
 				break;
 			}
+			
+			r.waiters.pollFirst();
+			r.grant(next, next.waitingMode);
+			next.waiting = null;
+			next.granted = true;
+			LockSupport.unpark(next.thread);
 		}
 		
-		if (wait.get(uid).size() == 0) {
-			wait.remove(uid);
+		if (r.holders.length == 0 && r.waiters.isEmpty()) {
+			s.resources.remove(r.uid);
 		}
 	}
 }
@@ -2,41 +2,65 @@ package backend.vm;
 
 import backend.tm.TransactionManagerImpl;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * @date 2024/1/15
  * @package backend.vm
+ *
+ * 快照由(xmin, xmax, 活跃XID有序数组)表示：
+ * 小于xmin的事务在快照创建时均已结束，不小于xmax的事务在快照创建时尚未开始，
+ * 介于两者之间的事务通过二分查找判断是否在快照中
  */
 public class Transaction {
 	public long xid;
 	public Exception err;
-	public Map<Long, Boolean> snapshot;
 	public int level;
 	public boolean autoAborted;
+	// 在活跃事务表中占据的槽位
+	public int slot;
+	// 持有与等待的行锁
+	LockTable.Owner locks;
 	
-	public static Transaction newTransaction(long xid, int level,
-											 Map<Long, Transaction> active) {
+	// 快照创建时最小的活跃XID
+	public long xmin;
+	// 快照创建时下一个将分配的XID
+	public long xmax;
+	// 快照创建时的活跃XID，升序排列
+	public long[] snapshot;
+	
+	/**
+	 * @param active 创建快照时的活跃XID，升序排列，不包含xid本身，由本事务独占
+	 */
+	public static Transaction newTransaction(long xid, int level, long[] active) {
 		Transaction t = new Transaction();
 		t.xid = xid;
 		t.level = level;
+		t.locks = new LockTable.Owner(xid);
 		
 		if (level != 0) {
-			t.snapshot = new HashMap<>();
-			
-			for (long k : active.keySet()) {
-				t.snapshot.put(k, true);
-			}
+			t.snapshot = active;
+			t.xmin = active.length > 0 ? active[0] : xid;
+			t.xmax = xid + 1;
 		}
 		return t;
 	}
 	
+	/**
+	 * 判断xid在快照创建时是否仍未结束
+	 */
 	public boolean isInSnapShot(long xid) {
 		if (xid == TransactionManagerImpl.SUPER_XID) {
 			return false;
 		}
 		
-		return snapshot.containsKey(xid);
+		if (xid < xmin) {
+			return false;
+		}
+		if (xid >= xmax) {
+			return true;
+		}
+		
+		return Arrays.binarySearch(snapshot, xid) >= 0;
 	}
 }
@@ -0,0 +1,263 @@
+package backend.vm;
+
+import backend.tm.TransactionManager;
+import backend.tm.TransactionManagerImpl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @date 2024/1/16
+ * @package backend.vm
+ *
+ * 活跃事务表，查找与创建快照均不需要全局锁
+ *
+ * 查找：XID连续分配，按XID分页存放事务，查找只需两次数组访问，没有装箱
+ * 一页中的事务全部结束后回收该页
+ *
+ * 快照：每个活跃事务占据一个槽位，创建快照时扫描所有槽位
+ * begin先占据槽位再分配XID，因此任何XID更小的事务在扫描时都已占据槽位，
+ * 最多等待其写入XID，不会被快照漏掉
+ *
+ * 最老快照：供清理线程判断旧版本是否仍可能被看到
+ * 扫描槽位与事务结束并发时，结束的事务可能仍在某个未被扫到的新快照中，
+ * 因此事务注销前先记录其XID，扫描结果再与扫描期间结束的最小XID取较小者
+ */
+class TransactionTable {
+	
+	private static final int PAGE_SHIFT = 12;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	
+	private static final int SLOT_CHUNK = 64;
+	
+	// 槽位空闲，SUPER_XID不占据槽位，不会与之混淆
+	private static final long FREE = 0;
+	// 槽位已被占据，XID尚未分配
+	private static final long PENDING = -1;
+	
+	private static class XidPage {
+		final AtomicReferenceArray<Transaction> transactions = new AtomicReferenceArray<>(PAGE_SIZE);
+		// 已结束的事务数，达到PAGE_SIZE时回收
+		final AtomicInteger finished = new AtomicInteger();
+	}
+	
+	private final Transaction superTransaction;
+	
+	private volatile AtomicReferenceArray<XidPage> pages = new AtomicReferenceArray<>(16);
+	// 槽位按块分配，已分配的块不会移动
+	private volatile AtomicLongArray[] slots = new AtomicLongArray[] { new AtomicLongArray(SLOT_CHUNK) };
+	// 扩容页目录、回收页以及增加槽位块时持有
+	private final Lock growLock = new ReentrantLock();
+	// 自上次oldestXmin开始扫描以来结束的最小XID
+	private final AtomicLong finishedMin = new AtomicLong(Long.MAX_VALUE);
+	
+	TransactionTable() {
+		superTransaction = Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null);
+	}
+	
+	/**
+	 * 开启事务并登记，隔离级别不为0时同时创建快照
+	 */
+	Transaction begin(TransactionManager tm, int level) {
+		int slot = claimSlot();
+		long xid = tm.begin();
+		slotChunk(slot).set(slot % SLOT_CHUNK, xid);
+		
+		long[] active = level == 0 ? null : snapshot(xid);
+		Transaction t = Transaction.newTransaction(xid, level, active);
+		t.slot = slot;
+		pageOf(xid, true).transactions.set(pageOffset(xid), t);
+		return t;
+	}
+	
+	Transaction get(long xid) {
+		if (xid == TransactionManagerImpl.SUPER_XID) {
+			return superTransaction;
+		}
+		
+		XidPage page = pageOf(xid, false);
+		return page == null ? null : page.transactions.get(pageOffset(xid));
+	}
+	
+	/**
+	 * 注销事务，需在事务状态写入TM之后调用，重复调用无效果
+	 */
+	void remove(Transaction t) {
+		XidPage page = pageOf(t.xid, false);
+		if (page == null || !page.transactions.compareAndSet(pageOffset(t.xid), t, null)) {
+			return;
+		}
+		
+		// 须在释放槽位之前记录，值不变时不写入，避免提交路径上的竞争
+		long m = finishedMin.get();
+		while (t.xid < m && !finishedMin.compareAndSet(m, t.xid)) {
+			m = finishedMin.get();
+		}
+		slotChunk(t.slot).set(t.slot % SLOT_CHUNK, FREE);
+		
+		if (page.finished.incrementAndGet() == PAGE_SIZE) {
+			int idx = pageIndex(t.xid);
+			growLock.lock();
+			try {
+				pages.compareAndSet(idx, page, null);
+			} finally {
+				growLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * 所有活跃事务的快照中最小的XID，读已提交的事务以自身XID计
+	 * 结束于该值之前的事务的修改对所有活跃及之后开始的事务均已可见，没有活跃事务时返回Long.MAX_VALUE
+	 * 只允许一个线程调用
+	 */
+	long oldestXmin() {
+		finishedMin.set(Long.MAX_VALUE);
+		long oldest = Long.MAX_VALUE;
+		
+		for (AtomicLongArray chunk : slots) {
+			for (int i = 0; i < SLOT_CHUNK; i++) {
+				while (true) {
+					long v = chunk.get(i);
+					if (v == FREE) {
+						break;
+					}
+					
+					// 已写入XID但尚未登记的事务可能正在创建快照，等待其登记
+					Transaction t = v == PENDING ? null : get(v);
+					if (t == null) {
+						Thread.yield();
+						continue;
+					}
+					
+					oldest = Math.min(oldest, t.level != 0 ? t.xmin : t.xid);
+					break;
+				}
+			}
+		}
+		
+		return Math.min(oldest, finishedMin.get());
+	}
+	
+	/**
+	 * 当前最大的活跃XID，没有活跃事务时返回0
+	 * 调用时已开始且尚未结束的事务，XID均不大于返回值
+	 */
+	long newestXid() {
+		long newest = 0;
+		for (AtomicLongArray chunk : slots) {
+			for (int i = 0; i < SLOT_CHUNK; i++) {
+				long v = chunk.get(i);
+				if (v != FREE && v != PENDING) {
+					newest = Math.max(newest, v);
+				}
+			}
+		}
+		return newest;
+	}
+	
+	/**
+	 * 收集XID小于xid的活跃事务，遇到PENDING的槽位时等待其写入XID
+	 */
+	private long[] snapshot(long xid) {
+		long[] active = new long[16];
+		int count = 0;
+		
+		for (AtomicLongArray chunk : slots) {
+			for (int i = 0; i < SLOT_CHUNK; i++) {
+				long v = chunk.get(i);
+				while (v == PENDING) {
+					Thread.yield();
+					v = chunk.get(i);
+				}
+				
+				if (v != FREE && v < xid) {
+					if (count == active.length) {
+						active = Arrays.copyOf(active, count * 2);
+					}
+					active[count++] = v;
+				}
+			}
+		}
+		
+		active = Arrays.copyOf(active, count);
+		Arrays.sort(active);
+		return active;
+	}
+	
+	private int claimSlot() {
+		while (true) {
+			AtomicLongArray[] chunks = slots;
+			for (int c = 0; c < chunks.length; c++) {
+				for (int i = 0; i < SLOT_CHUNK; i++) {
+					if (chunks[c].get(i) == FREE && chunks[c].compareAndSet(i, FREE, PENDING)) {
+						return c * SLOT_CHUNK + i;
+					}
+				}
+			}
+			
+			growLock.lock();
+			try {
+				if (slots == chunks) {
+					AtomicLongArray[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+					grown[chunks.length] = new AtomicLongArray(SLOT_CHUNK);
+					slots = grown;
+				}
+			} finally {
+				growLock.unlock();
+			}
+		}
+	}
+	
+	private AtomicLongArray slotChunk(int slot) {
+		return slots[slot / SLOT_CHUNK];
+	}
+	
+	private int pageIndex(long xid) {
+		return (int) ((xid - 1) >>> PAGE_SHIFT);
+	}
+	
+	private int pageOffset(long xid) {
+		return (int) ((xid - 1) & (PAGE_SIZE - 1));
+	}
+	
+	private XidPage pageOf(long xid, boolean create) {
+		int idx = pageIndex(xid);
+		AtomicReferenceArray<XidPage> dir = pages;
+		if (idx < dir.length()) {
+			XidPage page = dir.get(idx);
+			if (page != null || !create) {
+				return page;
+			}
+		} else if (!create) {
+			return null;
+		}
+		
+		growLock.lock();
+		try {
+			dir = pages;
+			if (idx >= dir.length()) {
+				AtomicReferenceArray<XidPage> grown = new AtomicReferenceArray<>(Math.max(idx + 1, dir.length() * 2));
+				for (int i = 0; i < dir.length(); i++) {
+					grown.set(i, dir.get(i));
+				}
+				pages = grown;
+				dir = grown;
+			}
+			
+			XidPage page = dir.get(idx);
+			if (page == null) {
+				page = new XidPage();
+				dir.set(idx, page);
+			}
+			return page;
+		} finally {
+			growLock.unlock();
+		}
+	}
+}
@@ -3,6 +3,8 @@ package backend.vm;
 import backend.dm.DataManager;
 import backend.tm.TransactionManager;
 
+import java.util.List;
+
 /**
  * @date 2023/12/17
  * @package backend.vm
@@ -10,8 +12,27 @@ import backend.tm.TransactionManager;
 public interface VersionManager {
 	byte[] read(long xid, long uid) throws Exception;
 	long insert(long xid, byte[] data) throws Exception;
+	// 批量插入，返回的uid与data一一对应
+	long[] insertBatch(long xid, List<byte[]> data) throws Exception;
 	boolean delete(long xid, long uid) throws Exception;
 	
+	// 读取版本的数据，不检查可见性，版本已失效时返回null
+	byte[] readVersion(long uid) throws Exception;
+	// 原地修改版本中从offset开始的数据，不产生新版本，供修改元数据使用
+	void overwrite(long uid, int offset, byte[] data) throws Exception;
+	
+	// 索引index上的区间锁，mode为LockTable.SHARED或LockTable.EXCLUSIVE
+	void lockRange(long xid, long index, long left, long right, int mode) throws Exception;
+	// 在索引index中插入key之前调用
+	void lockInsert(long xid, long index, long key) throws Exception;
+	
+	// 所有活跃事务的快照中最小的XID，没有活跃事务时为Long.MAX_VALUE
+	long oldestActiveXid();
+	// 最大的活跃XID，没有活跃事务时为0
+	long newestActiveXid();
+	// 版本已对所有事务不可见时将其标记为非法，返回版本是否已失效
+	boolean vacuum(long uid, long oldestXid) throws Exception;
+	
 	long begin(int level);
 	void commit(long xid) throws Exception;
 	void abort(long xid);
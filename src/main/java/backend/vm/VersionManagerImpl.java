@@ -3,14 +3,11 @@ package backend.vm;
 import backend.common.AbstractCache;
 import backend.dm.DataManager;
 import backend.tm.TransactionManager;
-import backend.tm.TransactionManagerImpl;
 import backend.utils.Panic;
 import common.Error;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @date 2023/12/17
@@ -20,17 +17,14 @@ public class VersionManagerImpl extends AbstractCache<Entry>
 		implements VersionManager {
 	TransactionManager tm;
 	DataManager dm;
-	Map<Long, Transaction> activeTransaction;
-	Lock lock;
+	TransactionTable activeTransaction;
 	LockTable lockTable;
 	
 	public VersionManagerImpl(TransactionManager tm, DataManager dm) {
 		super(0);
 		this.tm = tm;
 		this.dm = dm;
-		activeTransaction = new HashMap<>();
-		activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
-		lock = new ReentrantLock();
+		activeTransaction = new TransactionTable();
 		lockTable = new LockTable();
 	}
 	
@@ -53,9 +47,7 @@ public class VersionManagerImpl extends AbstractCache<Entry>
 	
 	@Override
 	public byte[] read(long xid, long uid) throws Exception {
-		lock.lock();
 		Transaction t = activeTransaction.get(xid);
-		lock.unlock();
 		
 		assert t.err == null : t.err;
 		
@@ -71,11 +63,15 @@ public class VersionManagerImpl extends AbstractCache<Entry>
 		}
 		
 		try {
-			if (Visibility.isVisible(tm, t, e)) {
-				return e.data();
-			} else {
+			if (!Visibility.isVisible(tm, t, e)) {
 				return null;
 			}
+			
+			// 可重复读下对读到的记录加共享锁，提交前不会被其他事务删除
+			if (t.level != 0) {
+				lock(t, uid, LockTable.SHARED);
+			}
+			return e.data();
 		} finally {
 			e.release();
 		}
@@ -83,9 +79,7 @@ public class VersionManagerImpl extends AbstractCache<Entry>
 	
 	@Override
 	public long insert(long xid, byte[] data) throws Exception {
-		lock.lock();
 		Transaction t = activeTransaction.get(xid);
-		lock.unlock();
 		
 		assert t.err == null : t.err;
 		
@@ -93,11 +87,22 @@ public class VersionManagerImpl extends AbstractCache<Entry>
 		return dm.insert(xid, raw);
 	}
 	
+	@Override
+	public long[] insertBatch(long xid, List<byte[]> data) throws Exception {
+		Transaction t = activeTransaction.get(xid);
+		
+		assert t.err == null : t.err;
+		
+		List<byte[]> raws = new ArrayList<>(data.size());
+		for (byte[] d : data) {
+			raws.add(Entry.wrapEntry(d, xid));
+		}
+		return dm.insertBatch(xid, raws);
+	}
+	
 	@Override
 	public boolean delete(long xid, long uid) throws Exception {
-		lock.lock();
 		Transaction t = activeTransaction.get(xid);
-		lock.unlock();
 		
 		assert t.err == null : t.err;
 		
@@ -117,30 +122,14 @@ public class VersionManagerImpl extends AbstractCache<Entry>
 				return false;
 			}
 			
-			Lock l = null;
-			try {
-				l = lockTable.add(xid, uid);
-			} catch (Exception e) {
-				t.err = Error.ConcurrentUpdateException;
-				internAbort(xid, true);
-				t.autoAborted = true;
-				throw t.err;
-			}
-			
-			if (l != null) {
-				l.lock();
-				l.unlock();
-			}
+			lock(t, uid, LockTable.EXCLUSIVE);
 			
 			if (entry.getXmax() == xid) {
 				return false;
 			}
 			
 			if (Visibility.isVersionSkip(tm, t, entry)) {
-				t.err = Error.ConcurrentUpdateException;
-				internAbort(xid, true);
-				t.autoAborted = true;
-				throw t.err;
+				throw autoAbort(t);
 			}
 			
 			entry.setXmax(xid);
@@ -150,24 +139,136 @@ public class VersionManagerImpl extends AbstractCache<Entry>
 		}
 	}
 	
+	/**
+	 * 加锁失败（死锁或超时）时自动回滚事务
+	 */
+	private void lock(Transaction t, long uid, int mode) throws Exception {
+		try {
+			lockTable.add(t.locks, uid, mode);
+		} catch (Exception e) {
+			throw autoAbort(t);
+		}
+	}
+	
+	/**
+	 * 读已提交允许幻读，只有可重复读的事务需要锁住扫描的区间
+	 */
 	@Override
-	public long begin(int level) {
-		lock.lock();
+	public void lockRange(long xid, long index, long left, long right, int mode) throws Exception {
+		Transaction t = activeTransaction.get(xid);
+		if (t.level == 0) {
+			return;
+		}
+		
+		try {
+			lockTable.addRange(t.locks, index, left, right, mode);
+		} catch (Exception e) {
+			throw autoAbort(t);
+		}
+	}
+	
+	/**
+	 * 插入意向锁与隔离级别无关，否则可重复读事务锁住的区间内仍可能被插入新的键
+	 */
+	@Override
+	public void lockInsert(long xid, long index, long key) throws Exception {
+		Transaction t = activeTransaction.get(xid);
+		
 		try {
-			long xid = tm.begin();
-			Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
-			activeTransaction.put(xid, t);
-			return xid;
+			lockTable.addRange(t.locks, index, key, key, LockTable.INSERT);
+		} catch (Exception e) {
+			throw autoAbort(t);
+		}
+	}
+	
+	private Exception autoAbort(Transaction t) {
+		t.err = Error.ConcurrentUpdateException;
+		internAbort(t.xid, true);
+		t.autoAborted = true;
+		return t.err;
+	}
+	
+	@Override
+	public long oldestActiveXid() {
+		return activeTransaction.oldestXmin();
+	}
+	
+	@Override
+	public long newestActiveXid() {
+		return activeTransaction.newestXid();
+	}
+	
+	/**
+	 * 插入事务已回滚，或删除事务在oldestXid之前已提交的版本，对任何活跃及之后的事务均不可见
+	 */
+	@Override
+	public byte[] readVersion(long uid) throws Exception {
+		Entry entry;
+		try {
+			entry = get(uid);
+		} catch (Exception e) {
+			if (e == Error.NoEntryException) {
+				return null;
+			} else {
+				throw e;
+			}
+		}
+		
+		try {
+			return entry.data();
+		} finally {
+			entry.release();
+		}
+	}
+	
+	@Override
+	public void overwrite(long uid, int offset, byte[] data) throws Exception {
+		Entry entry = get(uid);
+		try {
+			entry.overwrite(offset, data);
+		} finally {
+			entry.release();
+		}
+	}
+	
+	@Override
+	public boolean vacuum(long uid, long oldestXid) throws Exception {
+		Entry entry;
+		try {
+			entry = get(uid);
+		} catch (Exception e) {
+			if (e == Error.NoEntryException) {
+				return true;
+			} else {
+				throw e;
+			}
+		}
+		
+		try {
+			long xmax = entry.getXmax();
+			boolean dead = tm.isAborted(entry.getXmin()) ||
+								   (xmax != 0 && xmax < oldestXid && tm.isCommitted(xmax));
+			if (dead) {
+				entry.invalidate();
+			}
+			return dead;
 		} finally {
-			lock.unlock();
+			entry.release();
 		}
 	}
 	
+	@Override
+	public long begin(int level) {
+		return activeTransaction.begin(tm, level).xid;
+	}
+	
+	/**
+	 * 先写入提交状态再释放锁和注销事务，
+	 * 此后创建的快照不再包含该事务，看到的必然已是提交状态
+	 */
 	@Override
 	public void commit(long xid) throws Exception {
-		lock.lock();
 		Transaction t = activeTransaction.get(xid);
-		lock.unlock();
 		
 		try {
 			if (t.err != null) {
@@ -175,16 +276,12 @@ public class VersionManagerImpl extends AbstractCache<Entry>
 			}
 		} catch (NullPointerException e) {
 			System.out.println(xid);
-			System.out.println(activeTransaction.keySet());
 			Panic.panic(e);
 		}
 		
-		lock.lock();
-		activeTransaction.remove(xid);
-		lock.unlock();
-		
-		lockTable.remove(xid);
 		tm.commit(xid);
+		lockTable.remove(t.locks);
+		activeTransaction.remove(t);
 	}
 	
 	@Override
@@ -193,19 +290,16 @@ public class VersionManagerImpl extends AbstractCache<Entry>
 	}
 	
 	private void internAbort(long xid, boolean autoAborted) {
-		lock.lock();
 		Transaction t = activeTransaction.get(xid);
-		if (!autoAborted) {
-			activeTransaction.remove(xid);
-		}
-		lock.unlock();
 		
-		if (t.autoAborted) {
-			return;
+		if (!t.autoAborted) {
+			tm.abort(xid);
+			lockTable.remove(t.locks);
 		}
 		
-		lockTable.remove(xid);
-		tm.abort(xid);
+		if (!autoAborted) {
+			activeTransaction.remove(t);
+		}
 	}
 	
 	public void releaseEntry(Entry entry) {
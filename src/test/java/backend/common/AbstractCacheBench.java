@@ -0,0 +1,119 @@
+package backend.common;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @date 2024/2/5
+ * @package backend.common
+ *
+ * 多线程get/release的吞吐与get延迟，不是单元测试，直接运行main：
+ * -Dthreads=线程数 -Dseconds=运行时间 -Dkeys=随机访问的key数 -Dload=加载一个资源的微秒数
+ *
+ * 默认模式下引用计数归零即驱逐，key较少时多个线程经常同时获取正在加载的同一资源
+ * 加载用park模拟I/O，不占用CPU
+ */
+public class AbstractCacheBench {
+	
+	private static final int MAX_SAMPLES = 1 << 20;
+	
+	static class BenchCache extends AbstractCache<Long> {
+		private final long loadNanos;
+		
+		BenchCache(long loadNanos) {
+			super(0);
+			this.loadNanos = loadNanos;
+		}
+		
+		@Override
+		protected Long getForCache(long key) {
+			if (loadNanos > 0) {
+				LockSupport.parkNanos(loadNanos);
+			}
+			return key;
+		}
+		
+		@Override
+		protected void releaseForCache(Long obj) {
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int threads = Integer.getInteger("threads", 8);
+		int seconds = Integer.getInteger("seconds", 5);
+		int keys = Integer.getInteger("keys", 64);
+		long loadNanos = TimeUnit.MICROSECONDS.toNanos(Integer.getInteger("load", 20));
+		
+		BenchCache cache = new BenchCache(loadNanos);
+		long[] ops = new long[threads];
+		long[][] samples = new long[threads][MAX_SAMPLES / threads];
+		int[] sampleCount = new int[threads];
+		long stopAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		
+		for (int i = 0; i < threads; i++) {
+			int id = i;
+			Thread t = new Thread(() -> {
+				try {
+					start.await();
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					while (System.nanoTime() < stopAt) {
+						long key = random.nextInt(keys) + 1;
+						long before = System.nanoTime();
+						cache.get(key);
+						long after = System.nanoTime();
+						cache.release(key);
+						
+						if (sampleCount[id] < samples[id].length) {
+							samples[id][sampleCount[id]++] = after - before;
+						}
+						ops[id]++;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			});
+			t.start();
+		}
+		
+		start.countDown();
+		done.await();
+		report(threads, seconds, ops, samples, sampleCount);
+	}
+	
+	private static void report(int threads, int seconds, long[] ops, long[][] samples, int[] sampleCount) {
+		long total = 0;
+		for (long o : ops) {
+			total += o;
+		}
+		
+		int n = 0;
+		for (int c : sampleCount) {
+			n += c;
+		}
+		long[] all = new long[n];
+		int pos = 0;
+		for (int i = 0; i < threads; i++) {
+			System.arraycopy(samples[i], 0, all, pos, sampleCount[i]);
+			pos += sampleCount[i];
+		}
+		Arrays.sort(all);
+		
+		System.out.printf("threads=%d get/release=%d (%.0f/s)%n", threads, total, (double) total / seconds);
+		if (n > 0) {
+			System.out.printf("get latency (us): p50=%.1f p99=%.1f p999=%.1f max=%.1f samples=%d%n",
+				percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999), all[n - 1] / 1000.0, n);
+		}
+	}
+	
+	private static double percentile(long[] sorted, double p) {
+		int idx = (int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)));
+		return sorted[idx] / 1000.0;
+	}
+}
@@ -0,0 +1,118 @@
+package backend.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @date 2024/2/5
+ * @package backend.common
+ */
+public class AbstractCacheTest {
+	
+	/**
+	 * 资源即key本身，写回blockKey时阻塞到放行，写回failKey时抛出一次异常
+	 */
+	private static class TestCache extends AbstractCache<Long> {
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		volatile long blockKey = -1;
+		final AtomicLong failKey = new AtomicLong(-1);
+		
+		TestCache(int maxResource) {
+			super(maxResource, true);
+		}
+		
+		@Override
+		protected Long getForCache(long key) {
+			return key;
+		}
+		
+		@Override
+		protected void releaseForCache(Long obj) {
+			if (failKey.compareAndSet(obj, -1)) {
+				throw new IllegalStateException("write back failed");
+			}
+			if (obj == blockKey) {
+				writing.countDown();
+				try {
+					proceed.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+		
+		long load(long key) throws Exception {
+			long v = get(key);
+			release(key);
+			return v;
+		}
+	}
+	
+	@Test
+	public void slowWriteBackDoesNotBlockOtherMisses() throws Exception {
+		TestCache cache = new TestCache(2);
+		cache.load(1);
+		cache.load(2);
+		cache.blockKey = 1;
+		
+		// 时钟转过一圈后选中1，写回阻塞
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		Thread slow = new Thread(() -> {
+			try {
+				assertEquals(3L, cache.load(3));
+			} catch (Throwable e) {
+				error.set(e);
+			}
+		});
+		slow.start();
+		assertTrue(cache.writing.await(10, TimeUnit.SECONDS));
+		
+		// 另一个缺失选中2并完成，不等待1的写回
+		Thread fast = new Thread(() -> {
+			try {
+				assertEquals(4L, cache.load(4));
+			} catch (Throwable e) {
+				error.set(e);
+			}
+		});
+		fast.start();
+		fast.join(10_000);
+		assertFalse(fast.isAlive(), "miss waited for another entry's write back");
+		assertTrue(slow.isAlive());
+		
+		cache.proceed.countDown();
+		slow.join(10_000);
+		assertFalse(slow.isAlive());
+		assertNull(error.get());
+		assertFalse(cache.isCached(1));
+		assertFalse(cache.isCached(2));
+		assertTrue(cache.isCached(3));
+		assertTrue(cache.isCached(4));
+	}
+	
+	@Test
+	public void failedWriteBackKeepsEntryAndRetries() throws Exception {
+		TestCache cache = new TestCache(2);
+		cache.load(1);
+		cache.load(2);
+		cache.failKey.set(1);
+		
+		assertEquals(3L, cache.load(3));
+		assertTrue(cache.isCached(1));
+		assertFalse(cache.isCached(2));
+		
+		long misses = cache.getMissCount();
+		assertEquals(1L, cache.load(1));
+		assertEquals(misses, cache.getMissCount());
+	}
+}
@@ -0,0 +1,105 @@
+package backend.dm.logger;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * @date 2024/2/5
+ * @package backend.dm.logger
+ *
+ * 多个线程同时提交时log的延迟与吞吐，不是单元测试，直接运行main：
+ * -Dthreads=线程数 -Dseconds=运行时间 -Dsize=每条日志的字节数 -Ddir=日志所在目录（默认临时目录）
+ *
+ * 每个线程循环调用log，相当于每个客户端连续提交事务，log返回时日志已持久化
+ */
+public class LoggerBench {
+	
+	private static final int MAX_SAMPLES = 1 << 20;
+	
+	public static void main(String[] args) throws Exception {
+		int threads = Integer.getInteger("threads", 64);
+		int seconds = Integer.getInteger("seconds", 5);
+		int size = Integer.getInteger("size", 64);
+		String parent = System.getProperty("dir");
+		
+		Path dir = parent == null ? Files.createTempDirectory("logger-bench") : Files.createTempDirectory(Path.of(parent), "logger-bench");
+		Logger lg = Logger.create(dir.resolve("db").toString());
+		
+		long[] ops = new long[threads];
+		long[][] samples = new long[threads][MAX_SAMPLES / threads];
+		int[] sampleCount = new int[threads];
+		long stopAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		
+		for (int i = 0; i < threads; i++) {
+			int id = i;
+			Thread t = new Thread(() -> {
+				try {
+					start.await();
+					byte[] data = new byte[size];
+					while (System.nanoTime() < stopAt) {
+						long before = System.nanoTime();
+						lg.log(data);
+						long after = System.nanoTime();
+						
+						if (sampleCount[id] < samples[id].length) {
+							samples[id][sampleCount[id]++] = after - before;
+						}
+						ops[id]++;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			});
+			t.start();
+		}
+		
+		start.countDown();
+		done.await();
+		lg.close();
+		report(threads, seconds, ops, samples, sampleCount);
+		
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+	
+	private static void report(int threads, int seconds, long[] ops, long[][] samples, int[] sampleCount) {
+		long total = 0;
+		for (long o : ops) {
+			total += o;
+		}
+		
+		int n = 0;
+		for (int c : sampleCount) {
+			n += c;
+		}
+		long[] all = new long[n];
+		int pos = 0;
+		for (int i = 0; i < threads; i++) {
+			System.arraycopy(samples[i], 0, all, pos, sampleCount[i]);
+			pos += sampleCount[i];
+		}
+		Arrays.sort(all);
+		
+		System.out.printf("threads=%d logs=%d (%.0f/s)%n", threads, total, (double) total / seconds);
+		if (n > 0) {
+			System.out.printf("log latency (us): p50=%.1f p99=%.1f p999=%.1f max=%.1f samples=%d%n",
+				percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999), all[n - 1] / 1000.0, n);
+		}
+	}
+	
+	private static double percentile(long[] sorted, double p) {
+		int idx = (int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)));
+		return sorted[idx] / 1000.0;
+	}
+}
@@ -0,0 +1,74 @@
+package backend.dm.logger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * @date 2024/2/5
+ * @package backend.dm.logger
+ *
+ * 截断到日志中间或段头之内，重新打开后只剩截断点之前的日志，段头不会被截掉
+ */
+public class LoggerTruncateTest {
+	
+	private Path dir;
+	private String path;
+	
+	@BeforeEach
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("logger-truncate");
+		path = dir.resolve("db").toString();
+	}
+	
+	@AfterEach
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+	
+	@Test
+	public void truncateBetweenRecords() throws Exception {
+		Logger lg = Logger.create(path);
+		lg.log("a".getBytes());
+		long second = lg.log("b".getBytes());
+		lg.log("c".getBytes());
+		lg.truncate(second);
+		lg.log("d".getBytes());
+		lg.close();
+		
+		lg = Logger.open(path);
+		lg.rewind();
+		assertArrayEquals("a".getBytes(), lg.next());
+		assertArrayEquals("d".getBytes(), lg.next());
+		assertNull(lg.next());
+		lg.close();
+	}
+	
+	@Test
+	public void truncateIntoHeaderKeepsHeader() throws Exception {
+		Logger lg = Logger.create(path);
+		lg.log("a".getBytes());
+		lg.log("b".getBytes());
+		lg.truncate(0);
+		lg.log("c".getBytes());
+		lg.close();
+		
+		lg = Logger.open(path);
+		lg.rewind();
+		assertArrayEquals("c".getBytes(), lg.next());
+		assertNull(lg.next());
+		lg.close();
+	}
+}
@@ -0,0 +1,90 @@
+package backend.im;
+
+import backend.dm.DataManager;
+import backend.tm.TransactionManager;
+import backend.tm.TransactionManagerImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * @date 2024/2/5
+ * @package backend.im
+ *
+ * 批量构建替换并释放空根时，并发的扫描与清理不能读到已释放的根
+ */
+public class BulkBuildRaceTest {
+	
+	private static final int ROUNDS = 300;
+	private static final int COUNT = 100;
+	
+	private Path dir;
+	private TransactionManagerImpl tm;
+	private DataManager dm;
+	
+	@BeforeEach
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("bulk-race");
+		String path = dir.resolve("db").toString();
+		tm = TransactionManager.create(path);
+		dm = DataManager.create(path, 1 << 22, tm);
+	}
+	
+	@AfterEach
+	public void tearDown() throws IOException {
+		dm.close();
+		tm.close();
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+	
+	@Test
+	public void scanAndRemoveIfDuringBuild() throws Exception {
+		long[] keys = new long[COUNT];
+		long[] uids = new long[COUNT];
+		for (int i = 0; i < COUNT; i++) {
+			keys[i] = i;
+			uids[i] = i + 1;
+		}
+		
+		for (int round = 0; round < ROUNDS; round++) {
+			BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+			AtomicBoolean done = new AtomicBoolean();
+			AtomicReference<Throwable> error = new AtomicReference<>();
+			Thread reader = new Thread(() -> {
+				try {
+					while (!done.get()) {
+						tree.scan((key, uid) -> {
+						});
+						tree.removeIf(uid -> false);
+					}
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			});
+			reader.start();
+			
+			tree.bulkInsert(keys, uids);
+			done.set(true);
+			reader.join();
+			
+			assertNull(error.get(), "round " + round + ": " + error.get());
+			int[] count = new int[1];
+			tree.scan((key, uid) -> count[0]++);
+			assertEquals(COUNT, count[0]);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package backend.im;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @date 2024/2/4
+ * @package backend.im
+ */
+public class EntrySorterTest {
+	
+	/**
+	 * 取出所有项，每项为[key, uid]
+	 */
+	private static List<List<Long>> drain(EntrySorter sorter) throws Exception {
+		List<List<Long>> entries = new ArrayList<>();
+		while (sorter.next()) {
+			entries.add(List.of(sorter.key(), sorter.uid()));
+		}
+		return entries;
+	}
+	
+	/**
+	 * 按(键, uid)降序排列且去重后的期望结果
+	 */
+	private static List<List<Long>> expected(List<List<Long>> added) {
+		TreeSet<List<Long>> set = new TreeSet<>((a, b) -> {
+			int c = Long.compare(b.get(0), a.get(0));
+			return c != 0 ? c : Long.compare(b.get(1), a.get(1));
+		});
+		set.addAll(added);
+		return new ArrayList<>(set);
+	}
+	
+	@Test
+	public void emptyInput() throws Exception {
+		EntrySorter sorter = new EntrySorter(4);
+		assertFalse(sorter.next());
+		assertFalse(sorter.next());
+		assertTrue(sorter.files.isEmpty());
+		sorter.close();
+	}
+	
+	@Test
+	public void fitsInMemoryWithoutFiles() throws Exception {
+		EntrySorter sorter = new EntrySorter(16);
+		List<List<Long>> added = new ArrayList<>();
+		for (long i = 0; i < 10; i++) {
+			sorter.add(i % 3, i);
+			added.add(List.of(i % 3, i));
+		}
+		
+		assertTrue(sorter.files.isEmpty());
+		assertEquals(expected(added), drain(sorter));
+		sorter.close();
+	}
+	
+	@Test
+	public void multipleRunsAreMergedDescending() throws Exception {
+		EntrySorter sorter = new EntrySorter(8);
+		Random random = new Random(20240204);
+		List<List<Long>> added = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			// 键的范围较小，包含负数与同键不同uid的项
+			long key = random.nextInt(200) - 100;
+			long uid = random.nextInt(50);
+			sorter.add(key, uid);
+			added.add(List.of(key, uid));
+		}
+		
+		assertTrue(sorter.files.size() > 100, "runs: " + sorter.files.size());
+		List<List<Long>> entries = drain(sorter);
+		assertEquals(expected(added), entries);
+		for (int i = 1; i < entries.size(); i++) {
+			List<Long> prev = entries.get(i - 1);
+			List<Long> cur = entries.get(i);
+			assertTrue(prev.get(0) > cur.get(0) || (prev.get(0).equals(cur.get(0)) && prev.get(1) > cur.get(1)),
+				"not descending at " + i);
+		}
+		assertFalse(sorter.next());
+		sorter.close();
+	}
+	
+	@Test
+	public void duplicatesAcrossRunsAreReturnedOnce() throws Exception {
+		EntrySorter sorter = new EntrySorter(4);
+		for (int i = 0; i < 20; i++) {
+			sorter.add(7, 70);
+			sorter.add(Long.MIN_VALUE, 1);
+			sorter.add(Long.MAX_VALUE, 2);
+		}
+		
+		assertTrue(sorter.files.size() > 1);
+		assertEquals(List.of(List.of(Long.MAX_VALUE, 2L), List.of(7L, 70L), List.of(Long.MIN_VALUE, 1L)), drain(sorter));
+		sorter.close();
+	}
+	
+	@Test
+	public void closeDeletesRunFiles() throws Exception {
+		EntrySorter sorter = new EntrySorter(4);
+		for (long i = 0; i < 50; i++) {
+			sorter.add(i, i);
+		}
+		List<File> files = new ArrayList<>(sorter.files);
+		assertFalse(files.isEmpty());
+		for (File f : files) {
+			assertTrue(f.exists());
+		}
+		
+		// 归并未结束时关闭，打开的顺串同样被关闭并删除
+		assertTrue(sorter.next());
+		assertEquals(49, sorter.key());
+		sorter.close();
+		
+		for (File f : files) {
+			assertFalse(f.exists(), f + " not deleted");
+		}
+		assertTrue(sorter.files.isEmpty());
+	}
+}
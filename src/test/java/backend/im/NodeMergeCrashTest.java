@@ -0,0 +1,147 @@
+package backend.im;
+
+import backend.dm.DataManager;
+import backend.tm.TransactionManager;
+import backend.tm.TransactionManagerImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @date 2024/2/4
+ * @package backend.im
+ *
+ * 在叶子合并与重新分配期间的每条日志之后模拟崩溃：
+ * 数据文件停留在开始清理之前，日志截断到该条日志的末尾，恢复后检查索引中的项
+ */
+public class NodeMergeCrashTest {
+	
+	private static final long MEM = 1 << 20;
+	private static final int COUNT = 200;
+	
+	private Path dir;
+	
+	@BeforeEach
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("merge-crash");
+	}
+	
+	@AfterEach
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+	
+	@Test
+	public void crashDuringRebalanceLeavesNoDuplicates() throws Exception {
+		String path = dir.resolve("db").toString();
+		
+		TransactionManagerImpl tm = TransactionManager.create(path);
+		DataManager dm = DataManager.create(path, MEM, tm);
+		long bootUid = BPlusTree.create(dm, 8);
+		BPlusTree tree = BPlusTree.load(bootUid, dm);
+		for (long i = 0; i < COUNT; i++) {
+			tree.insert(i, i + 1);
+		}
+		dm.close();
+		tm.close();
+		
+		// 重新打开后页面一已标记为打开，之后的副本打开时需要恢复
+		tm = TransactionManager.open(path);
+		dm = DataManager.open(path, MEM, tm);
+		tree = BPlusTree.load(bootUid, dm);
+		Path snapshot = Files.createDirectory(dir.resolve("snapshot"));
+		File log = null;
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path p : (Iterable<Path>) files::iterator) {
+				if (p.getFileName().toString().startsWith("db.log")) {
+					log = p.toFile();
+				} else if (Files.isRegularFile(p)) {
+					Files.copy(p, snapshot.resolve(p.getFileName()));
+				}
+			}
+		}
+		long start = log.length();
+		
+		// 每个叶子只保留三分之一的项，相邻叶子合并或重新分配
+		tree.removeIf(uid -> uid % 3 != 0);
+		assertTrue(tree.getMergedCount() > 0, "no merge");
+		assertTrue(tree.getRedistributedCount() + tree.getMergedCount() > 1);
+		long end = log.length();
+		
+		List<Long> cuts = new ArrayList<>();
+		try (RandomAccessFile raf = new RandomAccessFile(log, "r")) {
+			for (long pos = start; pos < end; ) {
+				raf.seek(pos);
+				pos += 8 + raf.readInt();
+				cuts.add(pos);
+			}
+		}
+		
+		Set<Long> kept = new HashSet<>();
+		for (long i = 0; i < COUNT; i++) {
+			if ((i + 1) % 3 == 0) {
+				kept.add(i + 1);
+			}
+		}
+		for (long cut : cuts) {
+			checkRecovered(snapshot, log, cut, bootUid, kept);
+		}
+		
+		dm.close();
+		tm.close();
+	}
+	
+	private void checkRecovered(Path snapshot, File log, long cut, long bootUid, Set<Long> kept) throws Exception {
+		Path crash = dir.resolve("crash");
+		if (Files.exists(crash)) {
+			try (Stream<Path> files = Files.walk(crash)) {
+				files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			}
+		}
+		Files.createDirectory(crash);
+		try (Stream<Path> files = Files.list(snapshot)) {
+			for (Path p : (Iterable<Path>) files::iterator) {
+				Files.copy(p, crash.resolve(p.getFileName()));
+			}
+		}
+		Path crashLog = crash.resolve(log.getName());
+		Files.copy(log.toPath(), crashLog, StandardCopyOption.REPLACE_EXISTING);
+		try (RandomAccessFile raf = new RandomAccessFile(crashLog.toFile(), "rw")) {
+			raf.setLength(cut);
+		}
+		
+		String path = crash.resolve("db").toString();
+		TransactionManagerImpl tm = TransactionManager.open(path);
+		DataManager dm = DataManager.open(path, MEM, tm);
+		try {
+			BPlusTree tree = BPlusTree.load(bootUid, dm);
+			Set<Long> seen = new HashSet<>();
+			tree.scan((key, uid) -> {
+				assertTrue(seen.add(uid), "duplicated entry " + uid + " after crash at " + cut);
+				assertEquals(key + 1, uid);
+			});
+			assertTrue(seen.containsAll(kept), "lost entries after crash at " + cut);
+		} finally {
+			dm.close();
+			tm.close();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package backend.im;
+
+import backend.dm.DataManager;
+import backend.tm.TransactionManager;
+import backend.tm.TransactionManagerImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @date 2024/2/5
+ * @package backend.im
+ *
+ * removeIf的回调：beforeRemove在删除之前拿到该叶子判定为真的项，afterLeaf调用时不持有treeLock
+ */
+public class RemoveIfTest {
+	
+	private static final int COUNT = 200;
+	
+	private Path dir;
+	private TransactionManagerImpl tm;
+	private DataManager dm;
+	
+	@BeforeEach
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("remove-if");
+		String path = dir.resolve("db").toString();
+		tm = TransactionManager.create(path);
+		dm = DataManager.create(path, 1 << 22, tm);
+	}
+	
+	@AfterEach
+	public void tearDown() throws IOException {
+		dm.close();
+		tm.close();
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+	
+	@Test
+	public void callbacksRunAroundEachLeaf() throws Exception {
+		BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 8), dm);
+		for (long i = 0; i < COUNT; i++) {
+			tree.insert(i, i + 1);
+		}
+		
+		List<Long> announced = new ArrayList<>();
+		int[] leaves = new int[1];
+		int removed = tree.removeIf(new BPlusTree.RemoveFilter() {
+			@Override
+			public boolean test(long uid) {
+				assertFalse(tree.treeLock.writeLock().tryLock());
+				return uid % 2 == 0;
+			}
+			
+			@Override
+			public void beforeRemove(long[] uids) throws Exception {
+				for (long uid : uids) {
+					assertEquals(1, tree.search(uid - 1).size());
+					announced.add(uid);
+				}
+			}
+			
+			@Override
+			public void afterLeaf() {
+				assertTrue(tree.treeLock.writeLock().tryLock());
+				tree.treeLock.writeLock().unlock();
+				leaves[0]++;
+			}
+		});
+		
+		assertEquals(COUNT / 2, removed);
+		assertEquals(COUNT / 2, announced.size());
+		assertTrue(leaves[0] > 1);
+		for (long i = 0; i < COUNT; i++) {
+			assertEquals(i % 2 == 0 ? 1 : 0, tree.search(i).size());
+		}
+	}
+}
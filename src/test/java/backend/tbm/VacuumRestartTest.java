@@ -0,0 +1,110 @@
+package backend.tbm;
+
+import backend.dm.DataManager;
+import backend.server.Executor;
+import backend.tm.TransactionManager;
+import backend.tm.TransactionManagerImpl;
+import backend.vm.VersionManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @date 2024/2/5
+ * @package backend.tbm
+ *
+ * 一轮清理之后、回收之前重启，失效的版本仍会在重启后回收
+ */
+public class VacuumRestartTest {
+	
+	private static final long MEM = 1 << 22;
+	private static final int COUNT = 300;
+	
+	private Path dir;
+	private String path;
+	private TransactionManagerImpl tm;
+	private DataManager dm;
+	private TableManager tbm;
+	
+	@BeforeEach
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("vacuum-restart");
+		path = dir.resolve("db").toString();
+		tm = TransactionManager.create(path);
+		dm = DataManager.create(path, MEM, tm);
+		TableManager.create(path, VersionManager.newVersionManager(tm, dm), dm);
+		dm.close();
+		tm.close();
+	}
+	
+	@AfterEach
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+	
+	private Executor open() {
+		tm = TransactionManager.open(path);
+		dm = DataManager.open(path, MEM, tm);
+		tbm = TableManager.open(path, VersionManager.newVersionManager(tm, dm), dm);
+		return new Executor(tbm);
+	}
+	
+	private void close() {
+		tbm.close();
+		dm.close();
+		tm.close();
+	}
+	
+	private static int rows(Executor exe, String sql) throws Exception {
+		String res = new String(exe.execute(sql.getBytes()));
+		return res.isEmpty() ? 0 : res.split("\n").length;
+	}
+	
+	@Test
+	public void pendingReclaimSurvivesRestart() throws Exception {
+		Executor exe = open();
+		exe.execute("create table t id int32, s string (index id)".getBytes());
+		for (int i = 0; i < COUNT; i++) {
+			exe.execute(("insert into t values " + i + " a").getBytes());
+		}
+		exe.execute("update t set s = abcdefgh where id < 1000".getBytes());
+		
+		// 第一轮删除旧版本的索引项，空间要等下一轮才回收
+		tbm.vacuum().vacuum();
+		assertEquals(COUNT, tbm.vacuum().getDeadVersionCount());
+		assertEquals(0, tbm.vacuum().getReclaimedBytes());
+		close();
+		
+		exe = open();
+		tbm.vacuum().vacuum();
+		tbm.vacuum().vacuum();
+		assertTrue(tbm.vacuum().getReclaimedBytes() > 0);
+		assertEquals(0, tbm.vacuum().getDeadVersionCount());
+		assertEquals(COUNT, rows(exe, "select * from t"));
+		
+		// 回收的空间再次使用后，重启不会把它释放第二次
+		for (int i = 0; i < COUNT; i++) {
+			exe.execute(("insert into t values " + (COUNT + i) + " b").getBytes());
+		}
+		close();
+		
+		exe = open();
+		tbm.vacuum().vacuum();
+		tbm.vacuum().vacuum();
+		assertEquals(0, tbm.vacuum().getReclaimedBytes());
+		assertEquals(2 * COUNT, rows(exe, "select * from t"));
+		close();
+	}
+}
@@ -0,0 +1,93 @@
+package backend.tm;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * @date 2024/2/5
+ * @package backend.tm
+ *
+ * XID文件的吞吐，不是单元测试，直接运行main：
+ * -Dthreads=线程数 -Dseconds=每个阶段的运行时间 -Dxids=查询阶段预先提交的事务数
+ *
+ * 两个阶段：
+ * 1. 各线程循环begin/commit
+ * 2. 各线程随机查询预先提交的事务的isCommitted，返回false的次数记为错误
+ */
+public class TransactionManagerBench {
+	
+	public static void main(String[] args) throws Exception {
+		int threads = Integer.getInteger("threads", 8);
+		int seconds = Integer.getInteger("seconds", 5);
+		int xids = Integer.getInteger("xids", 100000);
+		
+		Path dir = Files.createTempDirectory("tm-bench");
+		TransactionManager tm = TransactionManager.create(dir.resolve("db").toString());
+		
+		long commits = run(threads, seconds, () -> tm.commit(tm.begin()));
+		System.out.printf("threads=%d begin/commit=%d (%.0f/s)%n", threads, commits, (double) commits / seconds);
+		
+		long first = tm.begin();
+		tm.commit(first);
+		for (int i = 1; i < xids; i++) {
+			tm.commit(tm.begin());
+		}
+		LongAdder wrong = new LongAdder();
+		long checks = run(threads, seconds, () -> {
+			long xid = first + ThreadLocalRandom.current().nextInt(xids);
+			if (!tm.isCommitted(xid)) {
+				wrong.increment();
+			}
+		});
+		System.out.printf("threads=%d isCommitted=%d (%.0f/s) wrong=%d%n", threads, checks, (double) checks / seconds, wrong.sum());
+		
+		tm.close();
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+	
+	/**
+	 * 用threads个线程循环执行op，返回总次数
+	 */
+	private static long run(int threads, int seconds, Runnable op) throws InterruptedException {
+		long[] ops = new long[threads];
+		long stopAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		
+		for (int i = 0; i < threads; i++) {
+			int id = i;
+			Thread t = new Thread(() -> {
+				try {
+					start.await();
+					while (System.nanoTime() < stopAt) {
+						op.run();
+						ops[id]++;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			});
+			t.start();
+		}
+		
+		start.countDown();
+		done.await();
+		
+		long total = 0;
+		for (long o : ops) {
+			total += o;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,115 @@
+package backend.vm;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @date 2024/2/3
+ * @package backend.vm
+ *
+ * 热点行上的锁交接延迟与公平性，不是单元测试，直接运行main：
+ * -Dthreads=线程数 -Dseconds=运行时间 -Dhold=持有锁的微秒数 -Dshared=共享请求的百分比
+ *
+ * 交接延迟为上一个持有者开始释放到等待者从add返回的时间，只统计等待期间发生的释放
+ * 公平性为各线程获得锁次数的最小值/最大值与Jain指数，FIFO队列下应接近1
+ */
+public class LockTableBench {
+	
+	private static final int MAX_SAMPLES = 1 << 20;
+	
+	private static volatile long releasedAt;
+	
+	public static void main(String[] args) throws Exception {
+		int threads = Integer.getInteger("threads", 8);
+		int seconds = Integer.getInteger("seconds", 5);
+		long holdNanos = TimeUnit.MICROSECONDS.toNanos(Integer.getInteger("hold", 5));
+		int shared = Integer.getInteger("shared", 0);
+		
+		LockTable lt = new LockTable();
+		long[] acquired = new long[threads];
+		long[][] samples = new long[threads][MAX_SAMPLES / threads];
+		int[] sampleCount = new int[threads];
+		long stopAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		
+		for (int i = 0; i < threads; i++) {
+			int id = i;
+			Thread t = new Thread(() -> {
+				try {
+					start.await();
+					long xid = id + 1;
+					long seq = 0;
+					while (System.nanoTime() < stopAt) {
+						LockTable.Owner o = new LockTable.Owner(xid);
+						int mode = (seq++ % 100) < shared ? LockTable.SHARED : LockTable.EXCLUSIVE;
+						
+						long before = System.nanoTime();
+						lt.add(o, 1, mode);
+						long after = System.nanoTime();
+						long released = releasedAt;
+						if (released > before && sampleCount[id] < samples[id].length) {
+							samples[id][sampleCount[id]++] = after - released;
+						}
+						
+						acquired[id]++;
+						long until = after + holdNanos;
+						while (System.nanoTime() < until) {
+							Thread.onSpinWait();
+						}
+						releasedAt = System.nanoTime();
+						lt.remove(o);
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			});
+			t.start();
+		}
+		
+		start.countDown();
+		done.await();
+		report(threads, seconds, acquired, samples, sampleCount);
+	}
+	
+	private static void report(int threads, int seconds, long[] acquired, long[][] samples, int[] sampleCount) {
+		long total = 0;
+		long min = Long.MAX_VALUE;
+		long max = 0;
+		double squares = 0;
+		for (long a : acquired) {
+			total += a;
+			min = Math.min(min, a);
+			max = Math.max(max, a);
+			squares += (double) a * a;
+		}
+		double jain = (double) total * total / (threads * squares);
+		
+		int n = 0;
+		for (int c : sampleCount) {
+			n += c;
+		}
+		long[] all = new long[n];
+		int pos = 0;
+		for (int i = 0; i < threads; i++) {
+			System.arraycopy(samples[i], 0, all, pos, sampleCount[i]);
+			pos += sampleCount[i];
+		}
+		Arrays.sort(all);
+		
+		System.out.printf("threads=%d acquisitions=%d (%.0f/s)%n", threads, total, (double) total / seconds);
+		System.out.printf("fairness: min=%d max=%d min/max=%.3f jain=%.4f%n", min, max, (double) min / max, jain);
+		if (n > 0) {
+			System.out.printf("hand-off latency (us): p50=%.1f p99=%.1f p999=%.1f max=%.1f samples=%d%n",
+				percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999), all[n - 1] / 1000.0, n);
+		}
+	}
+	
+	private static double percentile(long[] sorted, double p) {
+		int idx = (int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)));
+		return sorted[idx] / 1000.0;
+	}
+}
@@ -0,0 +1,454 @@
+package backend.vm;
+
+import common.Error;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static backend.vm.LockTable.EXCLUSIVE;
+import static backend.vm.LockTable.INSERT;
+import static backend.vm.LockTable.SHARED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @date 2024/2/3
+ * @package backend.vm
+ */
+public class LockTableTest {
+	
+	private static final long WAIT_MILLIS = 10_000;
+	
+	/**
+	 * 在单独的线程中执行加锁操作，记录抛出的异常或断言失败
+	 */
+	private static class Async extends Thread {
+		interface Action {
+			void run() throws Exception;
+		}
+		
+		private final Action action;
+		volatile Throwable error;
+		
+		Async(Action action) {
+			this.action = action;
+			setDaemon(true);
+			start();
+		}
+		
+		@Override
+		public void run() {
+			try {
+				action.run();
+			} catch (Throwable e) {
+				error = e;
+			}
+		}
+		
+		/**
+		 * 等待线程阻塞在锁上
+		 */
+		void awaitParked() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+			while (getState() != State.WAITING && getState() != State.TIMED_WAITING) {
+				assertTrue(isAlive(), "finished without waiting");
+				assertTrue(System.currentTimeMillis() < deadline, "not parked");
+				Thread.sleep(1);
+			}
+		}
+		
+		void awaitDone() throws InterruptedException {
+			join(WAIT_MILLIS);
+			assertFalse(isAlive(), "still waiting");
+		}
+	}
+	
+	/**
+	 * 取两个落在不同分区的uid
+	 */
+	private static long[] uidsInDifferentStripes(LockTable lt) {
+		long a = 1;
+		long b = 2;
+		while (lt.stripeOf(a) == lt.stripeOf(b)) {
+			b++;
+		}
+		return new long[]{a, b};
+	}
+	
+	@Test
+	public void cycleAcrossStripesAbortsExactlyOne() throws Exception {
+		LockTable lt = new LockTable();
+		long[] uids = uidsInDifferentStripes(lt);
+		assertNotSame(lt.stripeOf(uids[0]), lt.stripeOf(uids[1]));
+		
+		// 两个事务同时请求对方持有的锁，检测在不同分区中并发进行
+		for (int round = 0; round < 1000; round++) {
+			LockTable.Owner o1 = new LockTable.Owner(1);
+			LockTable.Owner o2 = new LockTable.Owner(2);
+			lt.add(o1, uids[0], EXCLUSIVE);
+			lt.add(o2, uids[1], EXCLUSIVE);
+			
+			CyclicBarrier barrier = new CyclicBarrier(2);
+			AtomicInteger deadlocks = new AtomicInteger();
+			Async t1 = crossRequest(lt, o1, uids[1], barrier, deadlocks);
+			Async t2 = crossRequest(lt, o2, uids[0], barrier, deadlocks);
+			t1.awaitDone();
+			t2.awaitDone();
+			
+			assertNull(t1.error);
+			assertNull(t2.error);
+			assertEquals(1, deadlocks.get(), "round " + round);
+		}
+	}
+	
+	/**
+	 * 请求uid上的排他锁，因死锁失败时计数；之后释放所有锁，牺牲者释放后另一方获得锁
+	 */
+	private static Async crossRequest(LockTable lt, LockTable.Owner owner, long uid,
+									  CyclicBarrier barrier, AtomicInteger deadlocks) {
+		return new Async(() -> {
+			barrier.await();
+			try {
+				lt.add(owner, uid, EXCLUSIVE);
+			} catch (Exception e) {
+				if (e != Error.DeadlockException) {
+					throw e;
+				}
+				deadlocks.incrementAndGet();
+			} finally {
+				lt.remove(owner);
+			}
+		});
+	}
+	
+	@Test
+	public void cycleOfThreeIsDetected() throws Exception {
+		LockTable lt = new LockTable();
+		LockTable.Owner o1 = new LockTable.Owner(1);
+		LockTable.Owner o2 = new LockTable.Owner(2);
+		LockTable.Owner o3 = new LockTable.Owner(3);
+		lt.add(o1, 10, EXCLUSIVE);
+		lt.add(o2, 20, EXCLUSIVE);
+		lt.add(o3, 30, EXCLUSIVE);
+		
+		Async t1 = new Async(() -> lt.add(o1, 20, EXCLUSIVE));
+		t1.awaitParked();
+		Async t2 = new Async(() -> lt.add(o2, 30, EXCLUSIVE));
+		t2.awaitParked();
+		
+		// 形成环的请求失败，之前的等待者不受影响
+		Async t3 = new Async(() -> lt.add(o3, 10, EXCLUSIVE));
+		t3.awaitDone();
+		assertSame(Error.DeadlockException, t3.error);
+		assertTrue(t1.isAlive() && t2.isAlive());
+		
+		lt.remove(o3);
+		t2.awaitDone();
+		lt.remove(o2);
+		t1.awaitDone();
+		assertNull(t1.error);
+		assertNull(t2.error);
+		lt.remove(o1);
+	}
+	
+	@Test
+	public void chainWithoutCycleWaits() throws Exception {
+		LockTable lt = new LockTable();
+		LockTable.Owner o1 = new LockTable.Owner(1);
+		LockTable.Owner o2 = new LockTable.Owner(2);
+		LockTable.Owner o3 = new LockTable.Owner(3);
+		lt.add(o1, 10, EXCLUSIVE);
+		lt.add(o2, 20, EXCLUSIVE);
+		
+		Async t2 = new Async(() -> lt.add(o2, 10, EXCLUSIVE));
+		t2.awaitParked();
+		Async t3 = new Async(() -> lt.add(o3, 20, EXCLUSIVE));
+		t3.awaitParked();
+		
+		lt.remove(o1);
+		t2.awaitDone();
+		lt.remove(o2);
+		t3.awaitDone();
+		assertNull(t2.error);
+		assertNull(t3.error);
+		lt.remove(o3);
+	}
+	
+	@Test
+	public void waitersAreGrantedInArrivalOrder() throws Exception {
+		LockTable lt = new LockTable();
+		LockTable.Owner holder = new LockTable.Owner(1);
+		lt.add(holder, 10, EXCLUSIVE);
+		
+		List<Long> order = Collections.synchronizedList(new ArrayList<>());
+		int[] modes = {EXCLUSIVE, SHARED, SHARED, EXCLUSIVE, SHARED};
+		// 相邻的两个共享请求一起被授予，都获得锁之后才释放
+		CountDownLatch together = new CountDownLatch(2);
+		List<Async> waiters = new ArrayList<>();
+		for (int i = 0; i < modes.length; i++) {
+			LockTable.Owner o = new LockTable.Owner(i + 2);
+			int mode = modes[i];
+			boolean paired = i == 1 || i == 2;
+			Async t = new Async(() -> {
+				lt.add(o, 10, mode);
+				order.add(o.xid);
+				if (paired) {
+					together.countDown();
+					assertTrue(together.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+				}
+				lt.remove(o);
+			});
+			t.awaitParked();
+			waiters.add(t);
+		}
+		
+		lt.remove(holder);
+		for (Async t : waiters) {
+			t.awaitDone();
+			assertNull(t.error);
+		}
+		assertEquals(List.of(2L), order.subList(0, 1));
+		assertEquals(Set.of(3L, 4L), Set.copyOf(order.subList(1, 3)));
+		assertEquals(List.of(5L, 6L), order.subList(3, 5));
+	}
+	
+	@Test
+	public void compatibleRequestQueuesBehindWaiter() throws Exception {
+		LockTable lt = new LockTable();
+		LockTable.Owner reader = new LockTable.Owner(1);
+		LockTable.Owner writer = new LockTable.Owner(2);
+		LockTable.Owner late = new LockTable.Owner(3);
+		lt.add(reader, 10, SHARED);
+		
+		Async w = new Async(() -> lt.add(writer, 10, EXCLUSIVE));
+		w.awaitParked();
+		// 与持有者兼容，但排在等待的排他请求之后
+		Async r = new Async(() -> lt.add(late, 10, SHARED));
+		r.awaitParked();
+		
+		lt.remove(reader);
+		w.awaitDone();
+		assertTrue(r.isAlive());
+		lt.remove(writer);
+		r.awaitDone();
+		assertNull(w.error);
+		assertNull(r.error);
+		lt.remove(late);
+	}
+	
+	@Test
+	public void upgradeJumpsToHeadOfQueue() throws Exception {
+		LockTable lt = new LockTable();
+		LockTable.Owner o1 = new LockTable.Owner(1);
+		LockTable.Owner o2 = new LockTable.Owner(2);
+		LockTable.Owner o3 = new LockTable.Owner(3);
+		lt.add(o1, 10, SHARED);
+		lt.add(o2, 10, SHARED);
+		
+		Async queued = new Async(() -> lt.add(o3, 10, EXCLUSIVE));
+		queued.awaitParked();
+		Async upgrade = new Async(() -> lt.add(o1, 10, EXCLUSIVE));
+		upgrade.awaitParked();
+		
+		// 另一个共享锁释放后，升级请求先于之前排队的请求获得锁
+		lt.remove(o2);
+		upgrade.awaitDone();
+		assertNull(upgrade.error);
+		assertTrue(queued.isAlive());
+		
+		lt.remove(o1);
+		queued.awaitDone();
+		assertNull(queued.error);
+		lt.remove(o3);
+	}
+	
+	@Test
+	public void upgradeBySoleHolderIsImmediate() throws Exception {
+		LockTable lt = new LockTable();
+		LockTable.Owner o1 = new LockTable.Owner(1);
+		LockTable.Owner o2 = new LockTable.Owner(2);
+		lt.add(o1, 10, SHARED);
+		Async queued = new Async(() -> lt.add(o2, 10, EXCLUSIVE));
+		queued.awaitParked();
+		
+		// 唯一的持有者升级不受队列影响，否则会与等待自己释放的请求互相等待
+		lt.add(o1, 10, EXCLUSIVE);
+		lt.remove(o1);
+		queued.awaitDone();
+		assertNull(queued.error);
+		lt.remove(o2);
+	}
+	
+	@Test
+	public void concurrentUpgradesDeadlock() throws Exception {
+		LockTable lt = new LockTable();
+		LockTable.Owner o1 = new LockTable.Owner(1);
+		LockTable.Owner o2 = new LockTable.Owner(2);
+		lt.add(o1, 10, SHARED);
+		lt.add(o2, 10, SHARED);
+		
+		Async upgrade = new Async(() -> lt.add(o1, 10, EXCLUSIVE));
+		upgrade.awaitParked();
+		Exception e = assertThrows(RuntimeException.class, () -> lt.add(o2, 10, EXCLUSIVE));
+		assertSame(Error.DeadlockException, e);
+		
+		lt.remove(o2);
+		upgrade.awaitDone();
+		assertNull(upgrade.error);
+		lt.remove(o1);
+	}
+	
+	@Test
+	public void timeoutRacingWithGrantNeverLeaksTheLock() throws Exception {
+		LockTable lt = new LockTable(1);
+		int granted = 0;
+		for (int round = 0; round < 500; round++) {
+			LockTable.Owner holder = new LockTable.Owner(1);
+			LockTable.Owner waiter = new LockTable.Owner(2);
+			lt.add(holder, 10, EXCLUSIVE);
+			
+			Async t = new Async(() -> {
+				try {
+					lt.add(waiter, 10, EXCLUSIVE);
+				} finally {
+					lt.remove(waiter);
+				}
+			});
+			// 在超时前后释放，超时与授予交替发生
+			long deadline = System.nanoTime() + (round % 3) * 500_000L;
+			while (System.nanoTime() < deadline) {
+				Thread.onSpinWait();
+			}
+			lt.remove(holder);
+			t.awaitDone();
+			
+			if (t.error == null) {
+				granted++;
+			} else {
+				assertSame(Error.LockTimeoutException, t.error);
+			}
+			
+			// 无论哪一方胜出，锁都已空闲，不会留给已放弃的等待者
+			LockTable.Owner next = new LockTable.Owner(3);
+			lt.add(next, 10, EXCLUSIVE);
+			lt.remove(next);
+		}
+		assertTrue(granted > 0);
+	}
+	
+	@Test
+	public void sharedRangesAreCompatible() throws Exception {
+		LockTable lt = new LockTable(50);
+		LockTable.Owner o1 = new LockTable.Owner(1);
+		LockTable.Owner o2 = new LockTable.Owner(2);
+		lt.addRange(o1, 100, 10, 20, SHARED);
+		lt.addRange(o2, 100, 15, 30, SHARED);
+		
+		// 与共享区间重叠的排他区间需要等待
+		Exception e = assertThrows(RuntimeException.class, () -> lt.addRange(o2, 100, 18, 18, EXCLUSIVE));
+		assertSame(Error.LockTimeoutException, e);
+		// 不重叠的区间、其他索引上的区间互不影响
+		lt.addRange(o2, 100, 21, 30, EXCLUSIVE);
+		lt.addRange(o2, 200, 10, 20, EXCLUSIVE);
+		lt.remove(o1);
+		lt.remove(o2);
+	}
+	
+	@Test
+	public void insertWaitsForOtherTransactionsRange() throws Exception {
+		LockTable lt = new LockTable();
+		LockTable.Owner reader = new LockTable.Owner(1);
+		LockTable.Owner writer = new LockTable.Owner(2);
+		lt.addRange(reader, 100, 10, 20, SHARED);
+		
+		Async insert = new Async(() -> lt.addRange(writer, 100, 15, 15, INSERT));
+		insert.awaitParked();
+		// 区间之外的插入不受影响
+		lt.addRange(writer, 100, 25, 25, INSERT);
+		
+		lt.remove(reader);
+		insert.awaitDone();
+		assertNull(insert.error);
+		lt.remove(writer);
+	}
+	
+	@Test
+	public void sharedRangeDoesNotCoverOwnInsert() throws Exception {
+		LockTable lt = new LockTable(50);
+		LockTable.Owner o1 = new LockTable.Owner(1);
+		LockTable.Owner o2 = new LockTable.Owner(2);
+		lt.addRange(o1, 100, 10, 20, SHARED);
+		lt.addRange(o2, 100, 10, 20, SHARED);
+		
+		// o2的共享区间锁覆盖该键，o1即使自己也持有共享区间锁也不能插入
+		Exception e = assertThrows(RuntimeException.class, () -> lt.addRange(o1, 100, 15, 15, INSERT));
+		assertSame(Error.LockTimeoutException, e);
+		
+		lt.remove(o2);
+		lt.addRange(o1, 100, 15, 15, INSERT);
+		lt.remove(o1);
+	}
+	
+	@Test
+	public void exclusiveRangeCoversOwnInsert() throws Exception {
+		LockTable lt = new LockTable(50);
+		LockTable.Owner o1 = new LockTable.Owner(1);
+		LockTable.Owner o2 = new LockTable.Owner(2);
+		lt.addRange(o1, 100, 10, 20, EXCLUSIVE);
+		lt.addRange(o1, 100, 15, 15, INSERT);
+		lt.addRange(o1, 100, 12, 18, SHARED);
+		
+		Exception e = assertThrows(RuntimeException.class, () -> lt.addRange(o2, 100, 15, 15, INSERT));
+		assertSame(Error.LockTimeoutException, e);
+		lt.remove(o1);
+		lt.addRange(o2, 100, 15, 15, INSERT);
+		lt.remove(o2);
+	}
+	
+	@Test
+	public void insertIntentionsAreCompatible() throws Exception {
+		LockTable lt = new LockTable(50);
+		LockTable.Owner o1 = new LockTable.Owner(1);
+		LockTable.Owner o2 = new LockTable.Owner(2);
+		lt.addRange(o1, 100, 15, 15, INSERT);
+		lt.addRange(o2, 100, 15, 15, INSERT);
+		
+		// 区间锁等待区间内所有未结束事务插入的键
+		Exception e = assertThrows(RuntimeException.class, () -> lt.addRange(o1, 100, 10, 20, SHARED));
+		assertSame(Error.LockTimeoutException, e);
+		lt.remove(o2);
+		lt.addRange(o1, 100, 10, 20, EXCLUSIVE);
+		lt.remove(o1);
+	}
+	
+	@Test
+	public void rangeCycleIsDetected() throws Exception {
+		LockTable lt = new LockTable();
+		LockTable.Owner o1 = new LockTable.Owner(1);
+		LockTable.Owner o2 = new LockTable.Owner(2);
+		lt.addRange(o1, 100, 0, 10, SHARED);
+		lt.addRange(o2, 100, 20, 30, SHARED);
+		
+		Async t1 = new Async(() -> lt.addRange(o1, 100, 25, 25, INSERT));
+		t1.awaitParked();
+		Exception e = assertThrows(RuntimeException.class, () -> lt.addRange(o2, 100, 5, 5, INSERT));
+		assertSame(Error.DeadlockException, e);
+		
+		lt.remove(o2);
+		t1.awaitDone();
+		assertNull(t1.error);
+		lt.remove(o1);
+	}
+}
@@ -0,0 +1,92 @@
+package backend.vm;
+
+import backend.dm.DataManager;
+import backend.tm.TransactionManager;
+import backend.tm.TransactionManagerImpl;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * @date 2024/2/5
+ * @package backend.vm
+ *
+ * 多个只读事务并发读取时VM的吞吐，不是单元测试，直接运行main：
+ * -Dthreads=线程数 -Dseconds=运行时间 -Drecords=预先插入的记录数 -Dreads=每个事务的读取次数 -Dlevel=隔离级别
+ *
+ * 每个线程循环：begin，随机read若干条已提交的记录，commit
+ * 每次read都要查找活跃事务，begin/commit要登记与注销事务并生成快照
+ */
+public class VersionManagerBench {
+	
+	public static void main(String[] args) throws Exception {
+		int threads = Integer.getInteger("threads", 8);
+		int seconds = Integer.getInteger("seconds", 5);
+		int records = Integer.getInteger("records", 1000);
+		int reads = Integer.getInteger("reads", 10);
+		int level = Integer.getInteger("level", 1);
+		
+		Path dir = Files.createTempDirectory("vm-bench");
+		String path = dir.resolve("db").toString();
+		TransactionManagerImpl tm = TransactionManager.create(path);
+		DataManager dm = DataManager.create(path, 1 << 24, tm);
+		VersionManager vm = VersionManager.newVersionManager(tm, dm);
+		
+		long[] uids = new long[records];
+		long xid = vm.begin(0);
+		for (int i = 0; i < records; i++) {
+			uids[i] = vm.insert(xid, new byte[64]);
+		}
+		vm.commit(xid);
+		
+		long[] txns = new long[threads];
+		long stopAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		
+		for (int i = 0; i < threads; i++) {
+			int id = i;
+			Thread t = new Thread(() -> {
+				try {
+					start.await();
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					while (System.nanoTime() < stopAt) {
+						long x = vm.begin(level);
+						for (int j = 0; j < reads; j++) {
+							vm.read(x, uids[random.nextInt(records)]);
+						}
+						vm.commit(x);
+						txns[id]++;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			});
+			t.start();
+		}
+		
+		start.countDown();
+		done.await();
+		
+		long total = 0;
+		for (long n : txns) {
+			total += n;
+		}
+		System.out.printf("threads=%d transactions=%d (%.0f/s) reads=%d (%.0f/s)%n", threads,
+			total, (double) total / seconds, total * reads, (double) total * reads / seconds);
+		
+		dm.close();
+		tm.close();
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+}